@@ -0,0 +1,227 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import ro.sync.security.Sandbox;
+
+/**
+ * View of a metric registry that evaluates the gauges at most once per time-to-live.
+ *
+ * Some gauges are expensive, e.g. the thread states take a thread dump. When several clients
+ * read the metrics at once, a single thread evaluates all the gauges and the other ones wait for
+ * its result. The snapshot is then reused by all the readers, including the reporters, until it
+ * expires. The other metrics are cheap to read and are returned directly from the registry.
+ *
+ * With a {@link GaugeEvaluator}, the gauges are evaluated in parallel and a slow gauge cannot delay the
+ * snapshot for more than the timeout of the evaluator.
+ *
+ * @author cristi_talau
+ */
+class CachingMetricRegistry extends MetricRegistry {
+
+  /**
+   * A snapshot of the gauge values.
+   */
+  private static class GaugeSnapshot {
+    /**
+     * The tick when the evaluation of the gauges started.
+     */
+    private final long tick;
+    /**
+     * The gauges with the values computed at the time of the snapshot.
+     */
+    private final CompletableFuture<SortedMap<String, Gauge>> gauges = new CompletableFuture<>();
+
+    /**
+     * Constructor.
+     *
+     * @param tick The tick when the evaluation of the gauges started.
+     */
+    GaugeSnapshot(long tick) {
+      this.tick = tick;
+    }
+  }
+
+  /**
+   * The registry that holds the metrics.
+   */
+  private final MetricRegistry delegate;
+
+  /**
+   * The clock used to expire the snapshots.
+   */
+  private final Clock clock;
+
+  /**
+   * The duration for which a snapshot is reused, in nanoseconds.
+   */
+  private final long ttlNanos;
+
+  /**
+   * The evaluator of the gauges, or null to evaluate them on the reading thread.
+   */
+  private final GaugeEvaluator evaluator;
+
+  /**
+   * The last snapshot, possibly still being computed.
+   */
+  private final AtomicReference<GaugeSnapshot> snapshot = new AtomicReference<>();
+
+  /**
+   * Constructor.
+   *
+   * @param delegate The registry that holds the metrics.
+   * @param clock The clock used to expire the snapshots.
+   * @param ttlNanos The duration for which a snapshot is reused, in nanoseconds.
+   */
+  CachingMetricRegistry(MetricRegistry delegate, Clock clock, long ttlNanos) {
+    this(delegate, clock, ttlNanos, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param delegate The registry that holds the metrics.
+   * @param clock The clock used to expire the snapshots.
+   * @param ttlNanos The duration for which a snapshot is reused, in nanoseconds.
+   * @param evaluator The evaluator of the gauges, or null to evaluate them on the reading thread.
+   */
+  CachingMetricRegistry(MetricRegistry delegate, Clock clock, long ttlNanos, GaugeEvaluator evaluator) {
+    this.delegate = delegate;
+    this.clock = clock;
+    this.ttlNanos = ttlNanos;
+    this.evaluator = evaluator;
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+    SortedMap<String, Gauge> gauges = getGaugeSnapshot();
+    if (filter == MetricFilter.ALL) {
+      return gauges;
+    }
+    SortedMap<String, Gauge> filtered = new TreeMap<>();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      if (filter.matches(entry.getKey(), entry.getValue())) {
+        filtered.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return Collections.unmodifiableSortedMap(filtered);
+  }
+
+  /**
+   * Returns the current snapshot of the gauges. If it expired, either computes a new one or
+   * waits for the thread that computes it.
+   *
+   * @return The gauges with the values computed at the time of the snapshot.
+   */
+  @SuppressWarnings("rawtypes")
+  private SortedMap<String, Gauge> getGaugeSnapshot() {
+    while (true) {
+      GaugeSnapshot current = snapshot.get();
+      long tick = clock.getTick();
+      if (current != null && (!current.gauges.isDone() || tick - current.tick < ttlNanos)) {
+        return current.gauges.join();
+      }
+      GaugeSnapshot next = new GaugeSnapshot(tick);
+      if (snapshot.compareAndSet(current, next)) {
+        try {
+          next.gauges.complete(evaluateGauges());
+        } catch (RuntimeException | Error e) {
+          next.gauges.completeExceptionally(e);
+          snapshot.compareAndSet(next, null);
+          throw e;
+        }
+        return next.gauges.join();
+      }
+    }
+  }
+
+  /**
+   * Evaluates all the gauges of the registry.
+   *
+   * @return Gauges that return the computed values.
+   */
+  @SuppressWarnings("rawtypes")
+  private SortedMap<String, Gauge> evaluateGauges() {
+    if (evaluator != null) {
+      return evaluator.evaluate(delegate.getGauges());
+    }
+    SortedMap<String, Gauge> gauges = delegate.getGauges();
+    // Some gauges query the state of the VM, which requires full privileges.
+    return Sandbox.runWithAllPerms((PrivilegedAction<SortedMap<String, Gauge>>) () -> { // NOSONAR
+      SortedMap<String, Gauge> values = new TreeMap<>();
+      for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+        Gauge value;
+        try {
+          Object gaugeValue = entry.getValue().getValue();
+          value = () -> gaugeValue;
+        } catch (RuntimeException e) {
+          // Report the failure to each reader, as if the gauge was evaluated by it.
+          value = () -> {
+            throw e;
+          };
+        }
+        values.put(entry.getKey(), value);
+      }
+      return Collections.unmodifiableSortedMap(values);
+    });
+  }
+
+  @Override
+  public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+    return delegate.getCounters(filter);
+  }
+
+  @Override
+  public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+    return delegate.getHistograms(filter);
+  }
+
+  @Override
+  public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+    return delegate.getMeters(filter);
+  }
+
+  @Override
+  public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+    return delegate.getTimers(filter);
+  }
+
+  @Override
+  public SortedSet<String> getNames() {
+    return delegate.getNames();
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    return delegate.getMetrics();
+  }
+
+  @Override
+  public <T extends Metric> T register(String name, T metric) {
+    return delegate.register(name, metric);
+  }
+
+  @Override
+  public boolean remove(String name) {
+    return delegate.remove(name);
+  }
+}
@@ -0,0 +1,333 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Metrics about the time threads spend waiting for locks, the most contended locks and the
+ * deadlocked threads.
+ *
+ * The threads are sampled when the gauges are read, at most once every
+ * {@link #MIN_SAMPLE_INTERVAL_NANOS}. The times are reported as milliseconds per second since the
+ * previous sample, so they do not depend on how often the gauges are read. Deadlocks are checked
+ * at every sample and logged once when found.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+public class ContentionMetricSet implements MetricSet {
+
+  /**
+   * The minimum interval between two samples of the threads.
+   */
+  private static final long MIN_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /**
+   * The number of contended locks reported.
+   */
+  private static final int TOP_LOCKS = 10;
+
+  /**
+   * The number of frames of the lock owner stack that are reported.
+   */
+  private static final int OWNER_STACK_DEPTH = 15;
+
+  /**
+   * A lock that threads waited for.
+   */
+  public static class ContendedLock {
+    /**
+     * The lock, as its class name and identity hash code.
+     */
+    private final String lock;
+    /**
+     * The time threads were blocked since the previous sample, in milliseconds.
+     */
+    private long blockedMillis;
+    /**
+     * The number of threads blocked on the lock at the time of the sample.
+     */
+    private int waiters;
+    /**
+     * The name of the thread that owned the lock, or null if not known.
+     */
+    private String ownerThread;
+    /**
+     * The top frames of the owner stack.
+     */
+    private List<String> ownerStack = Collections.emptyList();
+
+    /**
+     * Constructor.
+     *
+     * @param lock The lock, as its class name and identity hash code.
+     */
+    ContendedLock(String lock) {
+      this.lock = lock;
+    }
+
+    /**
+     * @return The lock, as its class name and identity hash code.
+     */
+    public String getLock() {
+      return lock;
+    }
+
+    /**
+     * @return The time threads were blocked on the lock since the previous sample, in milliseconds.
+     */
+    public long getBlockedMillis() {
+      return blockedMillis;
+    }
+
+    /**
+     * @return The number of threads blocked on the lock at the time of the sample.
+     */
+    public int getWaiters() {
+      return waiters;
+    }
+
+    /**
+     * @return The name of the thread that owned the lock, or null if not known.
+     */
+    public String getOwnerThread() {
+      return ownerThread;
+    }
+
+    /**
+     * @return The top frames of the owner stack.
+     */
+    public List<String> getOwnerStack() {
+      return ownerStack;
+    }
+  }
+
+  /**
+   * The thread management bean.
+   */
+  private final ThreadMXBean threadMXBean;
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * Whether the blocked and waited times are measured.
+   */
+  private final boolean contentionMonitoring;
+
+  /**
+   * Whether the contention monitoring was enabled before this metric set enabled it.
+   */
+  private final boolean contentionMonitoringWasEnabled;
+
+  /**
+   * The blocked and waited times of each thread at the previous sample, by thread id.
+   */
+  private Map<Long, long[]> previousTimes = new HashMap<>();
+
+  /**
+   * The tick of the previous sample.
+   */
+  private long previousTick;
+
+  /**
+   * Whether a sample was taken.
+   */
+  private boolean sampled;
+
+  /**
+   * The time threads were blocked, in milliseconds per second.
+   */
+  private double blockedMillisPerSecond;
+
+  /**
+   * The time threads waited, in milliseconds per second.
+   */
+  private double waitedMillisPerSecond;
+
+  /**
+   * The most contended locks.
+   */
+  private List<ContendedLock> contendedLocks = Collections.emptyList();
+
+  /**
+   * The number of deadlocked threads.
+   */
+  private int deadlockedThreads;
+
+  /**
+   * The ids of the deadlocked threads that were already logged.
+   */
+  private long[] loggedDeadlock = new long[0];
+
+  /**
+   * Constructor. Enables the contention monitoring of the JVM, if supported, until {@link #close()}.
+   *
+   * @param threadMXBean The thread management bean.
+   * @param clock The clock.
+   */
+  public ContentionMetricSet(ThreadMXBean threadMXBean, Clock clock) {
+    this.threadMXBean = threadMXBean;
+    this.clock = clock;
+    if (threadMXBean.isThreadContentionMonitoringSupported()) {
+      contentionMonitoringWasEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+      threadMXBean.setThreadContentionMonitoringEnabled(true);
+      contentionMonitoring = true;
+    } else {
+      log.warn("Thread contention monitoring is not supported by this JVM.");
+      contentionMonitoringWasEnabled = false;
+      contentionMonitoring = false;
+    }
+  }
+
+  /**
+   * Restores the contention monitoring of the JVM to its state before this metric set was created.
+   */
+  public void close() {
+    if (contentionMonitoring && !contentionMonitoringWasEnabled) {
+      threadMXBean.setThreadContentionMonitoringEnabled(false);
+    }
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<>();
+    metrics.put("blocked.millis-per-second", (Gauge<Double>) () -> {
+      sampleIfDue();
+      return blockedMillisPerSecond;
+    });
+    metrics.put("waited.millis-per-second", (Gauge<Double>) () -> {
+      sampleIfDue();
+      return waitedMillisPerSecond;
+    });
+    metrics.put("locks", (Gauge<List<ContendedLock>>) () -> {
+      sampleIfDue();
+      return contendedLocks;
+    });
+    metrics.put("deadlocked", (Gauge<Integer>) () -> {
+      sampleIfDue();
+      return deadlockedThreads;
+    });
+    return metrics;
+  }
+
+  /**
+   * Samples the threads, if the previous sample is older than the minimum interval.
+   */
+  synchronized void sampleIfDue() {
+    long tick = clock.getTick();
+    if (sampled && tick - previousTick < MIN_SAMPLE_INTERVAL_NANOS) {
+      return;
+    }
+    ThreadInfo[] threads = threadMXBean.dumpAllThreads(false, false);
+    if (contentionMonitoring) {
+      sampleContention(threads, sampled ? tick - previousTick : 0);
+    }
+    detectDeadlocks();
+    previousTick = tick;
+    sampled = true;
+  }
+
+  /**
+   * Computes the blocked and waited times since the previous sample, and the contended locks.
+   *
+   * @param threads The threads.
+   * @param elapsedNanos The time since the previous sample, or 0 for the first sample.
+   */
+  private void sampleContention(ThreadInfo[] threads, long elapsedNanos) {
+    Map<Long, ThreadInfo> threadsById = new HashMap<>();
+    for (ThreadInfo thread : threads) {
+      if (thread != null) {
+        threadsById.put(thread.getThreadId(), thread);
+      }
+    }
+    Map<Long, long[]> times = new HashMap<>();
+    Map<String, ContendedLock> locks = new HashMap<>();
+    long blockedMillis = 0;
+    long waitedMillis = 0;
+    for (ThreadInfo thread : threadsById.values()) {
+      long[] threadTimes = {thread.getBlockedTime(), thread.getWaitedTime()};
+      times.put(thread.getThreadId(), threadTimes);
+      long[] previous = previousTimes.get(thread.getThreadId());
+      // The times of a thread that was not sampled before cover its whole life, not only the current lock.
+      long blockedDelta = previous != null ? threadTimes[0] - previous[0] : 0;
+      long waitedDelta = previous != null ? threadTimes[1] - previous[1] : 0;
+      if (elapsedNanos > 0) {
+        blockedMillis += Math.max(0, blockedDelta);
+        waitedMillis += Math.max(0, waitedDelta);
+      }
+      LockInfo lockInfo = thread.getLockInfo();
+      if (thread.getThreadState() == Thread.State.BLOCKED && lockInfo != null) {
+        ContendedLock lock = locks.computeIfAbsent(
+            lockInfo.getClassName() + "@" + Integer.toHexString(lockInfo.getIdentityHashCode()),
+            ContendedLock::new);
+        // The blocked time since the previous sample is attributed to the current lock.
+        lock.blockedMillis += Math.max(0, blockedDelta);
+        lock.waiters++;
+        ThreadInfo owner = threadsById.get(thread.getLockOwnerId());
+        if (owner != null && lock.ownerThread == null) {
+          lock.ownerThread = owner.getThreadName();
+          StackTraceElement[] ownerStack = owner.getStackTrace();
+          List<String> frames = new ArrayList<>();
+          for (int i = 0; i < ownerStack.length && i < OWNER_STACK_DEPTH; i++) {
+            frames.add(ownerStack[i].toString());
+          }
+          lock.ownerStack = frames;
+        }
+      }
+    }
+    previousTimes = times;
+    if (elapsedNanos > 0) {
+      double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+      blockedMillisPerSecond = blockedMillis / seconds;
+      waitedMillisPerSecond = waitedMillis / seconds;
+    }
+    List<ContendedLock> sortedLocks = new ArrayList<>(locks.values());
+    sortedLocks.sort(Comparator.comparingLong((ContendedLock lock) -> lock.blockedMillis)
+        .thenComparingInt(lock -> lock.waiters).reversed());
+    contendedLocks = Collections.unmodifiableList(
+        new ArrayList<>(sortedLocks.subList(0, Math.min(TOP_LOCKS, sortedLocks.size()))));
+  }
+
+  /**
+   * Counts the deadlocked threads, and logs the new deadlocks.
+   */
+  private void detectDeadlocks() {
+    long[] deadlocked = threadMXBean.findDeadlockedThreads();
+    if (deadlocked == null) {
+      deadlockedThreads = 0;
+      loggedDeadlock = new long[0];
+      return;
+    }
+    deadlockedThreads = deadlocked.length;
+    Arrays.sort(deadlocked);
+    if (!Arrays.equals(deadlocked, loggedDeadlock)) {
+      loggedDeadlock = deadlocked;
+      StringBuilder details = new StringBuilder();
+      for (ThreadInfo thread : threadMXBean.getThreadInfo(deadlocked, true, true)) {
+        if (thread != null) {
+          details.append(thread);
+        }
+      }
+      log.error("Deadlocked threads detected:\n{}", details);
+    }
+  }
+}
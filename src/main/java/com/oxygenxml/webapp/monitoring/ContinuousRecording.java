@@ -0,0 +1,229 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A continuous JDK Flight Recorder recording, bounded in age and size, that can be dumped on
+ * demand or automatically when the requests misbehave.
+ *
+ * The recording uses the <code>default</code> settings, whose overhead is low enough for
+ * production. The automatic dumps are written by a background thread, at most once per cooldown
+ * interval, and only the most recent ones are kept.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+public class ContinuousRecording {
+
+  /**
+   * The name of the servlet context attribute that holds the recording.
+   */
+  public static final String ATTR_NAME = ContinuousRecording.class.getName();
+
+  /**
+   * The prefix of the names of the automatic dumps.
+   */
+  private static final String DUMP_PREFIX = "web-author-";
+
+  /**
+   * The extension of the recording files.
+   */
+  private static final String DUMP_EXTENSION = ".jfr";
+
+  /**
+   * The maximum age of the recorded events.
+   */
+  private final Duration maxAge;
+
+  /**
+   * The maximum size of the recorded events, in bytes.
+   */
+  private final long maxSizeBytes;
+
+  /**
+   * The directory of the automatic dumps.
+   */
+  private final Path dumpDirectory;
+
+  /**
+   * The number of automatic dumps kept.
+   */
+  private final int maxDumps;
+
+  /**
+   * The minimum interval between two automatic dumps, in nanoseconds.
+   */
+  private final long cooldownNanos;
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The tick after which the next automatic dump can be written, or {@link Long#MIN_VALUE} before
+   * the first dump.
+   */
+  private final AtomicLong nextDumpTick = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * The thread that writes the automatic dumps.
+   */
+  private final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "monitoring-jfr-dump");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * The recording, or null if not started.
+   */
+  private volatile Recording recording;
+
+  /**
+   * Constructor.
+   *
+   * @param maxAge The maximum age of the recorded events.
+   * @param maxSizeBytes The maximum size of the recorded events, in bytes.
+   * @param dumpDirectory The directory of the automatic dumps.
+   * @param maxDumps The number of automatic dumps kept.
+   * @param cooldownNanos The minimum interval between two automatic dumps, in nanoseconds.
+   * @param clock The clock.
+   */
+  public ContinuousRecording(Duration maxAge, long maxSizeBytes, Path dumpDirectory, int maxDumps,
+      long cooldownNanos, Clock clock) {
+    this.maxAge = maxAge;
+    this.maxSizeBytes = maxSizeBytes;
+    this.dumpDirectory = dumpDirectory;
+    this.maxDumps = Math.max(1, maxDumps);
+    this.cooldownNanos = cooldownNanos;
+    this.clock = clock;
+  }
+
+  /**
+   * Starts the recording.
+   *
+   * @return <code>true</code> if the recording started, <code>false</code> if the JVM does not
+   * support it.
+   */
+  public boolean start() {
+    try {
+      Recording newRecording = new Recording(Configuration.getConfiguration("default"));
+      newRecording.setName("web-author-monitoring");
+      newRecording.setToDisk(true);
+      newRecording.setMaxAge(maxAge);
+      newRecording.setMaxSize(maxSizeBytes);
+      newRecording.start();
+      recording = newRecording;
+      return true;
+    } catch (Exception | LinkageError e) {
+      log.warn("Cannot start the flight recording: {}", e.toString());
+      return false;
+    }
+  }
+
+  /**
+   * Stops the recording and the writing of the automatic dumps.
+   */
+  public void close() {
+    dumpExecutor.shutdownNow();
+    Recording current = recording;
+    recording = null;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  /**
+   * @return The maximum age of the recorded events.
+   */
+  public Duration getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Writes the events recorded during the last period to a file.
+   *
+   * @param last The period, at most the maximum age of the recording.
+   * @param file The file.
+   *
+   * @throws IOException If the recording cannot be written.
+   */
+  public void dump(Duration last, Path file) throws IOException {
+    Recording current = recording;
+    if (current == null) {
+      throw new IOException("The flight recording is not running.");
+    }
+    try {
+      // The public API cannot limit the dump to a period, but the diagnostic command can.
+      DiagnosticCommands.invoke("jfrDump", "name=" + current.getId(), "filename=" + file.toAbsolutePath(),
+          "begin=-" + Math.max(1, last.getSeconds()) + "s");
+    } catch (IOException e) {
+      log.debug("Dumping the whole recording: {}", e.toString());
+      current.dump(file);
+    }
+  }
+
+  /**
+   * Writes the recorded events to the dump directory in the background, unless a dump was written
+   * during the cooldown interval.
+   *
+   * @param reason The reason of the dump, included in the file name.
+   *
+   * @return The pending dump, or null if the dump was skipped.
+   */
+  public Future<Path> triggerDump(String reason) {
+    long tick = clock.getTick();
+    long nextTick = nextDumpTick.get();
+    if ((nextTick != Long.MIN_VALUE && tick - nextTick < 0)
+        || !nextDumpTick.compareAndSet(nextTick, tick + cooldownNanos)
+        || recording == null) {
+      return null;
+    }
+    return dumpExecutor.submit(() -> {
+      Files.createDirectories(dumpDirectory);
+      String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+      Path file = dumpDirectory.resolve(DUMP_PREFIX + timestamp + "-" + reason + DUMP_EXTENSION);
+      dump(maxAge, file);
+      log.warn("Flight recording dumped to {} because of: {}", file, reason);
+      deleteOldDumps();
+      return file;
+    });
+  }
+
+  /**
+   * Deletes the oldest automatic dumps, keeping only the most recent ones.
+   *
+   * @throws IOException If the dump directory cannot be read.
+   */
+  private void deleteOldDumps() throws IOException {
+    List<Path> dumps = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dumpDirectory,
+        DUMP_PREFIX + "*" + DUMP_EXTENSION)) {
+      files.forEach(dumps::add);
+    }
+    // The names start with the timestamp, so they sort chronologically.
+    dumps.sort(null);
+    for (int i = 0; i < dumps.size() - maxDumps; i++) {
+      Files.deleteIfExists(dumps.get(i));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runs the diagnostic commands of the HotSpot JVM, the ones also available through <code>jcmd</code>.
+ *
+ * @author cristi_talau
+ */
+final class DiagnosticCommands {
+
+  /**
+   * The name of the diagnostic command bean.
+   */
+  private static final String DIAGNOSTIC_COMMAND_BEAN = "com.sun.management:type=DiagnosticCommand";
+
+  /**
+   * Private constructor.
+   */
+  private DiagnosticCommands() {
+  }
+
+  /**
+   * Runs a diagnostic command.
+   *
+   * @param operation The operation of the command, e.g. <code>gcClassHistogram</code> for
+   * <code>GC.class_histogram</code>.
+   * @param arguments The arguments of the command.
+   *
+   * @return The output of the command.
+   *
+   * @throws IOException If the JVM does not support the command or if it fails.
+   */
+  static String invoke(String operation, String... arguments) throws IOException {
+    try {
+      Object output = ManagementFactory.getPlatformMBeanServer().invoke(
+          new ObjectName(DIAGNOSTIC_COMMAND_BEAN), operation,
+          new Object[] {arguments}, new String[] {String[].class.getName()});
+      return output != null ? output.toString() : "";
+    } catch (JMException | RuntimeException e) {
+      throw new IOException("The diagnostic command " + operation + " failed.", e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Reporter that appends the same JSON reports as {@link PlainTextReporter} to a rotating file, 
+ * one report per line, instead of the server logs.
+ * 
+ * @author cristi_talau
+ */
+class FileReporter extends PlainTextReporter {
+
+  /**
+   * The file where the reports are appended.
+   */
+  private final RotatingFileSink sink;
+
+  /**
+   * Constructor.
+   * 
+   * @param registry The registry to take metrics from.
+   * @param name The name of the reporter.
+   * @param rateUnit The unit for rates.
+   * @param durationUnit The unit for durations.
+   * @param deltas Whether to report only the changed metrics, with counters as increments.
+   * @param keyframeIntervals The number of reports between two full reports, in delta mode.
+   * @param sink The file where the reports are appended, closed when the reporter stops.
+   */
+  FileReporter(MetricRegistry registry, String name, TimeUnit rateUnit, TimeUnit durationUnit, 
+      boolean deltas, int keyframeIntervals, RotatingFileSink sink) {
+    super(registry, name, rateUnit, durationUnit, deltas, keyframeIntervals);
+    this.sink = sink;
+  }
+
+  @Override
+  protected void output(byte[] metricsJson, int length) {
+    sink.append(metricsJson, length);
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    sink.close();
+  }
+}
@@ -0,0 +1,210 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders folded stacks as a self-contained SVG flame graph.
+ *
+ * Each frame is a box whose width is proportional to the number of samples in which it appears.
+ * The callers are below their callees and the frames of a level are sorted alphabetically.
+ *
+ * @author cristi_talau
+ */
+final class FlameGraph {
+
+  /**
+   * The width of the image in pixels.
+   */
+  private static final int WIDTH = 1200;
+
+  /**
+   * The height of a frame in pixels.
+   */
+  private static final int FRAME_HEIGHT = 16;
+
+  /**
+   * The margin around the graph in pixels.
+   */
+  private static final int MARGIN = 10;
+
+  /**
+   * The height of the title in pixels.
+   */
+  private static final int TITLE_HEIGHT = 30;
+
+  /**
+   * The minimum width in pixels of the frames that are drawn.
+   */
+  private static final double MIN_FRAME_WIDTH = 0.1;
+
+  /**
+   * The approximate width of a character of the frame names, in pixels.
+   */
+  private static final double CHAR_WIDTH = 7;
+
+  /**
+   * A frame of the call tree.
+   */
+  private static class Node {
+    /**
+     * The name of the frame.
+     */
+    private final String name;
+    /**
+     * The number of samples in which the frame appears.
+     */
+    private long samples;
+    /**
+     * The frames called from this one, by name.
+     */
+    private final Map<String, Node> children = new TreeMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the frame.
+     */
+    Node(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return The number of levels of the tree rooted in this frame.
+     */
+    int depth() {
+      int depth = 0;
+      for (Node child : children.values()) {
+        depth = Math.max(depth, child.depth());
+      }
+      return depth + 1;
+    }
+  }
+
+  /**
+   * Private constructor.
+   */
+  private FlameGraph() {
+  }
+
+  /**
+   * Writes the flame graph of the folded stacks.
+   *
+   * @param foldedStacks The number of samples of each stack, whose frames are separated by
+   * semicolons, outermost first.
+   * @param title The title of the flame graph.
+   * @param writer The writer.
+   *
+   * @throws IOException If the flame graph cannot be written.
+   */
+  static void write(Map<String, Long> foldedStacks, String title, Writer writer) throws IOException {
+    Node root = new Node("all");
+    for (Map.Entry<String, Long> entry : foldedStacks.entrySet()) {
+      long samples = entry.getValue();
+      root.samples += samples;
+      Node node = root;
+      for (String frame : entry.getKey().split(";")) {
+        node = node.children.computeIfAbsent(frame, Node::new);
+        node.samples += samples;
+      }
+    }
+
+    int depth = root.depth();
+    int height = TITLE_HEIGHT + depth * FRAME_HEIGHT + 2 * MARGIN;
+    writer.write("<?xml version=\"1.0\" standalone=\"no\"?>\n");
+    writer.write(String.format(Locale.ROOT, 
+        "<svg version=\"1.1\" width=\"%d\" height=\"%d\" viewBox=\"0 0 %d %d\" "
+        + "xmlns=\"http://www.w3.org/2000/svg\">%n", WIDTH, height, WIDTH, height));
+    writer.write("<style>text { font-family: monospace; font-size: 12px; } "
+        + "g:hover rect { stroke: black; stroke-width: 0.5; }</style>\n");
+    writer.write(String.format(Locale.ROOT, "<rect width=\"100%%\" height=\"100%%\" fill=\"#f8f8f8\"/>%n"
+        + "<text x=\"%d\" y=\"%d\" text-anchor=\"middle\" style=\"font-size: 16px\">%s</text>%n", 
+        WIDTH / 2, MARGIN + 16, escape(title)));
+    double scale = root.samples > 0 ? (WIDTH - 2.0 * MARGIN) / root.samples : 0;
+    writeNode(writer, root, root.samples, MARGIN, height - MARGIN - FRAME_HEIGHT, scale);
+    writer.write("</svg>\n");
+  }
+
+  /**
+   * Writes a frame and the frames called from it.
+   *
+   * @param writer The writer.
+   * @param node The frame.
+   * @param totalSamples The total number of samples.
+   * @param x The horizontal position of the frame.
+   * @param y The vertical position of the frame.
+   * @param scale The width of a sample in pixels.
+   *
+   * @throws IOException If the frames cannot be written.
+   */
+  private static void writeNode(Writer writer, Node node, long totalSamples, double x, int y, double scale)
+      throws IOException {
+    double width = node.samples * scale;
+    if (width < MIN_FRAME_WIDTH) {
+      return;
+    }
+    String name = escape(node.name);
+    writer.write(String.format(Locale.ROOT, 
+        "<g><title>%s (%d samples, %.2f%%)</title><rect x=\"%.1f\" y=\"%d\" width=\"%.1f\" height=\"%d\" "
+        + "fill=\"%s\" rx=\"2\"/>", name, node.samples, 100.0 * node.samples / totalSamples, 
+        x, y, width, FRAME_HEIGHT - 1, color(node.name)));
+    int maxChars = (int) ((width - 6) / CHAR_WIDTH);
+    if (maxChars >= 3) {
+      String label = node.name.length() <= maxChars ? node.name 
+          : node.name.substring(0, maxChars - 2) + "..";
+      writer.write(String.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%d\">%s</text>", 
+          x + 3, y + FRAME_HEIGHT - 4, escape(label)));
+    }
+    writer.write("</g>\n");
+    double childX = x;
+    for (Node child : node.children.values()) {
+      writeNode(writer, child, totalSamples, childX, y - FRAME_HEIGHT, scale);
+      childX += child.samples * scale;
+    }
+  }
+
+  /**
+   * @param name The name of a frame.
+   *
+   * @return A warm color derived from the name, so that a frame has the same color in all graphs.
+   */
+  private static String color(String name) {
+    int hash = name.hashCode();
+    int red = 205 + Math.floorMod(hash, 50);
+    int green = 80 + Math.floorMod(hash >> 8, 150);
+    int blue = Math.floorMod(hash >> 16, 55);
+    return String.format(Locale.ROOT, "rgb(%d,%d,%d)", red, green, blue);
+  }
+
+  /**
+   * @param text The text.
+   *
+   * @return The text with the XML special characters escaped.
+   */
+  private static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<':
+          escaped.append("&lt;");
+          break;
+        case '>':
+          escaped.append("&gt;");
+          break;
+        case '&':
+          escaped.append("&amp;");
+          break;
+        case '"':
+          escaped.append("&quot;");
+          break;
+        default:
+          escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
@@ -0,0 +1,295 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+import ro.sync.security.Sandbox;
+
+/**
+ * Evaluates gauges in parallel on a small pool of threads, with a single deadline for all the gauges.
+ *
+ * A gauge that does not return a value before the deadline, or that cannot be queued because too
+ * many gauges wait for a thread, is reported with its last known value,
+ * and listed with the age of that value by the <code>reporter.gauges.stale</code> gauge. It is not
+ * evaluated again until its pending evaluation returns, so a stuck gauge holds at most one thread.
+ * A gauge that fails is reported as failed, without affecting the other gauges.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class GaugeEvaluator {
+
+  /**
+   * The name of the gauge that lists the gauges reported with an old value.
+   */
+  private static final String STALE_GAUGE = "reporter.gauges.stale";
+
+  /**
+   * The maximum number of gauges that wait for a thread.
+   */
+  static final int QUEUE_CAPACITY = 1024;
+
+  /**
+   * A value of a gauge.
+   */
+  private static class Value {
+    /**
+     * The value.
+     */
+    private final Object value;
+    /**
+     * The tick when the value was computed.
+     */
+    private final long tick;
+
+    /**
+     * Constructor.
+     *
+     * @param value The value.
+     * @param tick The tick when the value was computed.
+     */
+    Value(Object value, long tick) {
+      this.value = value;
+      this.tick = tick;
+    }
+  }
+
+  /**
+   * An evaluation of a gauge.
+   */
+  private static class Evaluation {
+    /**
+     * The value of the gauge.
+     */
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+    /**
+     * The tick when the evaluation started.
+     */
+    private volatile long startTick;
+    /**
+     * Whether the timeout of the evaluation was already recorded.
+     */
+    private final AtomicBoolean timedOut = new AtomicBoolean();
+  }
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The maximum duration of the evaluation of the gauges, in nanoseconds.
+   */
+  private final long timeoutNanos;
+
+  /**
+   * The threads that evaluate the gauges.
+   */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * The evaluations in progress, by gauge name.
+   */
+  private final Map<String, Evaluation> running = new ConcurrentHashMap<>();
+
+  /**
+   * The last values of the gauges, by gauge name.
+   */
+  private final Map<String, Value> lastValues = new ConcurrentHashMap<>();
+
+  /**
+   * The ages in milliseconds of the values reported instead of the ones that timed out, by gauge name.
+   */
+  private volatile Map<String, Long> staleAges = Collections.emptyMap();
+
+  /**
+   * The durations of the evaluations of the gauges.
+   */
+  private final Timer durations;
+
+  /**
+   * The evaluations that did not finish before their deadline.
+   */
+  private final Meter timeouts;
+
+  /**
+   * Constructor.
+   *
+   * @param registry The registry where the evaluator registers its own metrics.
+   * @param clock The clock.
+   * @param threads The number of threads that evaluate the gauges.
+   * @param timeoutNanos The maximum duration of the evaluation of the gauges, in nanoseconds.
+   */
+  GaugeEvaluator(MetricRegistry registry, Clock clock, int threads, long timeoutNanos) {
+    this.clock = clock;
+    this.timeoutNanos = timeoutNanos;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+        runnable -> {
+          Thread thread = new Thread(runnable, "monitoring-gauges-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.durations = registry.timer("reporter.gauges.duration", 
+        () -> new SummingTimer(new ExponentiallyDecayingReservoir(), clock));
+    this.timeouts = registry.meter("reporter.gauges.timeouts");
+    registry.gauge(STALE_GAUGE, () -> () -> staleAges);
+  }
+
+  /**
+   * Evaluates the gauges.
+   *
+   * @param gauges The gauges, by name.
+   *
+   * @return Gauges that return the computed values, the last known values for the gauges that timed out
+   * or could not be queued, or throw the exceptions of the gauges that failed. The gauges without a computed
+   * or a known value are not included.
+   */
+  @SuppressWarnings("rawtypes")
+  SortedMap<String, Gauge> evaluate(SortedMap<String, Gauge> gauges) {
+    // A single deadline, so that the gauges that wait for a thread do not add up their timeouts.
+    long deadline = clock.getTick() + timeoutNanos;
+    Map<String, Evaluation> evaluations = new LinkedHashMap<>();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      // A gauge that is still being evaluated is not evaluated again. An evaluation that finished 
+      // may not have been removed yet by its thread, but its value is from the previous round.
+      Evaluation evaluation = running.get(entry.getKey());
+      if (evaluation == null || evaluation.result.isDone()) {
+        evaluation = submit(entry.getKey(), entry.getValue());
+      }
+      evaluations.put(entry.getKey(), evaluation);
+    }
+    lastValues.keySet().retainAll(gauges.keySet());
+
+    SortedMap<String, Gauge> values = new TreeMap<>();
+    Map<String, Long> stale = new TreeMap<>();
+    for (Map.Entry<String, Evaluation> entry : evaluations.entrySet()) {
+      String name = entry.getKey();
+      Evaluation evaluation = entry.getValue();
+      if (evaluation != null && await(evaluation, deadline)) {
+        try {
+          Object value = evaluation.result.join();
+          values.put(name, () -> value);
+        } catch (RuntimeException e) {
+          RuntimeException failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+          // Report the failure to each reader, as if the gauge was evaluated by it.
+          values.put(name, () -> {
+            throw failure;
+          });
+        }
+      } else {
+        if (evaluation == null) {
+          log.debug("The gauge {} was not queued for evaluation.", name);
+        } else if (evaluation.timedOut.compareAndSet(false, true)) {
+          timeouts.mark();
+          log.warn("The gauge {} did not return a value in {} ms.", name, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+        Value last = lastValues.get(name);
+        if (last != null) {
+          values.put(name, () -> last.value);
+          stale.put(name, TimeUnit.NANOSECONDS.toMillis(clock.getTick() - last.tick));
+        }
+      }
+    }
+    Map<String, Long> currentStaleAges = Collections.unmodifiableMap(stale);
+    staleAges = currentStaleAges;
+    if (values.containsKey(STALE_GAUGE)) {
+      // Evaluated before the other gauges timed out.
+      values.put(STALE_GAUGE, () -> currentStaleAges);
+    }
+    return Collections.unmodifiableSortedMap(values);
+  }
+
+  /**
+   * Starts the evaluation of a gauge.
+   *
+   * @param name The name of the gauge.
+   * @param gauge The gauge.
+   *
+   * @return The evaluation, or null if too many gauges wait for a thread.
+   */
+  @SuppressWarnings("rawtypes")
+  private Evaluation submit(String name, Gauge gauge) {
+    Evaluation evaluation = new Evaluation();
+    running.put(name, evaluation);
+    try {
+      executor.execute(() -> {
+        evaluation.startTick = clock.getTick();
+        try {
+          // Some gauges query the state of the VM, which requires full privileges.
+          Object value = Sandbox.runWithAllPerms((PrivilegedAction<Object>) gauge::getValue); // NOSONAR
+          lastValues.put(name, new Value(value, clock.getTick()));
+          evaluation.result.complete(value);
+        } catch (RuntimeException e) {
+          evaluation.result.completeExceptionally(e);
+        } catch (Error e) {
+          evaluation.result.completeExceptionally(e);
+          throw e;
+        } finally {
+          durations.update(clock.getTick() - evaluation.startTick, TimeUnit.NANOSECONDS);
+          running.remove(name, evaluation);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      running.remove(name, evaluation);
+      return null;
+    }
+    return evaluation;
+  }
+
+  /**
+   * Waits for an evaluation until the deadline.
+   *
+   * @param evaluation The evaluation.
+   * @param deadline The deadline, as a tick of the clock.
+   *
+   * @return <code>true</code> if the evaluation finished.
+   */
+  private boolean await(Evaluation evaluation, long deadline) {
+    while (!evaluation.result.isDone()) {
+      long remaining = deadline - clock.getTick();
+      if (remaining <= 0) {
+        return false;
+      }
+      try {
+        evaluation.result.get(remaining, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // Checked by the loop.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stops the threads that evaluate the gauges.
+   */
+  void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,260 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class histograms of the heap, computed by the HotSpot diagnostic command
+ * <code>GC.class_histogram</code> without dumping the heap.
+ *
+ * The last histogram is kept, so that the next one can be compared to it. The classes whose
+ * instances grew the most between two histograms taken hours or days apart point to the leaks.
+ *
+ * @author cristi_talau
+ */
+class HeapHistogram {
+
+  /**
+   * A line of the histogram: rank, instances, bytes and class name, optionally followed by the module.
+   */
+  private static final Pattern HISTOGRAM_LINE = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)");
+
+  /**
+   * The instances of a class.
+   */
+  public static class ClassEntry {
+    /**
+     * The name of the class.
+     */
+    private final String className;
+    /**
+     * The number of instances.
+     */
+    private final long instances;
+    /**
+     * The size of the instances in bytes.
+     */
+    private final long bytes;
+    /**
+     * The growth of the number of instances since the previous histogram.
+     */
+    private long instancesDelta;
+    /**
+     * The growth of the size of the instances since the previous histogram.
+     */
+    private long bytesDelta;
+
+    /**
+     * Constructor.
+     *
+     * @param className The name of the class.
+     * @param instances The number of instances.
+     * @param bytes The size of the instances in bytes.
+     */
+    ClassEntry(String className, long instances, long bytes) {
+      this.className = className;
+      this.instances = instances;
+      this.bytes = bytes;
+    }
+
+    /**
+     * @return The name of the class.
+     */
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * @return The number of instances.
+     */
+    public long getInstances() {
+      return instances;
+    }
+
+    /**
+     * @return The size of the instances in bytes.
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return The growth of the number of instances since the previous histogram.
+     */
+    public long getInstancesDelta() {
+      return instancesDelta;
+    }
+
+    /**
+     * @return The growth of the size of the instances since the previous histogram.
+     */
+    public long getBytesDelta() {
+      return bytesDelta;
+    }
+  }
+
+  /**
+   * A histogram, possibly compared to the previous one.
+   */
+  public static class Snapshot {
+    /**
+     * The time of the histogram, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+    /**
+     * The time of the previous histogram, or 0 if it was not compared to a previous one.
+     */
+    private long previousTimestamp;
+    /**
+     * The total number of instances.
+     */
+    private long totalInstances;
+    /**
+     * The total size of the instances in bytes.
+     */
+    private long totalBytes;
+    /**
+     * The classes, largest first.
+     */
+    private List<ClassEntry> classes;
+
+    /**
+     * Constructor.
+     *
+     * @param timestamp The time of the histogram, in milliseconds since the epoch.
+     * @param classes The classes, largest first.
+     */
+    Snapshot(long timestamp, List<ClassEntry> classes) {
+      this.timestamp = timestamp;
+      this.classes = classes;
+      for (ClassEntry entry : classes) {
+        totalInstances += entry.instances;
+        totalBytes += entry.bytes;
+      }
+    }
+
+    /**
+     * @return The time of the histogram, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return The time of the previous histogram, or 0 if it was not compared to a previous one.
+     */
+    public long getPreviousTimestamp() {
+      return previousTimestamp;
+    }
+
+    /**
+     * @return The total number of instances.
+     */
+    public long getTotalInstances() {
+      return totalInstances;
+    }
+
+    /**
+     * @return The total size of the instances in bytes.
+     */
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    /**
+     * @return The classes, largest first, or the ones that grew the most first when compared
+     * to the previous histogram.
+     */
+    public List<ClassEntry> getClasses() {
+      return classes;
+    }
+  }
+
+  /**
+   * The classes of the last histogram, by name, guarded by this object.
+   */
+  private Map<String, ClassEntry> previousClasses;
+
+  /**
+   * The time of the last histogram, guarded by this object.
+   */
+  private long previousTimestamp;
+
+  /**
+   * Computes a histogram of the heap. Only one histogram is computed at a time.
+   *
+   * @param live <code>true</code> to count only the reachable objects, which requires a full
+   * garbage collection.
+   * @param diff <code>true</code> to compare the histogram to the previous one.
+   * @param limit The maximum number of classes returned.
+   *
+   * @return The histogram.
+   *
+   * @throws IOException If the JVM cannot compute the histogram.
+   */
+  synchronized Snapshot compute(boolean live, boolean diff, int limit) throws IOException {
+    String output = live ? DiagnosticCommands.invoke("gcClassHistogram")
+        : DiagnosticCommands.invoke("gcClassHistogram", "-all");
+    return record(System.currentTimeMillis(), parse(output), diff, limit);
+  }
+
+  /**
+   * Records a histogram as the last one, and compares it to the previous one if requested.
+   *
+   * @param timestamp The time of the histogram.
+   * @param classes The classes of the histogram, largest first.
+   * @param diff <code>true</code> to compare the histogram to the previous one.
+   * @param limit The maximum number of classes returned.
+   *
+   * @return The histogram.
+   */
+  synchronized Snapshot record(long timestamp, List<ClassEntry> classes, boolean diff, int limit) {
+    Snapshot snapshot = new Snapshot(timestamp, classes);
+    List<ClassEntry> returned = classes;
+    if (diff && previousClasses != null) {
+      snapshot.previousTimestamp = previousTimestamp;
+      for (ClassEntry entry : classes) {
+        ClassEntry previous = previousClasses.get(entry.className);
+        entry.instancesDelta = entry.instances - (previous != null ? previous.instances : 0);
+        entry.bytesDelta = entry.bytes - (previous != null ? previous.bytes : 0);
+      }
+      returned = new ArrayList<>(classes);
+      returned.sort(Comparator.comparingLong(ClassEntry::getBytesDelta).reversed());
+    }
+    snapshot.classes = Collections.unmodifiableList(new ArrayList<>(returned.subList(0, Math.min(limit, returned.size()))));
+
+    Map<String, ClassEntry> byName = new LinkedHashMap<>();
+    for (ClassEntry entry : classes) {
+      byName.put(entry.className, entry);
+    }
+    previousClasses = byName;
+    previousTimestamp = timestamp;
+    return snapshot;
+  }
+
+  /**
+   * Parses the output of the class histogram command.
+   *
+   * @param output The output of the command.
+   *
+   * @return The classes, in the order of the output.
+   */
+  static List<ClassEntry> parse(String output) {
+    List<ClassEntry> classes = new ArrayList<>();
+    for (String line : output.split("\n")) {
+      Matcher matcher = HISTOGRAM_LINE.matcher(line);
+      if (matcher.find()) {
+        classes.add(new ClassEntry(matcher.group(3), Long.parseLong(matcher.group(1)),
+            Long.parseLong(matcher.group(2))));
+      }
+    }
+    return classes;
+  }
+}
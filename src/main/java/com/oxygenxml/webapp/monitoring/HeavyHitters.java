@@ -0,0 +1,308 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the documents and the users that account for the most request time, using fixed-size
+ * Space-Saving sketches.
+ *
+ * A Space-Saving sketch keeps a bounded number of counters. When a key without a counter is
+ * recorded and the sketch is full, the counter with the smallest total is reassigned to the new
+ * key, which inherits that total as its possible overestimation. The keys whose total is larger
+ * than the overestimation are guaranteed to be among the heavy hitters.
+ *
+ * Each sketch is split in stripes by the hash of the keys, so that concurrent requests rarely
+ * wait for each other. The totals are halved periodically, so that the sketches reflect the
+ * recent requests.
+ *
+ * @author cristi_talau
+ */
+public class HeavyHitters {
+
+  /**
+   * The name of the servlet context attribute that holds the heavy hitters.
+   */
+  public static final String ATTR_NAME = HeavyHitters.class.getName();
+
+  /**
+   * The number of stripes of each sketch.
+   */
+  private static final int STRIPES = 8;
+
+  /**
+   * The statistics of a heavy hitter.
+   */
+  public static class HeavyHitter {
+    /**
+     * The key, i.e. the document or the user.
+     */
+    private final String key;
+    /**
+     * The total duration of the requests in nanoseconds.
+     */
+    private long totalNanos;
+    /**
+     * The number of requests.
+     */
+    private long requests;
+    /**
+     * The number of failed requests.
+     */
+    private long errors;
+    /**
+     * The maximum overestimation of the total duration, in nanoseconds.
+     */
+    private long overestimationNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param key The key.
+     */
+    HeavyHitter(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other The heavy hitter to copy.
+     */
+    HeavyHitter(HeavyHitter other) {
+      this.key = other.key;
+      this.totalNanos = other.totalNanos;
+      this.requests = other.requests;
+      this.errors = other.errors;
+      this.overestimationNanos = other.overestimationNanos;
+    }
+
+    /**
+     * @return The key, i.e. the document or the user.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return The total duration of the requests in milliseconds.
+     */
+    public double getTotalMillis() {
+      return totalNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return The number of requests.
+     */
+    public long getRequests() {
+      return requests;
+    }
+
+    /**
+     * @return The number of failed requests.
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    /**
+     * @return The maximum overestimation of the total duration, in milliseconds. The requests and
+     * errors of the keys that previously used the same counter are also included in the counts.
+     */
+    public double getOverestimationMillis() {
+      return overestimationNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+
+  /**
+   * A stripe of a Space-Saving sketch.
+   */
+  private static class Stripe {
+    /**
+     * The counters, by key.
+     */
+    private final Map<String, HeavyHitter> counters = new HashMap<>();
+
+    /**
+     * The maximum number of counters.
+     */
+    private final int capacity;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of counters.
+     */
+    Stripe(int capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param key The key.
+     * @param durationNanos The duration of the request.
+     * @param error <code>true</code> if the request failed.
+     */
+    synchronized void record(String key, long durationNanos, boolean error) {
+      HeavyHitter counter = counters.get(key);
+      if (counter == null) {
+        if (counters.size() < capacity) {
+          counter = new HeavyHitter(key);
+        } else {
+          HeavyHitter min = findMin();
+          counters.remove(min.key);
+          counter = new HeavyHitter(key);
+          counter.totalNanos = min.totalNanos;
+          counter.requests = min.requests;
+          counter.errors = min.errors;
+          counter.overestimationNanos = min.totalNanos;
+        }
+        counters.put(key, counter);
+      }
+      counter.totalNanos += durationNanos;
+      counter.requests++;
+      if (error) {
+        counter.errors++;
+      }
+    }
+
+    /**
+     * @return The counter with the smallest total.
+     */
+    private HeavyHitter findMin() {
+      HeavyHitter min = null;
+      for (HeavyHitter counter : counters.values()) {
+        if (min == null || counter.totalNanos < min.totalNanos) {
+          min = counter;
+        }
+      }
+      return min;
+    }
+
+    /**
+     * Halves the totals, removing the counters that become empty.
+     */
+    synchronized void decay() {
+      counters.values().removeIf(counter -> {
+        counter.totalNanos /= 2;
+        counter.requests /= 2;
+        counter.errors /= 2;
+        counter.overestimationNanos /= 2;
+        return counter.requests == 0;
+      });
+    }
+
+    /**
+     * Adds copies of the counters to a list.
+     *
+     * @param result The list.
+     */
+    synchronized void copyTo(List<HeavyHitter> result) {
+      for (HeavyHitter counter : counters.values()) {
+        result.add(new HeavyHitter(counter));
+      }
+    }
+  }
+
+  /**
+   * The stripes of the documents sketch.
+   */
+  private final Stripe[] documents = new Stripe[STRIPES];
+
+  /**
+   * The stripes of the users sketch.
+   */
+  private final Stripe[] users = new Stripe[STRIPES];
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of counters of each sketch. Should be a few times larger than the
+   * number of heavy hitters of interest, to keep the overestimations small.
+   */
+  public HeavyHitters(int capacity) {
+    int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+    for (int i = 0; i < STRIPES; i++) {
+      documents[i] = new Stripe(stripeCapacity);
+      users[i] = new Stripe(stripeCapacity);
+    }
+  }
+
+  /**
+   * Records a request for a document.
+   *
+   * @param document The document.
+   * @param durationNanos The duration of the request.
+   * @param error <code>true</code> if the request failed.
+   */
+  void recordDocument(String document, long durationNanos, boolean error) {
+    stripeFor(documents, document).record(document, durationNanos, error);
+  }
+
+  /**
+   * Records a request of a user.
+   *
+   * @param user The user.
+   * @param durationNanos The duration of the request.
+   * @param error <code>true</code> if the request failed.
+   */
+  void recordUser(String user, long durationNanos, boolean error) {
+    stripeFor(users, user).record(user, durationNanos, error);
+  }
+
+  /**
+   * Halves the totals of all counters.
+   */
+  void decay() {
+    for (int i = 0; i < STRIPES; i++) {
+      documents[i].decay();
+      users[i].decay();
+    }
+  }
+
+  /**
+   * Returns the heavy hitters.
+   *
+   * @param limit The maximum number of heavy hitters of each kind.
+   *
+   * @return The documents and the users with the largest total request time, largest first.
+   */
+  public Map<String, List<HeavyHitter>> getTop(int limit) {
+    Map<String, List<HeavyHitter>> result = new LinkedHashMap<>();
+    result.put("documents", getTop(documents, limit));
+    result.put("users", getTop(users, limit));
+    return result;
+  }
+
+  /**
+   * @param stripes The stripes of a sketch.
+   * @param limit The maximum number of heavy hitters.
+   *
+   * @return The heavy hitters of the sketch, largest first.
+   */
+  private static List<HeavyHitter> getTop(Stripe[] stripes, int limit) {
+    List<HeavyHitter> counters = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      stripe.copyTo(counters);
+    }
+    counters.sort(Comparator.comparingLong((HeavyHitter counter) -> counter.totalNanos).reversed());
+    return counters.size() > limit ? new ArrayList<>(counters.subList(0, limit)) : counters;
+  }
+
+  /**
+   * @param stripes The stripes of a sketch.
+   * @param key The key.
+   *
+   * @return The stripe of the key.
+   */
+  private static Stripe stripeFor(Stripe[] stripes, String key) {
+    int hash = key.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+}
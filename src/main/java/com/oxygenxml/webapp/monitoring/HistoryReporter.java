@@ -0,0 +1,151 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+import ro.sync.security.Sandbox;
+
+/**
+ * Reporter that records the values of some metrics in the local metric history.
+ *
+ * Numeric gauges and counters are recorded as they are. For meters, the one-minute rate is
+ * recorded, and for timers and histograms the median, the 95th and the 99th percentiles as well.
+ * Durations are recorded in milliseconds and rates per second. The series of the metrics that are
+ * no longer registered are deleted after one day without values.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class HistoryReporter extends ScheduledReporter {
+
+  /**
+   * The duration without values after which the series of a metric that is no longer registered is deleted.
+   */
+  static final long IDLE_SERIES_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * The suffixes of the series recorded for a snapshot.
+   */
+  private static final String[] SNAPSHOT_SUFFIXES = {".p50", ".p95", ".p99"};
+
+  /**
+   * The metric history.
+   */
+  private final MetricHistory history;
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * Constructor.
+   *
+   * @param registry The registry to take metrics from. Its gauges are evaluated only if recorded,
+   *     so it should not be a caching registry that evaluates all of them.
+   * @param history The metric history.
+   * @param prefixes The prefixes of the names of the recorded metrics.
+   * @param clock The clock.
+   */
+  HistoryReporter(MetricRegistry registry, MetricHistory history, List<String> prefixes, Clock clock) {
+    super(registry, "monitoring-history", (name, metric) -> prefixes.stream().anyMatch(name::startsWith),
+        TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+    this.history = history;
+    this.clock = clock;
+  }
+
+  @Override
+  public void report(@SuppressWarnings("rawtypes") SortedMap<String, Gauge> gauges,
+      SortedMap<String, Counter> counters,
+      SortedMap<String, Histogram> histograms,
+      SortedMap<String, Meter> meters,
+      SortedMap<String, Timer> timers) {
+    long timestamp = clock.getTime();
+    Set<String> active = new HashSet<>();
+    try {
+      for (@SuppressWarnings("rawtypes") Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+        Object value;
+        try {
+          value = Sandbox.runWithAllPerms((PrivilegedAction<Object>) entry.getValue()::getValue); // NOSONAR
+        } catch (RuntimeException e) {
+          log.debug("Cannot compute gauge {}", entry.getKey(), e);
+          continue;
+        }
+        active.add(entry.getKey());
+        if (value instanceof Number) {
+          history.record(entry.getKey(), timestamp, ((Number) value).doubleValue());
+        }
+      }
+      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+        active.add(entry.getKey());
+        history.record(entry.getKey(), timestamp, entry.getValue().getCount());
+      }
+      for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+        active.add(entry.getKey() + ".m1_rate");
+        history.record(entry.getKey() + ".m1_rate", timestamp, convertRate(entry.getValue().getOneMinuteRate()));
+      }
+      for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+        addSnapshotSeries(active, entry.getKey());
+        recordSnapshot(entry.getKey(), timestamp, entry.getValue().getSnapshot(), 1);
+      }
+      for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+        active.add(entry.getKey() + ".m1_rate");
+        addSnapshotSeries(active, entry.getKey());
+        history.record(entry.getKey() + ".m1_rate", timestamp, convertRate(entry.getValue().getOneMinuteRate()));
+        recordSnapshot(entry.getKey(), timestamp, entry.getValue().getSnapshot(), convertDuration(1));
+      }
+    } catch (IOException e) {
+      log.warn("Cannot record the metric history: {}", e.getMessage());
+    }
+    history.deleteIdleSeries(active, timestamp, IDLE_SERIES_MILLIS);
+  }
+
+  /**
+   * Adds the names of the series recorded for a snapshot.
+   *
+   * @param series The names of the series.
+   * @param name The name of the metric.
+   */
+  private static void addSnapshotSeries(Set<String> series, String name) {
+    for (String suffix : SNAPSHOT_SUFFIXES) {
+      series.add(name + suffix);
+    }
+  }
+
+  /**
+   * Records the percentiles of a snapshot.
+   *
+   * @param name The name of the metric.
+   * @param timestamp The time of the snapshot.
+   * @param snapshot The snapshot.
+   * @param factor The factor applied to the values.
+   *
+   * @throws IOException If the values cannot be recorded.
+   */
+  private void recordSnapshot(String name, long timestamp, Snapshot snapshot, double factor) throws IOException {
+    if (snapshot.size() == 0) {
+      return;
+    }
+    history.record(name + SNAPSHOT_SUFFIXES[0], timestamp, snapshot.getMedian() * factor);
+    history.record(name + SNAPSHOT_SUFFIXES[1], timestamp, snapshot.get95thPercentile() * factor);
+    history.record(name + SNAPSHOT_SUFFIXES[2], timestamp, snapshot.get99thPercentile() * factor);
+  }
+}
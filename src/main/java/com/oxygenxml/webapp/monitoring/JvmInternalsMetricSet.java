@@ -0,0 +1,375 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Metrics about the internals of the JVM that are not covered by the standard JVM metric sets:
+ * the distribution of the garbage collection pauses, the allocation and promotion rates, the
+ * buffer pools, the JIT compilation time and the safepoint time.
+ *
+ * The pauses and the rates are computed from the notifications sent by the garbage collectors at
+ * the end of each collection. The allocated bytes are the growth of the young generation between
+ * two collections, and the promoted bytes are the growth of the old generation during a collection.
+ * The longest pauses among the recent ones are kept together with their time and cause, so that
+ * they can be correlated with the latency spikes of the requests.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+public class JvmInternalsMetricSet implements MetricSet {
+
+  /**
+   * The time window covered by the pause percentiles, matching the interval of the reporters.
+   */
+  private static final long PAUSE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * The number of recent pauses kept.
+   */
+  static final int RECENT_PAUSES = 128;
+
+  /**
+   * The number of longest pauses reported.
+   */
+  static final int LONGEST_PAUSES = 10;
+
+  /**
+   * A garbage collection pause.
+   */
+  public static class GcPause {
+    /**
+     * The start time of the pause, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+    /**
+     * The name of the collector.
+     */
+    private final String collector;
+    /**
+     * The cause of the collection.
+     */
+    private final String cause;
+    /**
+     * The duration of the pause in milliseconds.
+     */
+    private final long durationMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param timestamp The start time of the pause, in milliseconds since the epoch.
+     * @param collector The name of the collector.
+     * @param cause The cause of the collection.
+     * @param durationMillis The duration of the pause in milliseconds.
+     */
+    GcPause(long timestamp, String collector, String cause, long durationMillis) {
+      this.timestamp = timestamp;
+      this.collector = collector;
+      this.cause = cause;
+      this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return The start time of the pause, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return The name of the collector.
+     */
+    public String getCollector() {
+      return collector;
+    }
+
+    /**
+     * @return The cause of the collection.
+     */
+    public String getCause() {
+      return cause;
+    }
+
+    /**
+     * @return The duration of the pause in milliseconds.
+     */
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+  }
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The pause histograms, by collector name.
+   */
+  private final Map<String, Histogram> pauses = new HashMap<>();
+
+  /**
+   * The rate of the bytes allocated in the young generation.
+   */
+  private final Meter allocationRate;
+
+  /**
+   * The rate of the bytes promoted to the old generation.
+   */
+  private final Meter promotionRate;
+
+  /**
+   * The recent pauses, used as a ring buffer, guarded by itself.
+   */
+  private final GcPause[] recentPauses = new GcPause[RECENT_PAUSES];
+
+  /**
+   * The number of pauses recorded, guarded by the recent pauses.
+   */
+  private long pauseCount;
+
+  /**
+   * The used bytes of the young generation after the previous collection, guarded by this object.
+   */
+  private long youngUsedAfterPreviousGc;
+
+  /**
+   * The collector beans with the registered listener.
+   */
+  private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+  /**
+   * The listener of the garbage collection notifications.
+   */
+  private final NotificationListener listener = this::handleNotification;
+
+  /**
+   * The time of the JVM start, in milliseconds since the epoch.
+   */
+  private final long jvmStartTime;
+
+  /**
+   * Constructor. Starts listening for the garbage collection notifications of the given collectors.
+   *
+   * @param collectors The garbage collector beans.
+   * @param clock The clock.
+   */
+  public JvmInternalsMetricSet(List<GarbageCollectorMXBean> collectors, Clock clock) {
+    this.clock = clock;
+    this.allocationRate = new Meter(clock);
+    this.promotionRate = new Meter(clock);
+    this.jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+    for (GarbageCollectorMXBean collector : collectors) {
+      getPauseHistogram(collector.getName());
+      if (collector instanceof NotificationEmitter) {
+        NotificationEmitter emitter = (NotificationEmitter) collector;
+        emitter.addNotificationListener(listener, null, null);
+        emitters.add(emitter);
+      }
+    }
+  }
+
+  /**
+   * Stops listening for the garbage collection notifications.
+   */
+  public void close() {
+    for (NotificationEmitter emitter : emitters) {
+      try {
+        emitter.removeNotificationListener(listener);
+      } catch (ListenerNotFoundException e) {
+        // Already removed.
+      }
+    }
+    emitters.clear();
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<>();
+    synchronized (pauses) {
+      for (Map.Entry<String, Histogram> entry : pauses.entrySet()) {
+        metrics.put("gc.pause." + entry.getKey(), entry.getValue());
+      }
+    }
+    metrics.put("gc.pauses.longest", (Gauge<List<GcPause>>) this::getLongestPauses);
+    metrics.put("gc.allocation.rate", allocationRate);
+    metrics.put("gc.promotion.rate", promotionRate);
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      String prefix = "buffers." + pool.getName().replace(' ', '-');
+      metrics.put(prefix + ".count", (Gauge<Long>) pool::getCount);
+      metrics.put(prefix + ".used", (Gauge<Long>) pool::getMemoryUsed);
+      metrics.put(prefix + ".capacity", (Gauge<Long>) pool::getTotalCapacity);
+    }
+    CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    if (compilation != null && compilation.isCompilationTimeMonitoringSupported()) {
+      metrics.put("jit.compilation.millis", (Gauge<Long>) compilation::getTotalCompilationTime);
+    }
+    LongSupplier safepointTime = getSafepointTime();
+    if (safepointTime != null) {
+      metrics.put("safepoint.millis", (Gauge<Long>) safepointTime::getAsLong);
+    }
+    return metrics;
+  }
+
+  /**
+   * @return The longest recent pauses, longest first.
+   */
+  List<GcPause> getLongestPauses() {
+    List<GcPause> longest = new ArrayList<>();
+    synchronized (recentPauses) {
+      for (GcPause pause : recentPauses) {
+        if (pause != null) {
+          longest.add(pause);
+        }
+      }
+    }
+    longest.sort(Comparator.comparingLong(GcPause::getDurationMillis).reversed()
+        .thenComparing(Comparator.comparingLong(GcPause::getTimestamp).reversed()));
+    return Collections.unmodifiableList(new ArrayList<>(longest.subList(0, Math.min(LONGEST_PAUSES, longest.size()))));
+  }
+
+  /**
+   * Handles a notification sent by a garbage collector.
+   *
+   * @param notification The notification.
+   * @param handback The handback object, not used.
+   */
+  private void handleNotification(Notification notification, Object handback) {
+    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+      return;
+    }
+    GarbageCollectionNotificationInfo info =
+        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    GcInfo gcInfo = info.getGcInfo();
+    recordCollection(info.getGcName(), info.getGcCause(), jvmStartTime + gcInfo.getStartTime(),
+        gcInfo.getDuration(), gcInfo.getMemoryUsageBeforeGc(), gcInfo.getMemoryUsageAfterGc());
+  }
+
+  /**
+   * Records a garbage collection.
+   *
+   * @param collector The name of the collector.
+   * @param cause The cause of the collection.
+   * @param timestamp The start time of the collection, in milliseconds since the epoch.
+   * @param durationMillis The duration of the collection in milliseconds.
+   * @param before The usage of the memory pools before the collection.
+   * @param after The usage of the memory pools after the collection.
+   */
+  void recordCollection(String collector, String cause, long timestamp, long durationMillis,
+      Map<String, MemoryUsage> before, Map<String, MemoryUsage> after) {
+    getPauseHistogram(collector).update(durationMillis);
+    synchronized (recentPauses) {
+      recentPauses[(int) (pauseCount % RECENT_PAUSES)] = new GcPause(timestamp, collector, cause, durationMillis);
+      pauseCount++;
+    }
+
+    long youngBefore = 0;
+    long youngAfter = 0;
+    long oldBefore = 0;
+    long oldAfter = 0;
+    for (Map.Entry<String, MemoryUsage> entry : before.entrySet()) {
+      MemoryUsage usageAfter = after.get(entry.getKey());
+      if (usageAfter == null) {
+        continue;
+      }
+      if (isYoungPool(entry.getKey())) {
+        youngBefore += entry.getValue().getUsed();
+        youngAfter += usageAfter.getUsed();
+      } else if (isOldPool(entry.getKey())) {
+        oldBefore += entry.getValue().getUsed();
+        oldAfter += usageAfter.getUsed();
+      }
+    }
+    synchronized (this) {
+      allocationRate.mark(Math.max(0, youngBefore - youngUsedAfterPreviousGc));
+      youngUsedAfterPreviousGc = youngAfter;
+    }
+    promotionRate.mark(Math.max(0, oldAfter - oldBefore));
+  }
+
+  /**
+   * @param collector The name of the collector.
+   *
+   * @return The pause histogram of the collector, created if needed.
+   */
+  private Histogram getPauseHistogram(String collector) {
+    synchronized (pauses) {
+      return pauses.computeIfAbsent(collector.replace(' ', '-'),
+          name -> new SummingHistogram(new WindowedLogLinearReservoir(clock, PAUSE_WINDOW_NANOS)));
+    }
+  }
+
+  /**
+   * @param pool The name of a memory pool.
+   *
+   * @return <code>true</code> if the new objects are allocated in the pool.
+   */
+  private static boolean isYoungPool(String pool) {
+    return pool.contains("Eden") || pool.contains("Nursery");
+  }
+
+  /**
+   * @param pool The name of a memory pool.
+   *
+   * @return <code>true</code> if the pool holds the objects that survived several collections.
+   */
+  private static boolean isOldPool(String pool) {
+    return pool.contains("Old Gen") || pool.contains("Tenured");
+  }
+
+  /**
+   * Returns the total time spent in safepoints, if the JVM exposes it. It is only available on
+   * HotSpot, when the <code>sun.management</code> package is exported to this plugin.
+   *
+   * @return The supplier of the safepoint time in milliseconds, or null if not available.
+   */
+  private static LongSupplier getSafepointTime() {
+    try {
+      Class<?> helper = Class.forName("sun.management.ManagementFactoryHelper");
+      Object runtimeBean = helper.getMethod("getHotspotRuntimeMBean").invoke(null);
+      Method safepointTime = runtimeBean.getClass().getMethod("getTotalSafepointTime");
+      safepointTime.setAccessible(true);
+      safepointTime.invoke(runtimeBean);
+      return () -> {
+        try {
+          return (Long) safepointTime.invoke(runtimeBean);
+        } catch (ReflectiveOperationException e) {
+          return -1L;
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+      log.debug("The safepoint time is not available: {}", e.toString());
+      return null;
+    }
+  }
+}
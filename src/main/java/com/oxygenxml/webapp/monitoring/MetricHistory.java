@@ -0,0 +1,510 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded time-series store for the values of the metrics, kept on the local disk.
+ *
+ * Each series is a fixed-size file, mapped in memory, that contains a ring of slots for each
+ * resolution tier. A value is added to the current slot of every tier, so the coarser tiers hold
+ * the downsampled values for a longer period. Each slot keeps the average and the maximum of the
+ * values added during its interval. The files never grow: old slots are overwritten. The number of
+ * series is limited, and the series that are no longer recorded can be deleted.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class MetricHistory {
+
+  /**
+   * The resolution tiers.
+   */
+  static final Tier[] TIERS = {
+      new Tier(TimeUnit.SECONDS.toMillis(10), TimeUnit.DAYS.toMillis(1)),
+      new Tier(TimeUnit.MINUTES.toMillis(5), TimeUnit.DAYS.toMillis(30)),
+  };
+
+  /**
+   * The default maximum number of series.
+   */
+  static final int DEFAULT_MAX_SERIES = 200;
+
+  /**
+   * The extension of the series files.
+   */
+  private static final String EXTENSION = ".ring";
+
+  /**
+   * The magic number at the start of the series files, followed by the format version.
+   */
+  private static final int MAGIC = 0x57414D48;
+
+  /**
+   * The version of the file format.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * The maximum length of the encoded metric name stored in the header.
+   */
+  private static final int MAX_NAME_BYTES = 256;
+
+  /**
+   * The size of the header: magic, version, name length and name.
+   */
+  private static final int HEADER_BYTES = 12 + MAX_NAME_BYTES;
+
+  /**
+   * The size of a slot: start time, sum, maximum and count of the values.
+   */
+  private static final int SLOT_BYTES = 32;
+
+  /**
+   * A resolution tier.
+   */
+  static class Tier {
+    /**
+     * The interval of a slot, in milliseconds.
+     */
+    final long resolutionMillis;
+    /**
+     * The period covered by the tier, in milliseconds.
+     */
+    final long retentionMillis;
+    /**
+     * The number of slots.
+     */
+    final int slots;
+
+    /**
+     * Constructor.
+     *
+     * @param resolutionMillis The interval of a slot, in milliseconds.
+     * @param retentionMillis The period covered by the tier, in milliseconds.
+     */
+    Tier(long resolutionMillis, long retentionMillis) {
+      this.resolutionMillis = resolutionMillis;
+      this.retentionMillis = retentionMillis;
+      this.slots = (int) (retentionMillis / resolutionMillis);
+    }
+  }
+
+  /**
+   * The values of a series over a period.
+   */
+  public static class Range {
+    /**
+     * The name of the metric.
+     */
+    private final String metric;
+    /**
+     * The interval between two points, in milliseconds.
+     */
+    private final long resolutionMillis;
+    /**
+     * The points, as arrays of time in milliseconds since the epoch, average and maximum.
+     */
+    private final List<double[]> points;
+
+    /**
+     * Constructor.
+     *
+     * @param metric The name of the metric.
+     * @param resolutionMillis The interval between two points, in milliseconds.
+     * @param points The points.
+     */
+    Range(String metric, long resolutionMillis, List<double[]> points) {
+      this.metric = metric;
+      this.resolutionMillis = resolutionMillis;
+      this.points = points;
+    }
+
+    /**
+     * @return The name of the metric.
+     */
+    public String getMetric() {
+      return metric;
+    }
+
+    /**
+     * @return The interval between two points, in milliseconds.
+     */
+    public long getResolutionMillis() {
+      return resolutionMillis;
+    }
+
+    /**
+     * @return The points, as arrays of time in milliseconds since the epoch, average and maximum.
+     */
+    public List<double[]> getPoints() {
+      return points;
+    }
+  }
+
+  /**
+   * The directory of the series files.
+   */
+  private final Path directory;
+
+  /**
+   * The maximum number of series. New series are not created above it.
+   */
+  private final int maxSeries;
+
+  /**
+   * The open series, by metric name.
+   */
+  private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor. Opens the series already stored in the directory.
+   *
+   * @param directory The directory of the series files, created if needed.
+   *
+   * @throws IOException If the directory cannot be read.
+   */
+  MetricHistory(Path directory) throws IOException {
+    this(directory, DEFAULT_MAX_SERIES);
+  }
+
+  /**
+   * Constructor. Opens the series already stored in the directory.
+   *
+   * @param directory The directory of the series files, created if needed.
+   * @param maxSeries The maximum number of series. New series are not created above it.
+   *
+   * @throws IOException If the directory cannot be read.
+   */
+  MetricHistory(Path directory, int maxSeries) throws IOException {
+    this.directory = directory;
+    this.maxSeries = maxSeries;
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+      for (Path file : files) {
+        try {
+          Series existing = new Series(file, null);
+          series.put(existing.metric, existing);
+        } catch (IOException e) {
+          log.warn("Ignoring the metric history file {}: {}", file, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a value to a series, creating it if needed. The value is ignored if the series does not
+   * exist and the maximum number of series was reached.
+   *
+   * @param metric The name of the metric.
+   * @param timestamp The time of the value, in milliseconds since the epoch.
+   * @param value The value.
+   *
+   * @throws IOException If the series file cannot be created.
+   */
+  void record(String metric, long timestamp, double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    Series target = series.get(metric);
+    if (target == null) {
+      if (series.size() >= maxSeries) {
+        log.debug("Not recording the history of {}, there are already {} series.", metric, series.size());
+        return;
+      }
+      target = new Series(directory.resolve(fileName(metric)), metric);
+      series.put(metric, target);
+    }
+    target.record(timestamp, value);
+  }
+
+  /**
+   * Returns the values of a series over a period, from the finest tier that covers the period.
+   *
+   * @param metric The name of the metric.
+   * @param from The start of the period, in milliseconds since the epoch.
+   * @param to The end of the period, in milliseconds since the epoch.
+   * @param now The current time, in milliseconds since the epoch.
+   *
+   * @return The values, or null if the metric has no history.
+   */
+  Range query(String metric, long from, long to, long now) {
+    Series source = series.get(metric);
+    if (source == null) {
+      return null;
+    }
+    int tierIndex = 0;
+    while (tierIndex < TIERS.length - 1 && now - from > TIERS[tierIndex].retentionMillis) {
+      tierIndex++;
+    }
+    return new Range(metric, TIERS[tierIndex].resolutionMillis, source.read(tierIndex, from, to));
+  }
+
+  /**
+   * Deletes the series that are not active and were not recorded for a while, e.g. the ones of 
+   * the metrics that are no longer registered.
+   *
+   * @param active The names of the series that are kept regardless of their last value.
+   * @param now The current time, in milliseconds since the epoch.
+   * @param idleMillis The duration without values after which an inactive series is deleted.
+   */
+  void deleteIdleSeries(Set<String> active, long now, long idleMillis) {
+    for (Iterator<Series> iterator = series.values().iterator(); iterator.hasNext();) {
+      Series idle = iterator.next();
+      if (!active.contains(idle.metric) && now - idle.getLastRecordMillis() > idleMillis) {
+        iterator.remove();
+        idle.delete();
+      }
+    }
+  }
+
+  /**
+   * @return The names of the metrics with history, sorted.
+   */
+  List<String> getMetrics() {
+    List<String> metrics = new ArrayList<>(series.keySet());
+    Collections.sort(metrics);
+    return metrics;
+  }
+
+  /**
+   * Closes the series files.
+   */
+  void close() {
+    for (Series open : series.values()) {
+      open.close();
+    }
+    series.clear();
+  }
+
+  /**
+   * @param metric The name of the metric.
+   *
+   * @return The name of the file of the series, with the characters not allowed in file names replaced.
+   */
+  private static String fileName(String metric) {
+    StringBuilder name = new StringBuilder(metric.length() + EXTENSION.length() + 9);
+    for (int i = 0; i < metric.length(); i++) {
+      char c = metric.charAt(i);
+      boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '.' || c == '-' || c == '_';
+      name.append(allowed ? c : '_');
+    }
+    // The hash code distinguishes the names that differ only by replaced characters.
+    name.append('-').append(Integer.toHexString(metric.hashCode()));
+    return name.append(EXTENSION).toString();
+  }
+
+  /**
+   * A series stored in a memory-mapped file.
+   */
+  private static class Series {
+    /**
+     * The name of the metric.
+     */
+    private final String metric;
+    /**
+     * The file.
+     */
+    private final Path file;
+    /**
+     * The start time of the latest slot with values, in milliseconds since the epoch, guarded by this object.
+     */
+    private long lastRecordMillis;
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel channel;
+    /**
+     * The mapped content of the file, guarded by this object.
+     */
+    private final MappedByteBuffer buffer;
+    /**
+     * The offset of each tier in the file.
+     */
+    private final int[] tierOffsets = new int[TIERS.length];
+
+    /**
+     * Constructor. Opens an existing file or creates a new one.
+     *
+     * @param file The file.
+     * @param metric The name of the metric for a new file, or null to read it from an existing file.
+     *
+     * @throws IOException If the file cannot be opened or has an unexpected format.
+     */
+    Series(Path file, String metric) throws IOException {
+      this.file = file;
+      int size = HEADER_BYTES;
+      for (int i = 0; i < TIERS.length; i++) {
+        tierOffsets[i] = size;
+        size += TIERS[i].slots * SLOT_BYTES;
+      }
+      boolean created = !Files.exists(file);
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        if (!created && channel.size() != size) {
+          throw new IOException("Unexpected file size " + channel.size());
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (created) {
+          byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+          if (name.length > MAX_NAME_BYTES) {
+            throw new IOException("Metric name too long: " + metric);
+          }
+          buffer.putInt(0, MAGIC);
+          buffer.putInt(4, VERSION);
+          buffer.putInt(8, name.length);
+          ByteBuffer nameBuffer = buffer.duplicate();
+          nameBuffer.position(12);
+          nameBuffer.put(name);
+          this.metric = metric;
+        } else {
+          if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unexpected file format");
+          }
+          byte[] name = new byte[Math.min(MAX_NAME_BYTES, Math.max(0, buffer.getInt(8)))];
+          ByteBuffer nameBuffer = buffer.duplicate();
+          nameBuffer.position(12);
+          nameBuffer.get(name);
+          this.metric = new String(name, StandardCharsets.UTF_8);
+          lastRecordMillis = findLastRecord();
+        }
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Adds a value to the current slot of each tier.
+     *
+     * @param timestamp The time of the value, in milliseconds since the epoch.
+     * @param value The value.
+     */
+    synchronized void record(long timestamp, double value) {
+      lastRecordMillis = Math.max(lastRecordMillis, timestamp);
+      for (int i = 0; i < TIERS.length; i++) {
+        Tier tier = TIERS[i];
+        long slotTime = Math.floorDiv(timestamp, tier.resolutionMillis) * tier.resolutionMillis;
+        int offset = slotOffset(i, slotTime);
+        if (buffer.getLong(offset) != slotTime) {
+          // The slot holds values from a previous round of the ring.
+          buffer.putLong(offset, slotTime);
+          buffer.putDouble(offset + 8, value);
+          buffer.putDouble(offset + 16, value);
+          buffer.putLong(offset + 24, 1);
+        } else {
+          buffer.putDouble(offset + 8, buffer.getDouble(offset + 8) + value);
+          buffer.putDouble(offset + 16, Math.max(buffer.getDouble(offset + 16), value));
+          buffer.putLong(offset + 24, buffer.getLong(offset + 24) + 1);
+        }
+      }
+    }
+
+    /**
+     * Reads the slots of a tier over a period.
+     *
+     * @param tierIndex The index of the tier.
+     * @param from The start of the period, in milliseconds since the epoch.
+     * @param to The end of the period, in milliseconds since the epoch.
+     *
+     * @return The points, as arrays of time, average and maximum.
+     */
+    synchronized List<double[]> read(int tierIndex, long from, long to) {
+      Tier tier = TIERS[tierIndex];
+      long start = Math.max(Math.floorDiv(from, tier.resolutionMillis),
+          Math.floorDiv(to, tier.resolutionMillis) - tier.slots + 1) * tier.resolutionMillis;
+      List<double[]> points = new ArrayList<>();
+      if (to < start) {
+        return points;
+      }
+      // The ring holds at most one round of slots. Counting them avoids overflows near the maximum time.
+      long slots = Math.min(tier.slots, (to - start) / tier.resolutionMillis + 1);
+      for (int i = 0; i < slots; i++) {
+        long slotTime = start + i * tier.resolutionMillis;
+        int offset = slotOffset(tierIndex, slotTime);
+        long count = buffer.getLong(offset + 24);
+        if (buffer.getLong(offset) == slotTime && count > 0) {
+          points.add(new double[] {slotTime, buffer.getDouble(offset + 8) / count, buffer.getDouble(offset + 16)});
+        }
+      }
+      return points;
+    }
+
+    /**
+     * @param tierIndex The index of the tier.
+     * @param slotTime The start time of the slot.
+     *
+     * @return The offset of the slot in the file.
+     */
+    private int slotOffset(int tierIndex, long slotTime) {
+      Tier tier = TIERS[tierIndex];
+      int slot = (int) Math.floorMod(slotTime / tier.resolutionMillis, (long) tier.slots);
+      return tierOffsets[tierIndex] + slot * SLOT_BYTES;
+    }
+
+    /**
+     * @return The start time of the latest slot with values, in milliseconds since the epoch.
+     */
+    private long findLastRecord() {
+      long last = 0;
+      for (int i = 0; i < TIERS.length; i++) {
+        for (int slot = 0; slot < TIERS[i].slots; slot++) {
+          int offset = tierOffsets[i] + slot * SLOT_BYTES;
+          if (buffer.getLong(offset + 24) > 0) {
+            last = Math.max(last, buffer.getLong(offset));
+          }
+        }
+      }
+      return last;
+    }
+
+    /**
+     * @return The time of the last value, in milliseconds since the epoch.
+     */
+    synchronized long getLastRecordMillis() {
+      return lastRecordMillis;
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    synchronized void delete() {
+      close();
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Cannot delete the metric history of {}: {}", metric, e.getMessage());
+      }
+    }
+
+    /**
+     * Closes the file. The content is written to the disk by the operating system.
+     */
+    synchronized void close() {
+      try {
+        buffer.force();
+        channel.close();
+      } catch (IOException e) {
+        log.warn("Cannot close the metric history of {}: {}", metric, e.getMessage());
+      }
+    }
+  }
+}
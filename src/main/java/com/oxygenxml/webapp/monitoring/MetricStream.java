@@ -0,0 +1,442 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pushes the main metrics to the connected clients as Server-Sent Events.
+ *
+ * A single producer thread samples the metrics once per interval, no matter how many clients are
+ * connected, and encodes one event that is written to all of them. The first event sent to a client
+ * contains all the values, the next ones only the values that changed. The events are written
+ * with non-blocking I/O: a client that did not read the previous event yet is disconnected
+ * instead of buffering events for it. The browsers reconnect automatically.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class MetricStream {
+
+  /**
+   * The labels of the requests whose metrics are streamed.
+   */
+  private static final List<String> LABELS = Arrays.asList(MonitoringFilter.EDIT_LABEL, MonitoringFilter.DOC_LOAD_LABEL);
+
+  /**
+   * The number of nanoseconds in a millisecond.
+   */
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * The reconnection delay sent to the browsers with the first event.
+   */
+  private static final byte[] RETRY = "retry: 5000\n".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * The start of the data of an event.
+   */
+  private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * The end of an event.
+   */
+  private static final byte[] END_OF_EVENT = "\n\n".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * The registry of the streamed metrics.
+   */
+  private final MetricRegistry registry;
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The interval between two events, in milliseconds.
+   */
+  private final long intervalMillis;
+
+  /**
+   * The maximum number of connected clients.
+   */
+  private final int maxClients;
+
+  /**
+   * The factory of the JSON generators.
+   */
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  /**
+   * The connected clients.
+   */
+  private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The number of clients disconnected because they did not keep up with the events.
+   */
+  private final Counter slowClients;
+
+  /**
+   * The values sent in the previous event, only used by the producer.
+   */
+  private Map<String, Double> previousValues = Collections.emptyMap();
+
+  /**
+   * The thread that produces the events, started when the first client connects, guarded by this object.
+   */
+  private ScheduledExecutorService producer;
+
+  /**
+   * Constructor.
+   *
+   * @param registry The registry of the streamed metrics, where the stream also registers its own metrics.
+   * @param clock The clock.
+   * @param intervalMillis The interval between two events, in milliseconds.
+   * @param maxClients The maximum number of connected clients.
+   */
+  MetricStream(MetricRegistry registry, Clock clock, long intervalMillis, int maxClients) {
+    this.registry = registry;
+    this.clock = clock;
+    this.intervalMillis = intervalMillis;
+    this.maxClients = maxClients;
+    this.slowClients = registry.counter("stream.clients.slow");
+    registry.gauge("stream.clients", () -> clients::size);
+  }
+
+  /**
+   * Starts streaming the events to the client of a request.
+   *
+   * @param req The request, which must support asynchronous processing.
+   * @param resp The response.
+   *
+   * @return <code>false</code> if the maximum number of clients are already connected.
+   *
+   * @throws IOException If the response cannot be written.
+   */
+  boolean subscribe(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (clients.size() >= maxClients) {
+      return false;
+    }
+    resp.setContentType("text/event-stream");
+    resp.setCharacterEncoding("UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    AsyncContext asyncContext = req.startAsync();
+    asyncContext.setTimeout(0);
+    Client client = new Client(asyncContext, resp.getOutputStream());
+    asyncContext.addListener(client);
+    clients.add(client);
+    client.out.setWriteListener(client);
+    startProducer();
+    return true;
+  }
+
+  /**
+   * Starts the producer thread, if not already started.
+   */
+  private synchronized void startProducer() {
+    if (producer == null) {
+      producer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "monitoring-stream");
+        thread.setDaemon(true);
+        return thread;
+      });
+      producer.scheduleAtFixedRate(() -> {
+        try {
+          publish();
+        } catch (RuntimeException e) {
+          // An exception would cancel the next executions.
+          log.warn("Cannot publish the metrics stream: {}", e.getMessage(), e);
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Samples the metrics and writes an event to each connected client.
+   */
+  void publish() {
+    if (clients.isEmpty()) {
+      return;
+    }
+    long time = clock.getTime();
+    Map<String, Double> values = sample();
+    Map<String, Double> changed = new LinkedHashMap<>();
+    for (Map.Entry<String, Double> entry : values.entrySet()) {
+      if (!Objects.equals(previousValues.get(entry.getKey()), entry.getValue())) {
+        changed.put(entry.getKey(), entry.getValue());
+      }
+    }
+    previousValues = values;
+
+    byte[] delta = null;
+    byte[] keyframe = null;
+    for (Client client : clients) {
+      if (client.keyframeSent) {
+        if (delta == null) {
+          delta = encode(time, changed, false);
+        }
+        client.send(delta);
+      } else {
+        if (keyframe == null) {
+          keyframe = encode(time, values, true);
+        }
+        client.keyframeSent = true;
+        client.send(RETRY, keyframe);
+      }
+    }
+  }
+
+  /**
+   * @return The current values of the streamed metrics, rounded to two decimals.
+   */
+  private Map<String, Double> sample() {
+    Map<String, Metric> metrics = registry.getMetrics();
+    Map<String, Double> values = new LinkedHashMap<>();
+    for (String label : LABELS) {
+      Metric duration = metrics.get("duration." + label);
+      if (duration instanceof Timer) {
+        Timer timer = (Timer) duration;
+        put(values, label + ".rate", timer.getOneMinuteRate());
+        Snapshot snapshot = timer.getSnapshot();
+        put(values, label + ".p50", snapshot.getMedian() / NANOS_PER_MILLI);
+        put(values, label + ".p95", snapshot.get95thPercentile() / NANOS_PER_MILLI);
+        put(values, label + ".p99", snapshot.get99thPercentile() / NANOS_PER_MILLI);
+      }
+      Metric errors = metrics.get("errors.rate." + label);
+      if (errors instanceof Meter) {
+        put(values, label + ".errors", ((Meter) errors).getOneMinuteRate());
+      }
+      putGauge(values, label + ".in-flight", metrics.get("concurrency.in-flight." + label));
+    }
+    putGauge(values, "heap.used", metrics.get("memory.heap.used"));
+    putGauge(values, "heap.max", metrics.get("memory.heap.max"));
+    return values;
+  }
+
+  /**
+   * Adds the value of a numeric gauge.
+   *
+   * @param values The values.
+   * @param key The key of the value.
+   * @param metric The gauge, or null if not registered.
+   */
+  private static void putGauge(Map<String, Double> values, String key, Metric metric) {
+    if (metric instanceof Gauge) {
+      Object value;
+      try {
+        value = ((Gauge<?>) metric).getValue();
+      } catch (RuntimeException e) {
+        log.debug("Cannot compute gauge {}", key, e);
+        return;
+      }
+      if (value instanceof Number) {
+        put(values, key, ((Number) value).doubleValue());
+      }
+    }
+  }
+
+  /**
+   * Adds a value rounded to two decimals, so that insignificant changes are not streamed.
+   *
+   * @param values The values.
+   * @param key The key of the value.
+   * @param value The value.
+   */
+  private static void put(Map<String, Double> values, String key, double value) {
+    if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+      values.put(key, Math.round(value * 100) / 100.0);
+    }
+  }
+
+  /**
+   * Encodes an event.
+   *
+   * @param time The time of the values, in milliseconds since the epoch.
+   * @param values The values.
+   * @param keyframe <code>true</code> if the event contains all the values.
+   *
+   * @return The encoded event.
+   */
+  private byte[] encode(long time, Map<String, Double> values, boolean keyframe) {
+    ByteArrayOutputStream event = new ByteArrayOutputStream(64 + values.size() * 24);
+    event.writeBytes(DATA);
+    try (JsonGenerator generator = jsonFactory.createGenerator(event)) {
+      generator.writeStartObject();
+      generator.writeNumberField("time", time);
+      if (keyframe) {
+        generator.writeBooleanField("keyframe", true);
+      }
+      for (Map.Entry<String, Double> entry : values.entrySet()) {
+        double value = entry.getValue();
+        if (value == Math.rint(value)) {
+          generator.writeNumberField(entry.getKey(), (long) value);
+        } else {
+          generator.writeNumberField(entry.getKey(), value);
+        }
+      }
+      generator.writeEndObject();
+    } catch (IOException e) {
+      // Not thrown when writing to memory.
+      throw new IllegalStateException(e);
+    }
+    event.writeBytes(END_OF_EVENT);
+    return event.toByteArray();
+  }
+
+  /**
+   * @return The number of connected clients.
+   */
+  int getClientCount() {
+    return clients.size();
+  }
+
+  /**
+   * Stops the producer and disconnects all the clients.
+   */
+  synchronized void close() {
+    if (producer != null) {
+      producer.shutdownNow();
+      producer = null;
+    }
+    for (Client client : clients) {
+      client.disconnect();
+    }
+  }
+
+  /**
+   * A connected client.
+   */
+  private class Client implements AsyncListener, WriteListener {
+    /**
+     * The asynchronous context of the request.
+     */
+    private final AsyncContext asyncContext;
+    /**
+     * The output stream of the response, in non-blocking mode.
+     */
+    private final ServletOutputStream out;
+    /**
+     * <code>true</code> after the first event, with all the values, was sent.
+     */
+    private boolean keyframeSent;
+    /**
+     * <code>true</code> after the client was disconnected.
+     */
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param asyncContext The asynchronous context of the request.
+     * @param out The output stream of the response.
+     */
+    Client(AsyncContext asyncContext, ServletOutputStream out) {
+      this.asyncContext = asyncContext;
+      this.out = out;
+    }
+
+    /**
+     * Writes an event, or disconnects the client if the previous one was not written yet.
+     *
+     * @param chunks The chunks of the event.
+     */
+    void send(byte[]... chunks) {
+      try {
+        if (!out.isReady()) {
+          slowClients.inc();
+          disconnect();
+          return;
+        }
+        for (byte[] chunk : chunks) {
+          out.write(chunk);
+        }
+        if (out.isReady()) {
+          out.flush();
+        }
+      } catch (IOException | IllegalStateException e) {
+        log.debug("Cannot write the metrics stream: {}", e.getMessage());
+        disconnect();
+      }
+    }
+
+    /**
+     * Disconnects the client.
+     */
+    void disconnect() {
+      if (disconnected.compareAndSet(false, true)) {
+        clients.remove(this);
+        try {
+          asyncContext.complete();
+        } catch (IllegalStateException e) {
+          // Already completed by the container.
+        }
+      }
+    }
+
+    @Override
+    public void onWritePossible() {
+      // The events are written by the producer.
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      disconnect();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      disconnected.set(true);
+      clients.remove(this);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      disconnect();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      disconnect();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // Not restarted.
+    }
+  }
+}
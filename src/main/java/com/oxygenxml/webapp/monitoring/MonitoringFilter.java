@@ -1,11 +1,35 @@
 package com.oxygenxml.webapp.monitoring;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -13,19 +37,18 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import javax.ws.rs.Path;
 
 import com.codahale.metrics.Clock;
-import com.codahale.metrics.ExponentiallyDecayingReservoir;
-import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.RatioGauge;
 import com.codahale.metrics.Timer;
-import com.codahale.metrics.Timer.Context;
 import com.google.common.annotations.VisibleForTesting;
 
 import lombok.extern.slf4j.Slf4j;
@@ -70,14 +93,281 @@ public class MonitoringFilter implements Filter, PluginExtension {
   private static final String DOC_LOAD_PATH = RESTDocumentManager.class.getAnnotation(Path.class).value() + "/load";
 
   /**
-   * Map between the REST method identifier and its duration Timer.
+   * Option that enables per-operation labels for the edit requests.
    */
-  private Map<String, Timer> durations;
+  static final String OPERATION_LABELS_OPTION = "MONITORING_OPERATION_LABELS";
 
   /**
-   * Map between the REST method identifier and its error meter.
+   * Option for the maximum number of per-operation labels.
    */
-  private Map<String, Meter> errors;
+  static final String OPERATION_LABELS_MAX_OPTION = "MONITORING_OPERATION_LABELS_MAX";
+
+  /**
+   * Option for the number of minutes after which an unused per-operation label is removed.
+   */
+  static final String OPERATION_LABELS_IDLE_MINUTES_OPTION = "MONITORING_OPERATION_LABELS_IDLE_MINUTES";
+
+  /**
+   * Option for the number of slow requests kept for each label.
+   */
+  static final String SLOW_REQUESTS_MAX_OPTION = "MONITORING_SLOW_REQUESTS_MAX";
+
+  /**
+   * Option for the number of minutes a slow request is kept.
+   */
+  static final String SLOW_REQUESTS_RETENTION_MINUTES_OPTION = "MONITORING_SLOW_REQUESTS_RETENTION_MINUTES";
+
+  /**
+   * Option for the durations in milliseconds above which the requests of each label are considered 
+   * slow, e.g. <code>edit=100,doc-load=5000</code>.
+   */
+  static final String SLOW_REQUEST_THRESHOLDS_OPTION = "MONITORING_SLOW_REQUEST_THRESHOLDS";
+
+  /**
+   * Option for the factor applied to the p99 duration of a label to obtain its slow request threshold.
+   * The configured thresholds are used as a minimum. Disabled if not positive.
+   */
+  static final String SLOW_REQUEST_P99_FACTOR_OPTION = "MONITORING_SLOW_REQUEST_P99_FACTOR";
+
+  /**
+   * Option for the size of the request thread pool of the servlet container. When set, the 
+   * <code>concurrency.saturation</code> gauge reports the fraction of the pool needed by the requests.
+   */
+  static final String CONTAINER_THREADS_OPTION = "MONITORING_CONTAINER_THREADS";
+
+  /**
+   * Option that enables recording the CPU time and the memory allocated by the request threads.
+   */
+  static final String THREAD_RESOURCES_OPTION = "MONITORING_THREAD_RESOURCES";
+
+  /**
+   * Option that enables tracking the documents and the users that account for the most request time.
+   */
+  static final String HEAVY_HITTERS_OPTION = "MONITORING_HEAVY_HITTERS";
+
+  /**
+   * Option for the number of documents and users tracked.
+   */
+  static final String HEAVY_HITTERS_CAPACITY_OPTION = "MONITORING_HEAVY_HITTERS_CAPACITY";
+
+  /**
+   * Option for the number of minutes after which the totals of the documents and users are halved.
+   */
+  static final String HEAVY_HITTERS_HALF_LIFE_MINUTES_OPTION = "MONITORING_HEAVY_HITTERS_HALF_LIFE_MINUTES";
+
+  /**
+   * Option that enables rejecting low-priority requests when the edit requests are slow or too many.
+   */
+  static final String LOAD_SHEDDING_OPTION = "MONITORING_LOAD_SHEDDING";
+
+  /**
+   * Option for the labels of the requests that can be rejected, e.g. <code>others,doc-load</code>.
+   */
+  static final String LOAD_SHEDDING_LABELS_OPTION = "MONITORING_LOAD_SHEDDING_LABELS";
+
+  /**
+   * Option for the p95 duration of the edit requests in milliseconds above which requests are rejected. 
+   */
+  static final String LOAD_SHEDDING_EDIT_P95_MILLIS_OPTION = "MONITORING_LOAD_SHEDDING_EDIT_P95_MILLIS";
+
+  /**
+   * Option for the number of edit requests in progress above which requests are rejected. 
+   * Disabled if not positive.
+   */
+  static final String LOAD_SHEDDING_EDIT_IN_FLIGHT_OPTION = "MONITORING_LOAD_SHEDDING_EDIT_IN_FLIGHT";
+
+  /**
+   * Option for the number of seconds after which the clients are asked to retry the rejected requests.
+   */
+  static final String LOAD_SHEDDING_RETRY_AFTER_SECONDS_OPTION = "MONITORING_LOAD_SHEDDING_RETRY_AFTER_SECONDS";
+
+  /**
+   * Option that enables the continuous flight recording.
+   */
+  static final String JFR_OPTION = "MONITORING_JFR";
+
+  /**
+   * Option for the number of minutes of events kept by the flight recording.
+   */
+  static final String JFR_MAX_AGE_MINUTES_OPTION = "MONITORING_JFR_MAX_AGE_MINUTES";
+
+  /**
+   * Option for the maximum size of the events kept by the flight recording, in megabytes.
+   */
+  static final String JFR_MAX_SIZE_MB_OPTION = "MONITORING_JFR_MAX_SIZE_MB";
+
+  /**
+   * Option for the directory where the flight recording is dumped automatically.
+   */
+  static final String JFR_DUMP_DIRECTORY_OPTION = "MONITORING_JFR_DUMP_DIRECTORY";
+
+  /**
+   * Option for the number of automatic dumps of the flight recording that are kept.
+   */
+  static final String JFR_MAX_DUMPS_OPTION = "MONITORING_JFR_MAX_DUMPS";
+
+  /**
+   * Option for the minimum number of minutes between two automatic dumps of the flight recording.
+   */
+  static final String JFR_DUMP_COOLDOWN_MINUTES_OPTION = "MONITORING_JFR_DUMP_COOLDOWN_MINUTES";
+
+  /**
+   * Option for the p99 duration of the edit requests in milliseconds above which the flight recording is dumped.
+   */
+  static final String JFR_EDIT_P99_MILLIS_OPTION = "MONITORING_JFR_EDIT_P99_MILLIS";
+
+  /**
+   * Option for the percentage of failed edit requests above which the flight recording is dumped.
+   */
+  static final String JFR_EDIT_ERROR_PERCENTAGE_OPTION = "MONITORING_JFR_EDIT_ERROR_PERCENTAGE";
+
+  /**
+   * The request parameter that contains the URL of the loaded document.
+   */
+  private static final String DOC_LOAD_URL_PARAM = "url";
+
+  /**
+   * The slow request threshold for labels without a configured one.
+   */
+  private static final long SLOW_REQUEST_DEFAULT_THRESHOLD_MILLIS = 100;
+
+  /**
+   * The minimum interval between two log messages about slow requests.
+   */
+  private static final long SLOW_REQUEST_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The interval between two runs of the periodic maintenance tasks.
+   */
+  private static final long MAINTENANCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Marks a request as recorded, so that it is recorded once even if several async events complete it.
+   */
+  private static final AtomicIntegerFieldUpdater<ResponseWrapper> RECORDED = 
+      AtomicIntegerFieldUpdater.newUpdater(ResponseWrapper.class, "recorded");
+
+  /**
+   * Classifier that maps each request to the metrics of its label.
+   */
+  private RequestClassifier classifier;
+
+  /**
+   * The metrics of the edit requests.
+   */
+  private RequestMetrics editMetrics;
+
+  /**
+   * The metrics of the document load requests.
+   */
+  private RequestMetrics docLoadMetrics;
+
+  /**
+   * The URI prefix of the edit requests, followed by the document id.
+   */
+  private String editPrefix;
+
+  /**
+   * The documents and users that account for the most request time, or null if not enabled.
+   */
+  private HeavyHitters heavyHitters;
+
+  /**
+   * The interval after which the totals of the heavy hitters are halved.
+   */
+  private long heavyHittersHalfLifeNanos;
+
+  /**
+   * The tick when the totals of the heavy hitters should be halved next. Only accessed by the
+   * periodic maintenance tasks.
+   */
+  private long nextHeavyHittersDecayTick;
+
+  /**
+   * Whether load shedding is enabled.
+   */
+  private boolean loadShedding;
+
+  /**
+   * The p95 duration of the edit requests above which requests are rejected.
+   */
+  private long loadSheddingEditP95Nanos;
+
+  /**
+   * The number of edit requests in progress above which requests are rejected, or 0 if not limited.
+   */
+  private long loadSheddingEditInFlight;
+
+  /**
+   * The value of the <code>Retry-After</code> header of the rejected requests.
+   */
+  private String loadSheddingRetryAfter;
+
+  /**
+   * Whether the recent edit requests are slower than the budget. Updated by the periodic maintenance tasks.
+   */
+  private volatile boolean editLatencyOverBudget;
+
+  /**
+   * The continuous flight recording, or null if not enabled.
+   */
+  private ContinuousRecording continuousRecording;
+
+  /**
+   * The p99 duration of the edit requests above which the flight recording is dumped, or 0 if not checked.
+   */
+  private long jfrEditP99Nanos;
+
+  /**
+   * The percentage of failed edit requests above which the flight recording is dumped, or 0 if not checked.
+   */
+  private double jfrEditErrorPercentage;
+
+  /**
+   * The per-operation labels of the edit requests, or null if not enabled.
+   */
+  private OperationLabels operationLabels;
+
+  /**
+   * The tick when the periodic maintenance tasks should run next.
+   */
+  private AtomicLong nextMaintenanceTick;
+
+  /**
+   * The recorder of the slowest recent requests.
+   */
+  private SlowRequestRecorder slowRequestRecorder;
+
+  /**
+   * The sampling profiler, which may need the threads of the requests.
+   */
+  private SamplingProfiler profiler;
+
+  /**
+   * The tick after which the next slow request can be logged.
+   */
+  private AtomicLong nextSlowRequestLogTick;
+
+  /**
+   * The number of slow requests that were not logged since the last message.
+   */
+  private final LongAdder unloggedSlowRequests = new LongAdder();
+
+  /**
+   * The factor applied to the p99 duration of a label to obtain its slow request threshold, 
+   * or 0 if the thresholds are not adaptive.
+   */
+  private double slowRequestP99Factor;
+
+  /**
+   * The metrics of the request labels.
+   */
+  private final List<RequestMetrics> labelMetrics = new ArrayList<>();
+
+  /**
+   * The bean used to measure the resources of the request threads, or null if not enabled.
+   */
+  private com.sun.management.ThreadMXBean threadMXBean;
 
   /**
    * The metric registry.
@@ -105,28 +395,197 @@ public class MonitoringFilter implements Filter, PluginExtension {
     monitoringManager.contextInitialized(new ServletContextEvent(servletContext));
     registry = (MetricRegistry) filterConfig.getServletContext().getAttribute(MonitoringServlet.METRICS_REGISTRY_ATTR_NAME);
     
-    durations = new ConcurrentHashMap<>();
-    errors = new ConcurrentHashMap<>();
+    slowRequestRecorder = new SlowRequestRecorder(MonitoringOptions.getInt(SLOW_REQUESTS_MAX_OPTION, 20), 
+        TimeUnit.MINUTES.toMillis(MonitoringOptions.getLong(SLOW_REQUESTS_RETENTION_MINUTES_OPTION, 15)));
+    servletContext.setAttribute(SlowRequestRecorder.ATTR_NAME, slowRequestRecorder);
+    profiler = new SamplingProfiler();
+    servletContext.setAttribute(SamplingProfiler.ATTR_NAME, profiler);
+    Map<String, String> slowThresholds = new HashMap<>();
+    slowThresholds.put(EDIT_LABEL, "100");
+    slowThresholds.put(DOC_LOAD_LABEL, "5000");
+    slowThresholds.put(OTHERS_LABEL, "1000");
+    slowThresholds.putAll(MonitoringOptions.getMap(SLOW_REQUEST_THRESHOLDS_OPTION, null));
+    slowRequestP99Factor = MonitoringOptions.getDouble(SLOW_REQUEST_P99_FACTOR_OPTION, 0);
+    
+    if (MonitoringOptions.getBoolean(THREAD_RESOURCES_OPTION, false)) {
+      threadMXBean = getThreadMXBean();
+    }
+    
+    loadShedding = MonitoringOptions.getBoolean(LOAD_SHEDDING_OPTION, false);
+    Set<String> sheddableLabels = new HashSet<>();
+    if (loadShedding) {
+      for (String label : MonitoringOptions.getString(LOAD_SHEDDING_LABELS_OPTION, OTHERS_LABEL).split(",")) {
+        sheddableLabels.add(label.trim());
+      }
+      // The edit requests are the ones being protected.
+      sheddableLabels.remove(EDIT_LABEL);
+      loadSheddingEditP95Nanos = TimeUnit.MILLISECONDS.toNanos(
+          MonitoringOptions.getLong(LOAD_SHEDDING_EDIT_P95_MILLIS_OPTION, 500));
+      loadSheddingEditInFlight = MonitoringOptions.getLong(LOAD_SHEDDING_EDIT_IN_FLIGHT_OPTION, 0);
+      loadSheddingRetryAfter = String.valueOf(
+          MonitoringOptions.getLong(LOAD_SHEDDING_RETRY_AFTER_SECONDS_OPTION, 5));
+    }
+    
+    // Register the metrics of all labels upfront, so that no registration happens on the request path.
+    editMetrics = registerLabel(EDIT_LABEL, slowThresholds);
+    Map<String, RequestMetrics> prefixMetrics = new LinkedHashMap<>();
+    prefixMetrics.put(EDIT_PATH, editMetrics);
+    docLoadMetrics = registerLabel(DOC_LOAD_LABEL, slowThresholds);
+    prefixMetrics.put(DOC_LOAD_PATH, docLoadMetrics);
+    String contextPath = servletContext.getContextPath() != null ? servletContext.getContextPath() : "";
+    editPrefix = contextPath + EDIT_PATH + "/";
+    classifier = new RequestClassifier(contextPath, prefixMetrics, registerLabel(OTHERS_LABEL, slowThresholds));
+    if (loadShedding) {
+      for (RequestMetrics metrics : labelMetrics) {
+        if (sheddableLabels.contains(metrics.getLabel())) {
+          metrics.registerShedMetrics(registry, clock);
+        }
+      }
+      registry.gauge("shedding.active", () -> () -> isEditOverBudget() ? 1 : 0);
+    }
+    
+    if (MonitoringOptions.getBoolean(OPERATION_LABELS_OPTION, false)) {
+      int maxLabels = Math.max(1, MonitoringOptions.getInt(OPERATION_LABELS_MAX_OPTION, 32));
+      long idleNanos = TimeUnit.MINUTES.toNanos(MonitoringOptions.getLong(OPERATION_LABELS_IDLE_MINUTES_OPTION, 10));
+      operationLabels = new OperationLabels(registry, clock, contextPath + EDIT_PATH, EDIT_LABEL, 
+          maxLabels, idleNanos);
+    }
+    int containerThreads = MonitoringOptions.getInt(CONTAINER_THREADS_OPTION, 0);
+    if (containerThreads > 0) {
+      registry.gauge("concurrency.saturation", () -> () -> {
+        double expectedConcurrency = 0;
+        for (RequestMetrics metrics : labelMetrics) {
+          expectedConcurrency += metrics.getExpectedConcurrency();
+        }
+        return expectedConcurrency / containerThreads;
+      });
+    }
+    if (MonitoringOptions.getBoolean(HEAVY_HITTERS_OPTION, false)) {
+      heavyHitters = new HeavyHitters(MonitoringOptions.getInt(HEAVY_HITTERS_CAPACITY_OPTION, 256));
+      heavyHittersHalfLifeNanos = TimeUnit.MINUTES.toNanos(
+          Math.max(1, MonitoringOptions.getLong(HEAVY_HITTERS_HALF_LIFE_MINUTES_OPTION, 10)));
+      nextHeavyHittersDecayTick = clock.getTick() + heavyHittersHalfLifeNanos;
+      servletContext.setAttribute(HeavyHitters.ATTR_NAME, heavyHitters);
+    }
+    if (MonitoringOptions.getBoolean(JFR_OPTION, false)) {
+      initContinuousRecording();
+    }
+    nextMaintenanceTick = new AtomicLong(clock.getTick());
+    nextSlowRequestLogTick = new AtomicLong(clock.getTick());
+  }
+
+  /**
+   * Starts the continuous flight recording and makes it available to the monitoring servlet.
+   */
+  private void initContinuousRecording() {
+    String dumpDirectory = MonitoringOptions.getString(JFR_DUMP_DIRECTORY_OPTION, 
+        new File(System.getProperty("java.io.tmpdir"), "web-author-jfr").getPath());
+    ContinuousRecording recording = new ContinuousRecording(
+        Duration.ofMinutes(Math.max(1, MonitoringOptions.getLong(JFR_MAX_AGE_MINUTES_OPTION, 15))),
+        MonitoringOptions.getLong(JFR_MAX_SIZE_MB_OPTION, 100) * 1024 * 1024,
+        Paths.get(dumpDirectory),
+        MonitoringOptions.getInt(JFR_MAX_DUMPS_OPTION, 10),
+        TimeUnit.MINUTES.toNanos(MonitoringOptions.getLong(JFR_DUMP_COOLDOWN_MINUTES_OPTION, 30)),
+        clock);
+    if (recording.start()) {
+      continuousRecording = recording;
+      jfrEditP99Nanos = TimeUnit.MILLISECONDS.toNanos(MonitoringOptions.getLong(JFR_EDIT_P99_MILLIS_OPTION, 2000));
+      jfrEditErrorPercentage = MonitoringOptions.getDouble(JFR_EDIT_ERROR_PERCENTAGE_OPTION, 10);
+      servletContext.setAttribute(ContinuousRecording.ATTR_NAME, continuousRecording);
+    }
+  }
+
+  /**
+   * @return The bean used to measure the CPU time and the allocated memory of the current thread, 
+   * or null if the JVM does not support it.
+   */
+  private static com.sun.management.ThreadMXBean getThreadMXBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (sunBean.isCurrentThreadCpuTimeSupported() && sunBean.isThreadAllocatedMemorySupported()) {
+        sunBean.setThreadCpuTimeEnabled(true);
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+      }
+    }
+    log.warn("The CPU time and the allocated memory of the request threads cannot be measured by this JVM.");
+    return null;
+  }
+
+  /**
+   * Registers the metrics of a label.
+   * 
+   * @param label The label.
+   * @param slowThresholds The configured slow request thresholds for each label, in milliseconds.
+   * 
+   * @return The metrics of the label.
+   */
+  private RequestMetrics registerLabel(String label, Map<String, String> slowThresholds) {
+    RequestMetrics metrics = RequestMetrics.register(registry, label, clock);
+    metrics.registerResponseMetrics(registry, clock);
+    metrics.registerConcurrencyMetrics(registry, clock);
+    if (threadMXBean != null) {
+      metrics.registerThreadResourceMetrics(registry, clock);
+    }
+    long thresholdMillis = SLOW_REQUEST_DEFAULT_THRESHOLD_MILLIS;
+    String configuredThreshold = slowThresholds.get(label);
+    if (configuredThreshold != null) {
+      try {
+        thresholdMillis = Long.parseLong(configuredThreshold);
+      } catch (NumberFormatException e) {
+        log.warn("Invalid slow request threshold for {}: {}", label, configuredThreshold);
+      }
+    }
+    metrics.setBaseSlowThresholdNanos(TimeUnit.MILLISECONDS.toNanos(thresholdMillis));
+    registry.gauge("slow.threshold." + label, () -> 
+        () -> metrics.getSlowThresholdNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    
+    slowRequestRecorder.addLabel(label);
+    labelMetrics.add(metrics);
+    return metrics;
   }
 
   @Override
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    runMaintenanceIfDue();
     // Split requests by URL into different metrics.
-    String label = computeLabel(request);
-    if (label != null) {
-      Timer duration = getDurationTimer(label);
-      Context context = duration.time();
-      ResponseWrapper responseWrapper = new ResponseWrapper((HttpServletResponse) response);
+    RequestMetrics metrics = getRequestMetrics(request);
+    // Async dispatches are recorded as part of the request that started the async processing.
+    if (metrics != null && request.getDispatcherType() != DispatcherType.ASYNC) {
+      if (metrics.isSheddable() && isEditOverBudget()) {
+        // Reject the request right away instead of letting it compete with the edit requests.
+        metrics.getShed().mark();
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        httpResponse.setHeader("Retry-After", loadSheddingRetryAfter);
+        httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      HttpServletRequest httpRequest = (HttpServletRequest) request;
+      RequestMetrics operationMetrics = null;
+      if (operationLabels != null && metrics == editMetrics) {
+        operationMetrics = operationLabels.resolve(httpRequest.getRequestURI());
+      }
+      // The wrappers are the only objects allocated for each monitored request.
+      ResponseWrapper responseWrapper = new ResponseWrapper(httpRequest, (HttpServletResponse) response, 
+          metrics, operationMetrics);
+      boolean profiledThread = profiler.isTrackingThreads();
+      if (profiledThread) {
+        profiler.threadStarted(metrics.getLabel());
+      }
       try {
-        chain.doFilter(request, responseWrapper);
+        chain.doFilter(new RequestWrapper(httpRequest, responseWrapper), responseWrapper);
       } finally {
-        int status = responseWrapper.getStatus();
-        if (status != HttpServletResponse.SC_OK && status != HttpServletResponse.SC_NO_CONTENT) {
-          Meter errorRate = getErrorMeter(label);
-          errorRate.mark();
+        if (profiledThread) {
+          profiler.threadFinished();
+        }
+        responseWrapper.recordThreadResources();
+        if (request.isAsyncStarted()) {
+          // The response is not ready yet, record the request when the async processing completes.
+          request.getAsyncContext().addListener(responseWrapper);
+        } else {
+          responseWrapper.complete(false);
         }
-        long durationNanoSeconds = context.stop();
-        logLargeDuration(request, durationNanoSeconds);
       }
     } else {
       // Do not monitor non-rest requests.
@@ -136,75 +595,309 @@ public class MonitoringFilter implements Filter, PluginExtension {
   }
 
   /**
-   * Log requests whose duration took too long.
+   * @return <code>true</code> if the edit requests are slower or more than the load shedding budget.
+   */
+  private boolean isEditOverBudget() {
+    return editLatencyOverBudget 
+        || (loadSheddingEditInFlight > 0 && editMetrics.getInFlight() > loadSheddingEditInFlight);
+  }
+
+  /**
+   * Records the duration of a request for its document and its user.
+   * 
+   * @param request The request.
+   * @param metrics The metrics of the request label.
+   * @param durationNanoSeconds The duration.
+   * @param error <code>true</code> if the request failed.
+   */
+  private void recordHeavyHitters(HttpServletRequest request, RequestMetrics metrics, 
+      long durationNanoSeconds, boolean error) {
+    String document = null;
+    String uri = request.getRequestURI();
+    if (metrics == editMetrics && uri.startsWith(editPrefix)) {
+      int docIdEnd = uri.indexOf('/', editPrefix.length());
+      document = uri.substring(editPrefix.length(), docIdEnd != -1 ? docIdEnd : uri.length());
+    } else if (metrics == docLoadMetrics) {
+      document = request.getParameter(DOC_LOAD_URL_PARAM);
+    }
+    if (document != null && !document.isEmpty()) {
+      heavyHitters.recordDocument(document, durationNanoSeconds, error);
+    }
+    String user = request.getRemoteUser();
+    if (user != null) {
+      heavyHitters.recordUser(user, durationNanoSeconds, error);
+    }
+  }
+
+  /**
+   * Runs the periodic maintenance tasks if their interval elapsed. Only one of the concurrent 
+   * requests runs them.
+   */
+  private void runMaintenanceIfDue() {
+    long tick = clock.getTick();
+    long nextTick = nextMaintenanceTick.get();
+    if (tick - nextTick >= 0 && nextMaintenanceTick.compareAndSet(nextTick, tick + MAINTENANCE_INTERVAL_NANOS)) {
+      if (operationLabels != null) {
+        operationLabels.maintain(tick);
+      }
+      if (heavyHitters != null && tick - nextHeavyHittersDecayTick >= 0) {
+        nextHeavyHittersDecayTick = tick + heavyHittersHalfLifeNanos;
+        heavyHitters.decay();
+      }
+      if (loadShedding) {
+        double editP95 = editMetrics.getDuration().getSnapshot().get95thPercentile();
+        editLatencyOverBudget = editP95 > loadSheddingEditP95Nanos;
+      }
+      if (slowRequestP99Factor > 0) {
+        for (RequestMetrics metrics : labelMetrics) {
+          metrics.updateSlowThreshold(slowRequestP99Factor);
+        }
+      }
+      if (continuousRecording != null) {
+        dumpRecordingIfEditsMisbehave();
+      }
+    }
+  }
+
+  /**
+   * Dumps the flight recording if the recent edit requests are too slow or fail too often. 
+   * The recording limits the frequency of the dumps.
+   */
+  private void dumpRecordingIfEditsMisbehave() {
+    Timer duration = editMetrics.getDuration();
+    if (jfrEditP99Nanos > 0 && duration.getSnapshot().get99thPercentile() > jfrEditP99Nanos) {
+      continuousRecording.triggerDump("edit-p99");
+    } else if (jfrEditErrorPercentage > 0) {
+      double requestRate = duration.getOneMinuteRate();
+      if (requestRate > 0 && 100 * editMetrics.getErrors().getOneMinuteRate() / requestRate > jfrEditErrorPercentage) {
+        continuousRecording.triggerDump("edit-errors");
+      }
+    }
+  }
+
+  /**
+   * Records requests whose duration took too long in the slow requests recorder. Only some of 
+   * them are logged, to avoid flooding the logs when the server is overloaded.
    * 
    * @param request The request.
+   * @param metrics The metrics of the request.
+   * @param status The HTTP status of the response.
    * @param durationNanoSeconds The duration.
    */
-  void logLargeDuration(ServletRequest request, long durationNanoSeconds) {
-    if (durationNanoSeconds > 100 * 1000L * 1000L && request instanceof HttpServletRequest) {
-      HttpServletRequest httpServletRequest = (HttpServletRequest)request;
-      String url = httpServletRequest.getRequestURL().toString();
-      String queryString = httpServletRequest.getQueryString();
-      String urlString = queryString != null ? url + "?" + queryString : url; 
-      double nano = 1000. * 1000. * 1000.;
-      log.warn("Long request: " + urlString + " - took " + (durationNanoSeconds / nano) + "seconds");
+  void recordSlowRequest(HttpServletRequest request, RequestMetrics metrics, int status, 
+      long durationNanoSeconds) {
+    if (durationNanoSeconds <= metrics.getSlowThresholdNanos()) {
+      return;
+    }
+    
+    String urlString = null;
+    if (slowRequestRecorder.accepts(metrics.getLabel(), durationNanoSeconds)) {
+      urlString = getFullUrl(request);
+      slowRequestRecorder.record(new SlowRequestRecorder.SlowRequest(urlString, metrics.getLabel(), 
+          durationNanoSeconds, status, Thread.currentThread().getName(), System.currentTimeMillis()));
+    }
+    
+    long tick = clock.getTick();
+    long nextLogTick = nextSlowRequestLogTick.get();
+    if (tick - nextLogTick >= 0 
+        && nextSlowRequestLogTick.compareAndSet(nextLogTick, tick + SLOW_REQUEST_LOG_INTERVAL_NANOS)) {
+      if (urlString == null) {
+        urlString = getFullUrl(request);
+      }
+      log.warn("Long request: {} - took {} seconds. Other slow requests not logged: {}", 
+          urlString, durationNanoSeconds / (double) TimeUnit.SECONDS.toNanos(1), 
+          unloggedSlowRequests.sumThenReset());
+    } else {
+      unloggedSlowRequests.increment();
     }
   }
 
   /**
-   * Compute a label for the request derived from the URL path.
+   * @param request The request.
+   * 
+   * @return The URL of the request, including the query string.
+   */
+  private static String getFullUrl(HttpServletRequest request) {
+    String url = String.valueOf(request.getRequestURL());
+    String queryString = request.getQueryString();
+    return queryString != null ? url + "?" + queryString : url;
+  }
+
+  /**
+   * Compute the metrics of a request, derived from the URL path.
    * 
    * @param request
    *          The request.
    * 
-   * @return The label, or null if the request should not be monitored.
+   * @return The metrics of the request, or null if the request should not be monitored.
    */
   @VisibleForTesting
-  String computeLabel(ServletRequest request) {
-    // This label identifies the REST endpoint.
-    String label = null;
-
-    // For methods handled by our servlets, we have a pathInfo.
-    HttpServletRequest httpRequest = (HttpServletRequest) request;
-    String pathInfo = httpRequest.getPathInfo();
-    if (pathInfo != null) {
-      URL url = null;
-      try {
-        url = new URL(httpRequest.getRequestURL().toString());
-      } catch (MalformedURLException e) {
-        // Cannot happen.
-      }
+  RequestMetrics getRequestMetrics(ServletRequest request) {
+    return classifier.classify((HttpServletRequest) request);
+  }
 
-      if (url != null) {
-        if (url.getPath().startsWith(httpRequest.getContextPath() + EDIT_PATH)) {
-          // We group all edits together.
-          label = EDIT_LABEL;
-        } else if (url.getPath().startsWith(httpRequest.getContextPath() + DOC_LOAD_PATH)) {
-          label = DOC_LOAD_LABEL;
-        } else {
-          label = OTHERS_LABEL;
-        }
-      }
+  /**
+   * Wrapper for the HTTP request sent to the servlet, so that the async processing started without 
+   * arguments keeps writing through the response wrapper.
+   * 
+   * @author cristi_talau
+   */
+  private static class RequestWrapper extends HttpServletRequestWrapper {
+    /**
+     * The wrapper of the response.
+     */
+    private final ResponseWrapper responseWrapper;
+
+    /**
+     * Constructor.
+     * 
+     * @param request The request to wrap.
+     * @param responseWrapper The wrapper of the response.
+     */
+    RequestWrapper(HttpServletRequest request, ResponseWrapper responseWrapper) {
+      super(request);
+      this.responseWrapper = responseWrapper;
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+      // The response of the async context is the wrapper, so the bytes written to it are counted.
+      return startAsync(this, responseWrapper);
     }
-    return label;
   }
 
   /**
    * Wrapper for the HTTP response sent to the servlet, so that we can intercept
-   * the status code.
+   * the status code and count the bytes of the response body. It also records the metrics of 
+   * the request when it completes, either after the filter chain returns, or after its async 
+   * processing completes.
    * 
    * @author cristi_talau
    */
-  private static class ResponseWrapper extends HttpServletResponseWrapper {
+  private class ResponseWrapper extends HttpServletResponseWrapper implements AsyncListener {
+    /**
+     * The request.
+     */
+    private final HttpServletRequest request;
+    /**
+     * The metrics of the request label.
+     */
+    private final RequestMetrics metrics;
+    /**
+     * The metrics of the request operation, or null if not recorded.
+     */
+    private final RequestMetrics operationMetrics;
+    /**
+     * The tick when the request started.
+     */
+    private final long startTick;
+    /**
+     * 1 if the request was already recorded, updated through {@link MonitoringFilter#RECORDED}.
+     */
+    volatile int recorded;
+    /**
+     * The CPU time of the request thread when the request started.
+     */
+    private long startCpuTimeNanos;
+    /**
+     * The bytes allocated by the request thread when the request started.
+     */
+    private long startAllocatedBytes;
+
     /**
      * Constructor.
      * 
-     * @param response
-     *          The response to wrap.
+     * @param request The request.
+     * @param response The response to wrap.
+     * @param metrics The metrics of the request label.
+     * @param operationMetrics The metrics of the request operation, or null if not recorded.
      */
-    public ResponseWrapper(HttpServletResponse response) {
+    ResponseWrapper(HttpServletRequest request, HttpServletResponse response, 
+        RequestMetrics metrics, RequestMetrics operationMetrics) {
       super(response);
+      this.request = request;
+      this.metrics = metrics;
+      this.operationMetrics = operationMetrics;
+      this.startTick = clock.getTick();
+      metrics.requestStarted();
+      if (threadMXBean != null) {
+        startCpuTimeNanos = threadMXBean.getCurrentThreadCpuTime();
+        startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+
+    /**
+     * Records the CPU time and the memory allocated by the request thread since the request 
+     * started. Must be called on the request thread, after the filter chain returns. The work 
+     * done on other threads for async requests is not included.
+     */
+    void recordThreadResources() {
+      if (threadMXBean != null) {
+        long cpuTimeNanos = threadMXBean.getCurrentThreadCpuTime() - startCpuTimeNanos;
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) 
+            - startAllocatedBytes;
+        metrics.recordThreadResources(cpuTimeNanos, allocatedBytes);
+      }
+    }
+
+    /**
+     * Records the metrics of the request, once.
+     * 
+     * @param failed <code>true</code> if the request failed regardless of its status.
+     */
+    void complete(boolean failed) {
+      if (!RECORDED.compareAndSet(this, 0, 1)) {
+        return;
+      }
+      metrics.requestCompleted();
+      long durationNanoSeconds = clock.getTick() - startTick;
+      int status = getStatus();
+      boolean error = failed 
+          || (status != HttpServletResponse.SC_OK && status != HttpServletResponse.SC_NO_CONTENT);
+      record(metrics, durationNanoSeconds, error);
+      if (operationMetrics != null) {
+        record(operationMetrics, durationNanoSeconds, error);
+      }
+      metrics.recordResponseSize(getBytesWritten());
+      if (heavyHitters != null) {
+        recordHeavyHitters(request, metrics, durationNanoSeconds, error);
+      }
+      recordSlowRequest(request, metrics, status, durationNanoSeconds);
+    }
+
+    /**
+     * Records the duration and the error of a request.
+     * 
+     * @param requestMetrics The metrics where to record.
+     * @param durationNanoSeconds The duration.
+     * @param error <code>true</code> if the request failed.
+     */
+    private void record(RequestMetrics requestMetrics, long durationNanoSeconds, boolean error) {
+      requestMetrics.getDuration().update(durationNanoSeconds, TimeUnit.NANOSECONDS);
+      if (error) {
+        requestMetrics.getErrors().mark();
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      complete(false);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      complete(true);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      complete(true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // The listeners are removed when the async processing is restarted.
+      event.getAsyncContext().addListener(this);
     }
 
     /**
@@ -231,57 +924,304 @@ public class MonitoringFilter implements Filter, PluginExtension {
     }
 
     /**
-     * @return The httpStatus of the response.
+     * @return The httpStatus of the response. The status of the wrapped response is preferred, since it 
+     * also reflects the changes made without this wrapper, e.g. through the response of an async context 
+     * or by the container when the async processing fails.
      */
+    @Override
     public int getStatus() {
-      return httpStatus;
+      int status = super.getStatus();
+      return status > 0 ? status : httpStatus;
     }
-  }
 
-  /**
-   * Returns the meter for errors and registers it.
-   * 
-   * @param label
-   *          The label.
-   * @return The meter corresponding to the label passed as argument.
-   */
-  private Meter getErrorMeter(final String label) {
-    Meter errorRate = errors.get(label);
-    if (errorRate == null) {
-      errorRate = registry.register("errors.rate." + label, new Meter(clock));
-      // Register also a gauge indicating the error percentage.
-      registry.register("errors.percentage." + label, new RatioGauge() {
-
-        @Override
-        protected Ratio getRatio() {
-          return Ratio.of(errors.get(label).getFifteenMinuteRate(), durations.get(label).getFifteenMinuteRate());
-        }
-      });
-      errors.put(label, errorRate);
+    /**
+     * The number of bytes written to the response body. The writes of a request do not overlap
+     * and they happen before the request is recorded, even for async requests, so the counter 
+     * does not need to be atomic.
+     */
+    private long bytesWritten;
+
+    /**
+     * The counting output stream, created on first use.
+     */
+    private ServletOutputStream outputStream;
+
+    /**
+     * The counting writer, created on first use.
+     */
+    private PrintWriter writer;
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        outputStream = new CountingOutputStream(super.getOutputStream());
+      }
+      return outputStream;
     }
-    return errorRate;
-  }
 
-  /**
-   * Returns and registers the timer that corresponds to a label.
-   * 
-   * @param label
-   *          The label.
-   * @return The Timer corresponding to the label.
-   */
-  private Timer getDurationTimer(String label) {
-    Timer duration = durations.get(label);
-    if (duration == null) {
-      duration = registry.register("duration." + label, 
-          new Timer(new ExponentiallyDecayingReservoir(), clock));
-      durations.put(label, duration);
-    }
-    return duration;
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        PrintWriter responseWriter = super.getWriter();
+        // The encoding cannot change once the writer was obtained.
+        writer = new PrintWriter(new CountingWriter(responseWriter, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    /**
+     * @return The number of bytes written to the response body. Characters written through the 
+     * writer are counted in the character encoding of the response.
+     */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    /**
+     * Output stream that counts the bytes passed to the response output stream.
+     */
+    private class CountingOutputStream extends ServletOutputStream {
+      /**
+       * The response output stream.
+       */
+      private final ServletOutputStream delegate;
+
+      /**
+       * Constructor.
+       * 
+       * @param delegate The response output stream.
+       */
+      CountingOutputStream(ServletOutputStream delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        delegate.write(b);
+        bytesWritten++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        delegate.write(b, off, len);
+        bytesWritten += len;
+      }
+
+      @Override
+      public void flush() throws IOException {
+        delegate.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        delegate.close();
+      }
+
+      @Override
+      public boolean isReady() {
+        return delegate.isReady();
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        delegate.setWriteListener(writeListener);
+      }
+    }
+
+    /**
+     * Writer that counts the bytes of the characters passed to the response writer.
+     * 
+     * The characters are not copied for the single-byte encodings and for UTF-8. For the other encodings, 
+     * they are encoded in chunks in small buffers, reused for the whole response.
+     */
+    private class CountingWriter extends Writer {
+      /**
+       * The number of characters encoded at once, for the encodings other than UTF-8 with multi-byte characters.
+       */
+      private static final int CHUNK_SIZE = 256;
+
+      /**
+       * The response writer.
+       */
+      private final PrintWriter delegate;
+
+      /**
+       * Whether the character encoding of the response is UTF-8.
+       */
+      private final boolean utf8;
+
+      /**
+       * The encoder of the response encoding, or null if it is UTF-8 or encodes each character in one byte.
+       */
+      private final CharsetEncoder encoder;
+
+      /**
+       * The characters to encode, including the first half of a surrogate pair split between two writes.
+       */
+      private final CharBuffer chars;
+
+      /**
+       * The encoded bytes, counted and discarded.
+       */
+      private final ByteBuffer bytes;
+
+      /**
+       * Constructor.
+       * 
+       * @param delegate The response writer.
+       * @param encoding The character encoding of the response, or null for the default ISO-8859-1.
+       */
+      CountingWriter(PrintWriter delegate, String encoding) {
+        this.delegate = delegate;
+        Charset responseCharset = StandardCharsets.ISO_8859_1;
+        if (encoding != null) {
+          try {
+            responseCharset = Charset.forName(encoding);
+          } catch (IllegalArgumentException e) {
+            log.debug("Unknown response encoding {}", encoding);
+          }
+        }
+        this.utf8 = StandardCharsets.UTF_8.equals(responseCharset);
+        CharsetEncoder responseEncoder = responseCharset.newEncoder();
+        if (utf8 || responseEncoder.maxBytesPerChar() <= 1) {
+          this.encoder = null;
+          this.chars = null;
+          this.bytes = null;
+        } else {
+          // The response writer replaces the characters that cannot be encoded.
+          this.encoder = responseEncoder.onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+          this.chars = CharBuffer.allocate(CHUNK_SIZE);
+          this.bytes = ByteBuffer.allocate((int) Math.ceil(CHUNK_SIZE * encoder.maxBytesPerChar()) + 16);
+        }
+      }
+
+      @Override
+      public void write(int c) {
+        delegate.write(c);
+        if (utf8) {
+          bytesWritten += utf8Length((char) c);
+        } else if (encoder == null) {
+          bytesWritten++;
+        } else {
+          chars.put((char) c);
+          encodeChars(false);
+        }
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+        delegate.write(cbuf, off, len);
+        if (utf8) {
+          for (int i = off; i < off + len; i++) {
+            bytesWritten += utf8Length(cbuf[i]);
+          }
+        } else if (encoder == null) {
+          bytesWritten += len;
+        } else {
+          for (int i = off; i < off + len;) {
+            int chunk = Math.min(chars.remaining(), off + len - i);
+            chars.put(cbuf, i, chunk);
+            i += chunk;
+            encodeChars(false);
+          }
+        }
+      }
+
+      @Override
+      public void write(String str, int off, int len) {
+        delegate.write(str, off, len);
+        if (utf8) {
+          for (int i = off; i < off + len; i++) {
+            bytesWritten += utf8Length(str.charAt(i));
+          }
+        } else if (encoder == null) {
+          bytesWritten += len;
+        } else {
+          for (int i = off; i < off + len;) {
+            int chunk = Math.min(chars.remaining(), off + len - i);
+            chars.put(str, i, i + chunk);
+            i += chunk;
+            encodeChars(false);
+          }
+        }
+      }
+
+      /**
+       * @param c A character written to the response.
+       * 
+       * @return The number of bytes of the character in UTF-8.
+       */
+      private int utf8Length(char c) {
+        if (c < 0x80) {
+          return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+          // Each half of a surrogate pair counts for half of the four bytes of the pair, 
+          // even when the pair is split between two writes.
+          return 2;
+        } else {
+          return 3;
+        }
+      }
+
+      /**
+       * Encodes the pending characters and counts the bytes. A trailing half of a surrogate pair is kept 
+       * pending, unless it is the end of the response.
+       * 
+       * @param endOfInput <code>true</code> at the end of the response.
+       */
+      private void encodeChars(boolean endOfInput) {
+        chars.flip();
+        CoderResult result;
+        do {
+          result = encoder.encode(chars, bytes, endOfInput);
+          bytesWritten += bytes.position();
+          bytes.clear();
+        } while (result.isOverflow());
+        if (endOfInput) {
+          while (encoder.flush(bytes).isOverflow()) {
+            bytesWritten += bytes.position();
+            bytes.clear();
+          }
+          bytesWritten += bytes.position();
+          bytes.clear();
+        }
+        chars.compact();
+      }
+
+      @Override
+      public void flush() {
+        delegate.flush();
+      }
+
+      @Override
+      public void close() {
+        delegate.close();
+        if (encoder != null) {
+          encodeChars(true);
+        }
+      }
+    }
   }
 
   @Override
   public void destroy() {
+    // The gauges reference this filter, so a filter initialized later with the same registry 
+    // must register its own metrics.
+    for (RequestMetrics metrics : labelMetrics) {
+      metrics.unregister(registry);
+      registry.remove("slow.threshold." + metrics.getLabel());
+    }
+    if (operationLabels != null) {
+      operationLabels.unregister();
+    }
+    registry.remove("shedding.active");
+    registry.remove("concurrency.saturation");
     monitoringManager.contextDestroyed(new ServletContextEvent(servletContext));
+    if (continuousRecording != null) {
+      continuousRecording.close();
+      continuousRecording = null;
+    }
   }
   
   /**
@@ -0,0 +1,132 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Configuration options of the monitoring plugin.
+ *
+ * Each option is read from the system property with the given name, falling back to the
+ * environment variable with the same name.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+final class MonitoringOptions {
+
+  /**
+   * Private constructor.
+   */
+  private MonitoringOptions() {
+  }
+
+  /**
+   * Returns the value of a string option.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set.
+   *
+   * @return The value of the option.
+   */
+  static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    if (value == null || value.trim().length() == 0) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * Returns the value of a boolean option.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set.
+   *
+   * @return The value of the option.
+   */
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value != null ? Boolean.parseBoolean(value) : defaultValue;
+  }
+
+  /**
+   * Returns the value of an integer option.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set or invalid.
+   *
+   * @return The value of the option.
+   */
+  static int getInt(String name, int defaultValue) {
+    return (int) getLong(name, defaultValue);
+  }
+
+  /**
+   * Returns the value of a long option.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set or invalid.
+   *
+   * @return The value of the option.
+   */
+  static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        log.warn("Invalid value for {}: {}", name, value);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of a decimal option.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set or invalid.
+   *
+   * @return The value of the option.
+   */
+  static double getDouble(String name, double defaultValue) {
+    String value = getString(name, null);
+    if (value != null) {
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        log.warn("Invalid value for {}: {}", name, value);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of an option that contains a list of comma-separated <code>key=value</code> pairs.
+   *
+   * @param name The name of the option.
+   * @param defaultValue The value to use if the option is not set.
+   *
+   * @return The pairs, in the order in which they appear in the value.
+   */
+  static Map<String, String> getMap(String name, String defaultValue) {
+    Map<String, String> map = new LinkedHashMap<>();
+    String value = getString(name, defaultValue);
+    if (value != null) {
+      for (String pair : value.split(",")) {
+        int separator = pair.indexOf('=');
+        if (separator > 0) {
+          map.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+        } else if (pair.trim().length() > 0) {
+          log.warn("Invalid value for {}: {}", name, pair);
+        }
+      }
+    }
+    return map;
+  }
+}
@@ -1,7 +1,18 @@
 package com.oxygenxml.webapp.monitoring;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
@@ -9,10 +20,12 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.graphite.GraphiteReporter;
+import com.codahale.metrics.graphite.GraphiteSender;
 import com.codahale.metrics.graphite.GraphiteUDP;
 import com.codahale.metrics.jvm.ClassLoadingGaugeSet;
 import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
@@ -20,7 +33,9 @@ import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
 import com.codahale.metrics.servlets.MetricsServlet;
 import com.codahale.metrics.servlets.ThreadDumpServlet;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import lombok.extern.slf4j.Slf4j;
 import ro.sync.ecss.extensions.api.webapp.plugin.WebappServletPluginExtension;
 
 /**
@@ -28,6 +43,7 @@ import ro.sync.ecss.extensions.api.webapp.plugin.WebappServletPluginExtension;
  * 
  * @author cristi_talau
  */
+@Slf4j
 public class MonitoringServlet extends WebappServletPluginExtension {
   /**
    * Namespace used for metrics.
@@ -39,6 +55,176 @@ public class MonitoringServlet extends WebappServletPluginExtension {
    */
   public static final String METRICS_REGISTRY_ATTR_NAME = "ro.sync.monitoring.registry";
 
+  /**
+   * Option for the number of seconds for which the values of the gauges are reused by the 
+   * metrics endpoints and the reporters.
+   */
+  static final String METRICS_CACHE_SECONDS_OPTION = "MONITORING_METRICS_CACHE_SECONDS";
+
+  /**
+   * Option for the maximum number of milliseconds the evaluation of a gauge can take before its
+   * last known value is reported instead, or 0 to evaluate the gauges one after another without a limit.
+   */
+  static final String GAUGE_TIMEOUT_MILLIS_OPTION = "MONITORING_GAUGE_TIMEOUT_MILLIS";
+
+  /**
+   * Option for the number of threads that evaluate the gauges.
+   */
+  static final String GAUGE_THREADS_OPTION = "MONITORING_GAUGE_THREADS";
+
+  /**
+   * Option that enables the monitoring of the lock contention.
+   */
+  static final String CONTENTION_OPTION = "MONITORING_CONTENTION";
+
+  /**
+   * Option for the number of seconds for which the Prometheus output is reused.
+   */
+  static final String PROMETHEUS_CACHE_SECONDS_OPTION = "MONITORING_PROMETHEUS_CACHE_SECONDS";
+
+  /**
+   * Option for the comma-separated list of reporters: <code>log</code>, <code>graphite</code> 
+   * and <code>file</code>.
+   */
+  static final String REPORTERS_OPTION = "MONITORING_REPORTERS";
+
+  /**
+   * Option for the address of the Graphite server, as <code>host[:port]</code>.
+   */
+  static final String GRAPHITE_SERVER_OPTION = "GRAPHITE_SERVER";
+
+  /**
+   * Option for the protocol used to send the metrics to Graphite: <code>udp</code>, <code>tcp</code> 
+   * or <code>pickle</code>.
+   */
+  static final String GRAPHITE_PROTOCOL_OPTION = "MONITORING_GRAPHITE_PROTOCOL";
+
+  /**
+   * Option for the maximum number of points waiting to be sent to Graphite over TCP.
+   */
+  static final String GRAPHITE_QUEUE_POINTS_OPTION = "MONITORING_GRAPHITE_QUEUE_POINTS";
+
+  /**
+   * Option that enables the logging of only the metrics that changed since the previous report.
+   */
+  static final String LOG_DELTAS_OPTION = "MONITORING_LOG_DELTAS";
+
+  /**
+   * Option for the number of reports between two full reports, when only the changes are logged.
+   */
+  static final String LOG_KEYFRAME_INTERVALS_OPTION = "MONITORING_LOG_KEYFRAME_INTERVALS";
+
+  /**
+   * Option for the directory of the metrics files.
+   */
+  static final String METRICS_FILE_DIRECTORY_OPTION = "MONITORING_METRICS_FILE_DIRECTORY";
+
+  /**
+   * Option for the size in megabytes above which the metrics file is rotated.
+   */
+  static final String METRICS_FILE_MAX_MB_OPTION = "MONITORING_METRICS_FILE_MAX_MB";
+
+  /**
+   * Option for the age in hours above which the metrics file is rotated.
+   */
+  static final String METRICS_FILE_MAX_HOURS_OPTION = "MONITORING_METRICS_FILE_MAX_HOURS";
+
+  /**
+   * Option for the number of rotated metrics files kept.
+   */
+  static final String METRICS_FILE_MAX_FILES_OPTION = "MONITORING_METRICS_FILE_MAX_FILES";
+
+  /**
+   * Option for the compression of the rotated metrics files: <code>gzip</code> or <code>none</code>.
+   */
+  static final String METRICS_FILE_COMPRESSION_OPTION = "MONITORING_METRICS_FILE_COMPRESSION";
+
+  /**
+   * Option that enables the local metric history.
+   */
+  static final String HISTORY_OPTION = "MONITORING_HISTORY";
+
+  /**
+   * Option for the directory of the local metric history.
+   */
+  static final String HISTORY_DIRECTORY_OPTION = "MONITORING_HISTORY_DIRECTORY";
+
+  /**
+   * Option for the comma-separated prefixes of the names of the metrics kept in the local history.
+   */
+  static final String HISTORY_METRICS_OPTION = "MONITORING_HISTORY_METRICS";
+
+  /**
+   * Option for the maximum number of series in the local history.
+   */
+  static final String HISTORY_MAX_SERIES_OPTION = "MONITORING_HISTORY_MAX_SERIES";
+
+  /**
+   * The default prefixes of the names of the metrics kept in the local history.
+   */
+  private static final String DEFAULT_HISTORY_METRICS = 
+      "duration.,errors.,concurrency.,response.bytes.,shed.,memory.heap.,memory.total.,threads.count,jvm.gc.";
+
+  /**
+   * Option for the maximum number of clients connected to the metrics stream.
+   */
+  static final String STREAM_MAX_CLIENTS_OPTION = "MONITORING_STREAM_MAX_CLIENTS";
+
+  /**
+   * The interval between two events of the metrics stream, in milliseconds.
+   */
+  private static final long STREAM_INTERVAL_MILLIS = 1000;
+
+  /**
+   * The resource of the dashboard page.
+   */
+  private static final String DASHBOARD_RESOURCE = "dashboard.html";
+
+  /**
+   * The interval between two records of the local metric history, in seconds.
+   */
+  private static final int HISTORY_INTERVAL_SECONDS = 10;
+
+  /**
+   * The period returned by default by the history endpoint, in milliseconds.
+   */
+  private static final long DEFAULT_HISTORY_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * The reporter that writes the metrics in the server logs.
+   */
+  private static final String LOG_REPORTER = "log";
+
+  /**
+   * The reporter that sends the metrics to a Graphite server.
+   */
+  private static final String GRAPHITE_REPORTER = "graphite";
+
+  /**
+   * The reporter that appends the metrics to a rotating file.
+   */
+  private static final String FILE_REPORTER = "file";
+
+  /**
+   * The default number of documents and users returned by the heavy hitters endpoint.
+   */
+  private static final int DEFAULT_TOP_LIMIT = 50;
+
+  /**
+   * The default duration of a profile in seconds.
+   */
+  private static final int DEFAULT_PROFILE_SECONDS = 30;
+
+  /**
+   * The maximum duration of a profile in seconds.
+   */
+  private static final int MAX_PROFILE_SECONDS = 300;
+
+  /**
+   * The default interval between two profile samples in milliseconds.
+   */
+  private static final int DEFAULT_PROFILE_INTERVAL_MILLIS = 10;
+
   /**
    * Unerlying servlet to which we delegate for thread dumps.
    */
@@ -48,6 +234,56 @@ public class MonitoringServlet extends WebappServletPluginExtension {
    */
   private MetricsServlet metricsServlet;
 
+  /**
+   * Writer of the metrics in the Prometheus format.
+   */
+  private PrometheusWriter prometheusWriter;
+
+  /**
+   * The class histograms of the heap, which keeps the last one for comparison.
+   */
+  private final HeapHistogram heapHistogram = new HeapHistogram();
+
+  /**
+   * The local metric history, or null if not enabled.
+   */
+  private MetricHistory metricHistory;
+
+  /**
+   * The stream of the main metrics pushed to the dashboards.
+   */
+  private MetricStream metricStream;
+
+  /**
+   * The JSON object mapper.
+   */
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * The evaluator of the gauges, or null if they are evaluated on the reading thread.
+   */
+  private GaugeEvaluator gaugeEvaluator;
+
+  /**
+   * The metrics about the internals of the JVM.
+   */
+  private JvmInternalsMetricSet jvmInternals;
+
+  /**
+   * The metrics about the lock contention, or null if not enabled.
+   */
+  private ContentionMetricSet contention;
+
+  /**
+   * The started reporters.
+   */
+  private final List<ScheduledReporter> reporters = new ArrayList<>();
+
+  /**
+   * The sender used by the Graphite reporter over TCP, or null.
+   */
+  private QueuedGraphiteSender graphiteSender;
+
   /**
    * The interval between metrics logs.
    */
@@ -74,8 +310,20 @@ public class MonitoringServlet extends WebappServletPluginExtension {
   public void init() throws ServletException {
     ServletContext servletContext = getServletConfig().getServletContext();
     MetricRegistry registry = (MetricRegistry) servletContext.getAttribute(METRICS_REGISTRY_ATTR_NAME);
+    // The endpoints and the reporters share the values of the gauges, which may be expensive to compute.
+    long gaugeTimeoutMillis = MonitoringOptions.getLong(GAUGE_TIMEOUT_MILLIS_OPTION, 2000);
+    if (gaugeTimeoutMillis > 0) {
+      gaugeEvaluator = new GaugeEvaluator(registry, Clock.defaultClock(), 
+          Math.max(1, MonitoringOptions.getInt(GAUGE_THREADS_OPTION, 4)), TimeUnit.MILLISECONDS.toNanos(gaugeTimeoutMillis));
+    }
+    MetricRegistry cachingRegistry = new CachingMetricRegistry(registry, Clock.defaultClock(), 
+        TimeUnit.SECONDS.toNanos(MonitoringOptions.getLong(METRICS_CACHE_SECONDS_OPTION, 5)), gaugeEvaluator);
     
-    initReporter(registry);
+    initReporters(cachingRegistry, registry);
+    if (MonitoringOptions.getBoolean(HISTORY_OPTION, false)) {
+      // The history records only some of the metrics, so it evaluates only their gauges.
+      initHistory(registry);
+    }
     
     threadDumpServlet.init();
 
@@ -84,24 +332,118 @@ public class MonitoringServlet extends WebappServletPluginExtension {
     registry.register("classes", new ClassLoadingGaugeSet());
     registry.register("threads", new ThreadStatesGaugeSet());
     registry.register("gc", new GarbageCollectorMetricSet());
+    jvmInternals = new JvmInternalsMetricSet(ManagementFactory.getGarbageCollectorMXBeans(), Clock.defaultClock());
+    registry.register("jvm", jvmInternals);
+    if (MonitoringOptions.getBoolean(CONTENTION_OPTION, false)) {
+      contention = new ContentionMetricSet(ManagementFactory.getThreadMXBean(), Clock.defaultClock());
+      registry.register("contention", contention);
+    }
     
     registry.register("webauthor", new WebAuthorApiMetrics());
     
-    metricsServlet = new MetricsServlet(registry);
+    metricsServlet = new MetricsServlet(cachingRegistry);
     metricsServlet.init(getServletConfig());
+    
+    // The stream reads the values directly, as it samples them more often than they are cached.
+    metricStream = new MetricStream(registry, Clock.defaultClock(), STREAM_INTERVAL_MILLIS, 
+        MonitoringOptions.getInt(STREAM_MAX_CLIENTS_OPTION, 20));
+
+    prometheusWriter = new PrometheusWriter(cachingRegistry, METRICS_NAMESPACE, Clock.defaultClock(), 
+        TimeUnit.SECONDS.toNanos(MonitoringOptions.getLong(PROMETHEUS_CACHE_SECONDS_OPTION, 5)));
   }
 
   /**
-   * Initialize the reporter.
+   * Initialize the configured reporters.
    * 
-   * @param registry The metrics registry.
+   * @param reportedRegistry The registry whose metrics are reported.
+   * @param registry The registry where the reporters register their own metrics.
    */
-  private void initReporter(MetricRegistry registry) {
-    ScheduledReporter reporter = this.getGraphiteReporter(registry);
-    if (reporter == null) {
-      reporter = this.getLog4jReporter(registry);
+  private void initReporters(MetricRegistry reportedRegistry, MetricRegistry registry) {
+    InetSocketAddress graphiteServer = getGraphiteServer();
+    String defaultReporters = graphiteServer != null ? GRAPHITE_REPORTER : LOG_REPORTER;
+    Set<String> reporterNames = new LinkedHashSet<>();
+    for (String reporterName : MonitoringOptions.getString(REPORTERS_OPTION, defaultReporters).split(",")) {
+      reporterNames.add(reporterName.trim());
+    }
+    for (String reporterName : reporterNames) {
+      ScheduledReporter reporter = null;
+      if (LOG_REPORTER.equals(reporterName)) {
+        reporter = this.getLog4jReporter(reportedRegistry);
+      } else if (GRAPHITE_REPORTER.equals(reporterName)) {
+        if (graphiteServer == null) {
+          log.warn("The Graphite reporter requires the {} option.", GRAPHITE_SERVER_OPTION);
+        } else {
+          reporter = this.getGraphiteReporter(reportedRegistry, registry, graphiteServer);
+        }
+      } else if (FILE_REPORTER.equals(reporterName)) {
+        reporter = this.getFileReporter(reportedRegistry, registry);
+      } else if (!reporterName.isEmpty()) {
+        log.warn("Unknown metrics reporter: {}", reporterName);
+      }
+      if (reporter != null) {
+        reporter.start(intervalSize, intervalUnit);
+        reporters.add(reporter);
+      }
     }
-    reporter.start(intervalSize, intervalUnit);
+  }
+
+  /**
+   * Initialize the local metric history and the reporter that records it.
+   * 
+   * @param registry The registry whose metrics are recorded.
+   */
+  private void initHistory(MetricRegistry registry) {
+    String directory = MonitoringOptions.getString(HISTORY_DIRECTORY_OPTION, 
+        new File(System.getProperty("java.io.tmpdir"), "web-author-history").getPath());
+    try {
+      metricHistory = new MetricHistory(Paths.get(directory), 
+          Math.max(0, MonitoringOptions.getInt(HISTORY_MAX_SERIES_OPTION, MetricHistory.DEFAULT_MAX_SERIES)));
+    } catch (IOException e) {
+      log.warn("Cannot open the metric history in {}: {}", directory, e.getMessage());
+      return;
+    }
+    List<String> prefixes = new ArrayList<>();
+    for (String prefix : MonitoringOptions.getString(HISTORY_METRICS_OPTION, DEFAULT_HISTORY_METRICS).split(",")) {
+      if (!prefix.trim().isEmpty()) {
+        prefixes.add(prefix.trim());
+      }
+    }
+    HistoryReporter reporter = new HistoryReporter(registry, metricHistory, prefixes, Clock.defaultClock());
+    reporter.start(HISTORY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    reporters.add(reporter);
+  }
+
+  @Override
+  public void destroy() {
+    for (ScheduledReporter reporter : reporters) {
+      reporter.stop();
+    }
+    reporters.clear();
+    if (metricHistory != null) {
+      metricHistory.close();
+      metricHistory = null;
+    }
+    if (metricStream != null) {
+      metricStream.close();
+      metricStream = null;
+    }
+    if (graphiteSender != null) {
+      graphiteSender.shutdown();
+      graphiteSender = null;
+    }
+    if (jvmInternals != null) {
+      jvmInternals.close();
+      jvmInternals = null;
+    }
+    if (contention != null) {
+      contention.close();
+      contention = null;
+    }
+    if (gaugeEvaluator != null) {
+      gaugeEvaluator.close();
+      gaugeEvaluator = null;
+    }
+    super.destroy();
   }
   
   @Override
@@ -116,30 +458,311 @@ public class MonitoringServlet extends WebappServletPluginExtension {
       threadDumpServlet.service(req, resp);
     } else if (req.getPathInfo().startsWith("/monitoring/metrics")) {
       metricsServlet.service(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/prometheus")) {
+      prometheusWriter.write(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/slow")) {
+      SlowRequestRecorder recorder = (SlowRequestRecorder) getServletConfig().getServletContext()
+          .getAttribute(SlowRequestRecorder.ATTR_NAME);
+      writeJson(resp, recorder != null ? recorder.getSlowRequests() : null);
+    } else if (req.getPathInfo().startsWith("/monitoring/profile")) {
+      profile(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/jfr")) {
+      downloadRecording(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/heap/histogram")) {
+      heapHistogram(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/history")) {
+      history(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/stream")) {
+      stream(req, resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/dashboard")) {
+      dashboard(resp);
+    } else if (req.getPathInfo().startsWith("/monitoring/top")) {
+      HeavyHitters heavyHitters = (HeavyHitters) getServletConfig().getServletContext()
+          .getAttribute(HeavyHitters.ATTR_NAME);
+      writeJson(resp, heavyHitters != null ? heavyHitters.getTop(getLimit(req)) : null);
+    }
+  }
+
+  /**
+   * @param req The request.
+   * 
+   * @return The number of entries requested with the <code>limit</code> parameter.
+   */
+  private static int getLimit(HttpServletRequest req) {
+    return getIntParameter(req, "limit", DEFAULT_TOP_LIMIT, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the value of an integer request parameter.
+   * 
+   * @param req The request.
+   * @param name The name of the parameter.
+   * @param defaultValue The value used if the parameter is missing or invalid.
+   * @param min The minimum value.
+   * @param max The maximum value.
+   * 
+   * @return The value of the parameter.
+   */
+  private static int getIntParameter(HttpServletRequest req, String name, int defaultValue, int min, int max) {
+    String value = req.getParameter(name);
+    if (value != null) {
+      try {
+        return Math.min(max, Math.max(min, Integer.parseInt(value)));
+      } catch (NumberFormatException e) {
+        // Use the default value.
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Records a profile of the threads and writes it as folded stacks or as a flame graph.
+   * 
+   * @param req The request.
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void profile(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    SamplingProfiler profiler = (SamplingProfiler) getServletConfig().getServletContext()
+        .getAttribute(SamplingProfiler.ATTR_NAME);
+    if (profiler == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    int seconds = getIntParameter(req, "seconds", DEFAULT_PROFILE_SECONDS, 1, MAX_PROFILE_SECONDS);
+    int intervalMillis = getIntParameter(req, "interval", DEFAULT_PROFILE_INTERVAL_MILLIS, 1, 1000);
+    String label = req.getParameter("label");
+    SamplingProfiler.Profile profile;
+    try {
+      profile = profiler.profile(TimeUnit.SECONDS.toMillis(seconds), intervalMillis, label);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    if (profile == null) {
+      resp.sendError(HttpServletResponse.SC_CONFLICT, "Another profile is being recorded.");
+      return;
+    }
+    resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+    resp.setCharacterEncoding("UTF-8");
+    if ("svg".equals(req.getParameter("format"))) {
+      resp.setContentType("image/svg+xml");
+      String title = "Profile of " + (label != null ? "the " + label + " requests" : "all threads") 
+          + ", " + seconds + "s, " + profile.getSamples() + " samples";
+      profile.writeSvg(resp.getWriter(), title);
+    } else {
+      resp.setContentType("text/plain");
+      profile.writeFolded(resp.getWriter());
+    }
+  }
+  
+  /**
+   * Streams the main metrics to the client as Server-Sent Events.
+   * 
+   * @param req The request.
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void stream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!req.isAsyncSupported()) {
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Asynchronous requests are not supported.");
+    } else if (!metricStream.subscribe(req, resp)) {
+      resp.setHeader("Retry-After", "30");
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many clients.");
+    }
+  }
+
+  /**
+   * Writes the dashboard page that displays the metrics stream.
+   * 
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void dashboard(HttpServletResponse resp) throws IOException {
+    try (InputStream page = MonitoringServlet.class.getResourceAsStream(DASHBOARD_RESOURCE)) {
+      if (page == null) {
+        resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      resp.setContentType("text/html");
+      resp.setCharacterEncoding("UTF-8");
+      resp.setHeader("Cache-Control", "no-cache");
+      page.transferTo(resp.getOutputStream());
+    }
+  }
+
+  /**
+   * Writes the history of a metric, or the names of the metrics with history if no metric is requested.
+   * 
+   * @param req The request.
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void history(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (metricHistory == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    String metric = req.getParameter("metric");
+    if (metric == null) {
+      writeJson(resp, metricHistory.getMetrics());
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long to = getTimeParameter(req, "to", now, now);
+    long from = getTimeParameter(req, "from", to - DEFAULT_HISTORY_PERIOD_MILLIS, now);
+    writeJson(resp, metricHistory.query(metric, from, to, now));
+  }
+
+  /**
+   * Returns the value of a time request parameter, either milliseconds since the epoch or a 
+   * duration before now, such as <code>-90m</code>, <code>-12h</code> or <code>-7d</code>.
+   * 
+   * @param req The request.
+   * @param name The name of the parameter.
+   * @param defaultValue The value used if the parameter is missing or invalid.
+   * @param now The current time, in milliseconds since the epoch.
+   * 
+   * @return The time, in milliseconds since the epoch, not later than now.
+   */
+  private static long getTimeParameter(HttpServletRequest req, String name, long defaultValue, long now) {
+    String value = req.getParameter(name);
+    long time = defaultValue;
+    if (value != null && !value.isEmpty()) {
+      try {
+        if (value.startsWith("-") && value.length() > 2) {
+          long amount = Math.max(0, Long.parseLong(value.substring(1, value.length() - 1)));
+          switch (value.charAt(value.length() - 1)) {
+            case 's':
+              time = now - TimeUnit.SECONDS.toMillis(amount);
+              break;
+            case 'm':
+              time = now - TimeUnit.MINUTES.toMillis(amount);
+              break;
+            case 'h':
+              time = now - TimeUnit.HOURS.toMillis(amount);
+              break;
+            case 'd':
+              time = now - TimeUnit.DAYS.toMillis(amount);
+              break;
+            default:
+              break;
+          }
+        } else {
+          time = Long.parseLong(value);
+        }
+      } catch (NumberFormatException e) {
+        // Use the default value.
+      }
+    }
+    // There is no history in the future, and the extreme values would overflow when reading the history.
+    return Math.max(0, Math.min(now, time));
+  }
+
+  /**
+   * Writes a class histogram of the heap, optionally compared to the previous one.
+   * 
+   * @param req The request.
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void heapHistogram(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    HeapHistogram.Snapshot histogram;
+    try {
+      histogram = heapHistogram.compute(Boolean.parseBoolean(req.getParameter("live")), 
+          Boolean.parseBoolean(req.getParameter("diff")), getLimit(req));
+    } catch (IOException e) {
+      log.warn("Cannot compute the heap histogram.", e);
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The heap histogram is not available.");
+      return;
+    }
+    writeJson(resp, histogram);
+  }
+
+  /**
+   * Writes the events of the continuous flight recording from the last minutes.
+   * 
+   * @param req The request.
+   * @param resp The response.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void downloadRecording(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    ContinuousRecording recording = (ContinuousRecording) getServletConfig().getServletContext()
+        .getAttribute(ContinuousRecording.ATTR_NAME);
+    if (recording == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    int maxMinutes = (int) recording.getMaxAge().toMinutes();
+    int minutes = getIntParameter(req, "minutes", maxMinutes, 1, maxMinutes);
+    Path file = Files.createTempFile("web-author-", ".jfr");
+    try {
+      recording.dump(Duration.ofMinutes(minutes), file);
+      resp.setContentType("application/octet-stream");
+      resp.setHeader("Content-Disposition", "attachment; filename=\"web-author.jfr\"");
+      resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+      resp.setContentLengthLong(Files.size(file));
+      Files.copy(file, resp.getOutputStream());
+    } finally {
+      Files.deleteIfExists(file);
     }
   }
   
+  /**
+   * Writes the JSON representation of a value, or a 404 error if the value is not available.
+   * 
+   * @param resp The response.
+   * @param value The value, may be null.
+   * 
+   * @throws IOException If the response cannot be written.
+   */
+  private void writeJson(HttpServletResponse resp, Object value) throws IOException {
+    if (value == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+    mapper.writerWithDefaultPrettyPrinter().writeValue(resp.getOutputStream(), value);
+  }
+  
   /**
    * Initialize the graphite reporter.
    * 
-   * @param registry The metrics registry.
+   * @param reportedRegistry The registry whose metrics are reported.
+   * @param registry The registry where the sender registers its own metrics.
+   * @param graphiteServer The address of the Graphite server.
    * 
-   * @return The graphite reporter, or null if not configured.
+   * @return The graphite reporter.
    */
-  private GraphiteReporter getGraphiteReporter(MetricRegistry registry) {
-    InetSocketAddress graphiteServer = getGraphiteServer();
-    if (graphiteServer != null) {
-      // Start a reporter to send data to the graphite server.
-      GraphiteUDP graphite = new GraphiteUDP(graphiteServer);
-      return GraphiteReporter.forRegistry(registry)
-                                          .prefixedWith(METRICS_NAMESPACE)
-                                          .convertRatesTo(TimeUnit.SECONDS)
-                                          .convertDurationsTo(TimeUnit.MILLISECONDS)
-                                          .filter(MetricFilter.ALL)
-                                          .build(graphite);
-      
-    }
-    return null;
+  private GraphiteReporter getGraphiteReporter(MetricRegistry reportedRegistry, MetricRegistry registry,
+      InetSocketAddress graphiteServer) {
+    String protocol = MonitoringOptions.getString(GRAPHITE_PROTOCOL_OPTION, "udp");
+    GraphiteSender graphite;
+    if ("tcp".equals(protocol) || "pickle".equals(protocol)) {
+      // The points of a report are sent in a few writes, from a background thread.
+      graphiteSender = new QueuedGraphiteSender(graphiteServer, "pickle".equals(protocol), 
+          MonitoringOptions.getInt(GRAPHITE_QUEUE_POINTS_OPTION, 100_000), registry, "reporter.graphite");
+      graphite = graphiteSender;
+    } else {
+      if (!"udp".equals(protocol)) {
+        log.warn("Unknown Graphite protocol {}, using udp.", protocol);
+      }
+      graphite = new GraphiteUDP(graphiteServer);
+    }
+    return GraphiteReporter.forRegistry(reportedRegistry)
+                                        .prefixedWith(METRICS_NAMESPACE)
+                                        .convertRatesTo(TimeUnit.SECONDS)
+                                        .convertDurationsTo(TimeUnit.MILLISECONDS)
+                                        .filter(MetricFilter.ALL)
+                                        .build(graphite);
   }
   
   /**
@@ -150,14 +773,41 @@ public class MonitoringServlet extends WebappServletPluginExtension {
    */
   private PlainTextReporter getLog4jReporter(MetricRegistry registry) {
     return new PlainTextReporter(registry, 
-        METRICS_NAMESPACE, TimeUnit.MILLISECONDS, TimeUnit.MILLISECONDS);
+        METRICS_NAMESPACE, TimeUnit.MILLISECONDS, TimeUnit.MILLISECONDS, 
+        MonitoringOptions.getBoolean(LOG_DELTAS_OPTION, false), 
+        MonitoringOptions.getInt(LOG_KEYFRAME_INTERVALS_OPTION, 10));
+  }
+
+  /**
+   * Initialize a reporter that appends the metrics to a rotating file.
+   * 
+   * @param reportedRegistry The registry whose metrics are reported.
+   * @param registry The registry where the reporter registers its own metrics.
+   * @return The reporter.
+   */
+  private FileReporter getFileReporter(MetricRegistry reportedRegistry, MetricRegistry registry) {
+    String directory = MonitoringOptions.getString(METRICS_FILE_DIRECTORY_OPTION, 
+        new File(System.getProperty("java.io.tmpdir"), "web-author-metrics").getPath());
+    String compression = MonitoringOptions.getString(METRICS_FILE_COMPRESSION_OPTION, "gzip");
+    if (!"gzip".equals(compression) && !"none".equals(compression)) {
+      log.warn("Unknown metrics file compression {}, using gzip.", compression);
+      compression = "gzip";
+    }
+    RotatingFileSink sink = new RotatingFileSink(Paths.get(directory), "metrics", 
+        MonitoringOptions.getLong(METRICS_FILE_MAX_MB_OPTION, 50) * 1024 * 1024, 
+        TimeUnit.HOURS.toMillis(MonitoringOptions.getLong(METRICS_FILE_MAX_HOURS_OPTION, 24)), 
+        MonitoringOptions.getInt(METRICS_FILE_MAX_FILES_OPTION, 10), 
+        "gzip".equals(compression), registry, Clock.defaultClock());
+    return new FileReporter(reportedRegistry, METRICS_NAMESPACE, TimeUnit.MILLISECONDS, TimeUnit.MILLISECONDS, 
+        MonitoringOptions.getBoolean(LOG_DELTAS_OPTION, false), 
+        MonitoringOptions.getInt(LOG_KEYFRAME_INTERVALS_OPTION, 10), sink);
   }
 
   /**
    * @return The configured Graphite server address.
    */
   private InetSocketAddress getGraphiteServer() {
-    String graphiteServer = System.getenv("GRAPHITE_SERVER");
+    String graphiteServer = MonitoringOptions.getString(GRAPHITE_SERVER_OPTION, null);
     
     if (graphiteServer == null || graphiteServer.trim().length() == 0) {
       return null;
@@ -165,7 +815,8 @@ public class MonitoringServlet extends WebappServletPluginExtension {
 
     String[] graphiteServerHostAndPort = graphiteServer.split(":");
     String host = graphiteServerHostAndPort[0];
-    int port = 2003;
+    // The pickle protocol has its own port.
+    int port = "pickle".equals(MonitoringOptions.getString(GRAPHITE_PROTOCOL_OPTION, "udp")) ? 2004 : 2003;
     if (graphiteServerHostAndPort.length == 2) {
       port = Integer.valueOf(graphiteServerHostAndPort[1]);
     }
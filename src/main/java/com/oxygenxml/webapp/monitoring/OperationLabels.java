@@ -0,0 +1,323 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Fine-grained labels for the requests grouped under a label, derived from the REST sub-path
+ * that follows the document id, e.g. {@code edit.insert}.
+ *
+ * The number of labels is capped: when all the slots are taken, requests for new operations
+ * are recorded under an overflow label. Periodically, the labels that did not receive any
+ * request are removed from the registry and the operations that received the most requests in
+ * the overflow bucket take the free slots, or replace the least used labels.
+ *
+ * @author cristi_talau
+ */
+class OperationLabels {
+
+  /**
+   * The name of the operation used for the overflow bucket.
+   */
+  static final String OVERFLOW_OPERATION = "overflow";
+
+  /**
+   * The maximum length of an operation name.
+   */
+  private static final int MAX_OPERATION_LENGTH = 64;
+
+  /**
+   * A label that has its metrics registered.
+   */
+  private static class Entry {
+    /**
+     * The operation name.
+     */
+    final String operation;
+    /**
+     * The metrics of the label.
+     */
+    final RequestMetrics metrics;
+    /**
+     * The number of requests since the last sweep.
+     */
+    final LongAdder windowCount = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param operation The operation name.
+     * @param metrics The metrics of the label.
+     */
+    Entry(String operation, RequestMetrics metrics) {
+      this.operation = operation;
+      this.metrics = metrics;
+    }
+  }
+
+  /**
+   * The absolute path prefix of the requests, before the document id.
+   */
+  private final String prefix;
+
+  /**
+   * The label of the requests, used as prefix for the fine-grained labels.
+   */
+  private final String parentLabel;
+
+  /**
+   * The metric registry.
+   */
+  private final MetricRegistry registry;
+
+  /**
+   * The clock used by metrics.
+   */
+  private final Clock clock;
+
+  /**
+   * The maximum number of labels, not counting the overflow one.
+   */
+  private final int maxLabels;
+
+  /**
+   * The interval between sweeps. Labels without requests during an interval are evicted.
+   */
+  private final long sweepIntervalNanos;
+
+  /**
+   * The metrics of the overflow bucket.
+   */
+  private final RequestMetrics overflow;
+
+  /**
+   * The labels with registered metrics. The array is replaced on every change so that lookups
+   * do not need to lock.
+   */
+  private volatile Entry[] entries = new Entry[0];
+
+  /**
+   * Request counts for the operations recorded in the overflow bucket since the last sweep.
+   * Bounded to {@link #maxLabels} entries.
+   */
+  private final Map<String, LongAdder> candidates = new ConcurrentHashMap<>();
+
+  /**
+   * The tick when the next sweep should run.
+   */
+  private long nextSweepTick;
+
+  /**
+   * Constructor.
+   *
+   * @param registry The metric registry.
+   * @param clock The clock used by metrics.
+   * @param prefix The absolute path prefix of the requests, before the document id.
+   * @param parentLabel The label of the requests.
+   * @param maxLabels The maximum number of labels, not counting the overflow one.
+   * @param sweepIntervalNanos The interval between sweeps.
+   */
+  OperationLabels(MetricRegistry registry, Clock clock, String prefix, String parentLabel,
+      int maxLabels, long sweepIntervalNanos) {
+    this.registry = registry;
+    this.clock = clock;
+    this.prefix = prefix;
+    this.parentLabel = parentLabel;
+    this.maxLabels = maxLabels;
+    this.sweepIntervalNanos = sweepIntervalNanos;
+    this.overflow = RequestMetrics.register(registry, parentLabel + "." + OVERFLOW_OPERATION, clock);
+    this.nextSweepTick = clock.getTick() + sweepIntervalNanos;
+  }
+
+  /**
+   * Returns the metrics for the operation of a request.
+   *
+   * Looking up an already registered label does not allocate.
+   *
+   * @param uri The request URI, starting with the prefix.
+   *
+   * @return The metrics of the operation.
+   */
+  RequestMetrics resolve(String uri) {
+    // Skip the document id.
+    int docIdStart = prefix.length() + 1;
+    int start = docIdStart < uri.length() ? uri.indexOf('/', docIdStart) + 1 : 0;
+    if (start <= 0) {
+      return overflow;
+    }
+    int end = uri.indexOf('/', start);
+    if (end == -1) {
+      end = uri.length();
+    }
+    int length = end - start;
+    if (length == 0 || length > MAX_OPERATION_LENGTH) {
+      return overflow;
+    }
+
+    for (Entry entry : entries) {
+      if (entry.operation.length() == length && uri.regionMatches(start, entry.operation, 0, length)) {
+        entry.windowCount.increment();
+        return entry.metrics;
+      }
+    }
+
+    if (!isValidOperation(uri, start, end)) {
+      return overflow;
+    }
+    return resolveNew(uri.substring(start, end));
+  }
+
+  /**
+   * Returns the metrics for an operation that was not found among the registered labels.
+   *
+   * @param operation The operation name.
+   *
+   * @return The metrics of the operation.
+   */
+  private RequestMetrics resolveNew(String operation) {
+    if (entries.length < maxLabels) {
+      synchronized (this) {
+        Entry existing = findEntry(operation);
+        if (existing != null) {
+          existing.windowCount.increment();
+          return existing.metrics;
+        }
+        if (entries.length < maxLabels) {
+          Entry entry = createEntry(operation);
+          Entry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+          newEntries[entries.length] = entry;
+          entries = newEntries;
+          entry.windowCount.increment();
+          return entry.metrics;
+        }
+      }
+    }
+
+    LongAdder count = candidates.get(operation);
+    if (count == null && candidates.size() < maxLabels) {
+      count = candidates.computeIfAbsent(operation, o -> new LongAdder());
+    }
+    if (count != null) {
+      count.increment();
+    }
+    return overflow;
+  }
+
+  /**
+   * Evicts the labels that did not receive requests and promotes the operations with the most
+   * requests from the overflow bucket, if the sweep interval elapsed.
+   *
+   * @param tick The current tick.
+   */
+  synchronized void maintain(long tick) {
+    if (tick - nextSweepTick < 0) {
+      return;
+    }
+    nextSweepTick = tick + sweepIntervalNanos;
+
+    List<Entry> kept = new ArrayList<>();
+    Map<Entry, Long> keptCounts = new HashMap<>();
+    for (Entry entry : entries) {
+      long count = entry.windowCount.sumThenReset();
+      if (count == 0) {
+        entry.metrics.unregister(registry);
+      } else {
+        kept.add(entry);
+        keptCounts.put(entry, count);
+      }
+    }
+    // The least used labels first, as they are the first to be replaced.
+    kept.sort(Comparator.comparing(keptCounts::get));
+
+    // The candidates with the most requests first.
+    List<SimpleEntry<String, Long>> sortedCandidates = new ArrayList<>();
+    candidates.forEach((operation, count) -> sortedCandidates.add(new SimpleEntry<>(operation, count.sum())));
+    candidates.clear();
+    sortedCandidates.sort(Comparator.comparing(SimpleEntry<String, Long>::getValue).reversed());
+
+    for (SimpleEntry<String, Long> candidate : sortedCandidates) {
+      if (kept.size() >= maxLabels) {
+        // Replace the least used label only if the candidate received more requests.
+        if (kept.isEmpty() || keptCounts.get(kept.get(0)) >= candidate.getValue()) {
+          break;
+        }
+        kept.remove(0).metrics.unregister(registry);
+      }
+      Entry entry = createEntry(candidate.getKey());
+      kept.add(entry);
+      keptCounts.put(entry, candidate.getValue());
+    }
+    entries = kept.toArray(new Entry[0]);
+  }
+
+  /**
+   * Removes the metrics of all the labels, including the overflow one, from the registry.
+   */
+  synchronized void unregister() {
+    for (Entry entry : entries) {
+      entry.metrics.unregister(registry);
+    }
+    entries = new Entry[0];
+    overflow.unregister(registry);
+  }
+
+  /**
+   * Creates an entry and registers its metrics.
+   *
+   * @param operation The operation name.
+   *
+   * @return The new entry.
+   */
+  private Entry createEntry(String operation) {
+    return new Entry(operation, RequestMetrics.register(registry, parentLabel + "." + operation, clock));
+  }
+
+  /**
+   * @param operation The operation name.
+   *
+   * @return The entry of the operation, or null if not registered.
+   */
+  private Entry findEntry(String operation) {
+    for (Entry entry : entries) {
+      if (entry.operation.equals(operation)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks that an operation name contains only characters that are safe in metric names.
+   *
+   * @param uri The URI.
+   * @param start The start index of the operation name.
+   * @param end The end index of the operation name.
+   *
+   * @return <code>true</code> if the operation name can be used in a label.
+   */
+  private static boolean isValidOperation(String uri, int start, int end) {
+    if (uri.regionMatches(start, OVERFLOW_OPERATION, 0, end - start)
+        && end - start == OVERFLOW_OPERATION.length()) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char c = uri.charAt(i);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_';
+      if (!valid) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
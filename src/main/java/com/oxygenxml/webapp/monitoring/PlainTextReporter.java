@@ -1,11 +1,18 @@
 package com.oxygenxml.webapp.monitoring;
 
-import java.security.AccessControlException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 
@@ -13,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -21,7 +29,12 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.json.MetricsModule;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
 
 import lombok.extern.slf4j.Slf4j;
 import ro.sync.security.Sandbox;
@@ -33,6 +46,12 @@ import ro.sync.security.Sandbox;
  * A logger or parent logger (NO_LAYOUT_LOGGER) and corresponding appender must be configured in WebAuthor.
  * The pattern of the appender must be set to log the message only (i.e. {@code %m%n})
  * 
+ * In delta mode, only the metrics that changed since the previous report are written, and a full 
+ * report - a keyframe - is written every few intervals. Counters are reported as the increment since 
+ * the previous report. The other counting metrics are considered changed when their count changed, 
+ * and the gauges when their value changed: the simple values are compared as they are, and the 
+ * other ones by their serialization.
+ * 
  * @author cristi_talau
  */
 @Slf4j
@@ -45,11 +64,156 @@ public class PlainTextReporter extends ScheduledReporter {
   
   private static final Logger metricsLog = LoggerFactory.getLogger(METRICS_LOGGER_NAME);
 
+  /**
+   * The initial size of the buffer where the reports are written.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Buffer whose content can be read without copying it, reused between reports.
+   */
+  private static class ReusableBuffer extends ByteArrayOutputStream {
+    /**
+     * Constructor.
+     *
+     * @param size The initial size.
+     */
+    ReusableBuffer(int size) {
+      super(size);
+    }
+
+    /**
+     * @return The buffer, valid up to {@link #size()}, until the next write.
+     */
+    byte[] getBuffer() {
+      return buf;
+    }
+
+    /**
+     * @param content Some content.
+     *
+     * @return <code>true</code> if the content of the buffer is the given one.
+     */
+    boolean contentEquals(byte[] content) {
+      if (content.length != count) {
+        return false;
+      }
+      for (int i = 0; i < count; i++) {
+        if (buf[i] != content[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
   /**
    * The JSON object mapper.
    */
   private final ObjectMapper mapper;
 
+  /**
+   * Whether only the changed metrics are reported, with counters as increments.
+   */
+  private final boolean deltas;
+
+  /**
+   * The number of reports between two full reports, in delta mode.
+   */
+  private final int keyframeIntervals;
+
+  /**
+   * The number of reports since the last full report.
+   */
+  private int reportsSinceKeyframe;
+
+  /**
+   * The counts of the counting metrics at the previous report, in delta mode.
+   */
+  private Map<String, Long> previousCounts = new HashMap<>();
+
+  /**
+   * The map reused for the counts of the next report, in delta mode.
+   */
+  private Map<String, Long> spareCounts = new HashMap<>();
+
+  /**
+   * The values of the gauges at the previous report, in delta mode. The simple values are kept as they are,
+   * the other ones as their serialization.
+   */
+  private Map<String, Object> previousGaugeValues = new HashMap<>();
+
+  /**
+   * The map reused for the values of the gauges of the next report, in delta mode.
+   */
+  private Map<String, Object> spareGaugeValues = new HashMap<>();
+
+  /**
+   * The keys of the entries of the current report, in the order in which they were added.
+   */
+  private final List<String> keys = new ArrayList<>();
+
+  /**
+   * The values of the entries of the current report, in the same order as the keys.
+   */
+  private final List<Object> values = new ArrayList<>();
+
+  /**
+   * The keys for which the order of the entries was computed.
+   */
+  private String[] orderedKeys = new String[0];
+
+  /**
+   * The indices of the entries to write, in the iteration order of a {@link HashMap} with the 
+   * ordered keys added in the same order.
+   */
+  private int[] order = new int[0];
+
+  /**
+   * The names of the metrics rewritten to be AWS CloudWatch friendly.
+   */
+  private final Map<String, String> rewrittenNames = new HashMap<>();
+
+  /**
+   * The buffer where the reports are written in UTF-8, reused between reports.
+   */
+  private final ReusableBuffer buffer = new ReusableBuffer(INITIAL_BUFFER_SIZE);
+
+  /**
+   * The generator that writes in the buffer, reused between reports, or null if it must be created.
+   */
+  private JsonGenerator generator;
+
+  /**
+   * The buffer where the values of the gauges are serialized to be compared, in delta mode.
+   */
+  private final ReusableBuffer gaugeBuffer = new ReusableBuffer(1024);
+
+  /**
+   * The generator that writes in the gauge buffer, or null if it must be created.
+   */
+  private JsonGenerator gaugeGenerator;
+
+  /**
+   * The entries of the current report, serialized in order.
+   */
+  private final JsonSerializable entries = new JsonSerializable.Base() {
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+      gen.writeStartObject();
+      for (int index : order) {
+        serializers.defaultSerializeField(keys.get(index), values.get(index), gen);
+      }
+      gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+        throws IOException {
+      serialize(gen, serializers);
+    }
+  };
+
   /**
    * Constructor.
    * 
@@ -62,8 +226,28 @@ public class PlainTextReporter extends ScheduledReporter {
       String name,
       TimeUnit rateUnit,
       TimeUnit durationUnit) {
-    super(registry, name, MetricFilter.ALL, rateUnit, durationUnit);
+    this(registry, name, rateUnit, durationUnit, false, 1);
+  }
 
+  /**
+   * Constructor.
+   * 
+   * @param registry The registry to take metrics from.
+   * @param name The name of the reporter.
+   * @param rateUnit The unit for rates.
+   * @param durationUnit The unit for durations.
+   * @param deltas Whether to report only the changed metrics, with counters as increments.
+   * @param keyframeIntervals The number of reports between two full reports, in delta mode.
+   */
+  public PlainTextReporter(MetricRegistry registry,
+      String name,
+      TimeUnit rateUnit,
+      TimeUnit durationUnit,
+      boolean deltas,
+      int keyframeIntervals) {
+    super(registry, name, MetricFilter.ALL, rateUnit, durationUnit);
+    this.deltas = deltas;
+    this.keyframeIntervals = Math.max(1, keyframeIntervals);
 
     this.mapper = new ObjectMapper().registerModule(
         new MetricsModule(rateUnit, durationUnit, false));
@@ -78,57 +262,261 @@ public class PlainTextReporter extends ScheduledReporter {
       SortedMap<String, Histogram> histograms, 
       SortedMap<String, Meter> meters, 
       SortedMap<String, Timer> timers) {
-
-    Map<String, Object> metrics = new HashMap<>();
-    addGaugeMetricsWithAllPermissions(gauges, metrics);
-    addMetrics(counters, metrics);
-    addMetrics(histograms, metrics);
-    addMetrics(meters, metrics);
-    addMetrics(timers, metrics);
-    metrics.put("timestamp", System.currentTimeMillis());
-    
+    int metricsCount = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+    if (rewrittenNames.size() > 2 * metricsCount) {
+      // Forget the names of the removed metrics.
+      rewrittenNames.clear();
+    }
     try {
+      if (deltas) {
+        boolean keyframe = reportsSinceKeyframe == 0;
+        reportsSinceKeyframe = (reportsSinceKeyframe + 1) % keyframeIntervals;
+        addChangedGaugeMetricsWithAllPermissions(gauges, keyframe);
+        Map<String, Long> counts = spareCounts;
+        counts.clear();
+        addChangedMetrics(counters, counts, keyframe);
+        addChangedMetrics(histograms, counts, keyframe);
+        addChangedMetrics(meters, counts, keyframe);
+        addChangedMetrics(timers, counts, keyframe);
+        spareCounts = previousCounts;
+        previousCounts = counts;
+        addEntry("keyframe", keyframe);
+      } else {
+        addGaugeMetricsWithAllPermissions(gauges);
+        addMetrics(counters);
+        addMetrics(histograms);
+        addMetrics(meters);
+        addMetrics(timers);
+      }
+      addEntry("timestamp", System.currentTimeMillis());
+
       // Metrics serialization requires full privileges since it queries the thread state
       // of the VM.
-      String metricsJson = Sandbox.runWithAllPerms((PrivilegedExceptionAction<String>) // NOSONAR 
-          () -> mapper.writer().writeValueAsString(metrics));
-      metricsLog.info(metricsJson);
+      Sandbox.runWithAllPerms((PrivilegedExceptionAction<String>) // NOSONAR 
+          this::writeEntries);
+      output(buffer.getBuffer(), buffer.size());
     } catch (Exception e) {
+      // The generator may be in the middle of the report.
+      generator = null;
       log.error(e.getMessage(), e);
+    } finally {
+      buffer.reset();
+      keys.clear();
+      values.clear();
+    }
+  }
+
+  /**
+   * Outputs a report. The buffer is reused by the next report, so it must not be kept.
+   * 
+   * @param metricsJson The buffer holding the report, as a JSON object encoded in UTF-8.
+   * @param length The length of the report.
+   */
+  protected void output(byte[] metricsJson, int length) {
+    if (metricsLog.isInfoEnabled()) {
+      metricsLog.info(new String(metricsJson, 0, length, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Writes the entries of the current report as a JSON object in the buffer.
+   * 
+   * @return Nothing.
+   * 
+   * @throws IOException If the entries cannot be serialized.
+   */
+  private String writeEntries() throws IOException {
+    updateOrder();
+    if (generator == null) {
+      generator = createGenerator(buffer);
     }
+    mapper.writeValue(generator, entries);
+    return null;
+  }
+
+  /**
+   * Creates a generator that writes separate root values without separators.
+   * 
+   * @param output The buffer where the generator writes.
+   * 
+   * @return The generator.
+   * 
+   * @throws IOException If the generator cannot be created.
+   */
+  private JsonGenerator createGenerator(ByteArrayOutputStream output) throws IOException {
+    JsonGenerator newGenerator = mapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+    newGenerator.setRootValueSeparator(null);
+    return newGenerator;
   }
 
   /**
-   * Add some metrics to the final map, rewriting the keys to be AWS CloudWatch friendly.
-   * @param metrics
-   * @param allMetrics
+   * Updates the order in which the entries are written, if the keys changed since the previous report.
+   * 
+   * The entries used to be collected in a {@link HashMap}, so they are written in its iteration order to keep 
+   * the output unchanged. When a key is added twice, the entry keeps the position of the first and the 
+   * value of the last.
    */
-  private <T> void addMetrics(Map<String, T> metrics, Map<String, Object> allMetrics) {
+  private void updateOrder() {
+    int size = keys.size();
+    boolean changed = orderedKeys.length != size;
+    for (int i = 0; !changed && i < size; i++) {
+      changed = !orderedKeys[i].equals(keys.get(i));
+    }
+    if (changed) {
+      Map<String, Integer> indices = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        indices.put(keys.get(i), i);
+      }
+      int[] newOrder = new int[indices.size()];
+      int position = 0;
+      for (Integer index : indices.values()) {
+        newOrder[position++] = index;
+      }
+      order = newOrder;
+      orderedKeys = keys.toArray(new String[size]);
+    }
+  }
+
+  /**
+   * Adds an entry to the current report.
+   * 
+   * @param key The key of the entry.
+   * @param value The value of the entry.
+   */
+  private void addEntry(String key, Object value) {
+    keys.add(key);
+    values.add(value);
+  }
+
+  /**
+   * @param name The name of a metric.
+   * 
+   * @return The name rewritten to be AWS CloudWatch friendly.
+   */
+  private String rewriteName(String name) {
+    return rewrittenNames.computeIfAbsent(name, n -> n.replace('.', '-'));
+  }
+
+  /**
+   * Add some metrics to the report, rewriting the keys to be AWS CloudWatch friendly.
+   * @param metrics The metrics to add.
+   */
+  private <T> void addMetrics(Map<String, T> metrics) {
     for (Entry<String, T> entry : metrics.entrySet()) {
-      allMetrics.put(entry.getKey().replace('.', '-'), entry.getValue());
+      addEntry(rewriteName(entry.getKey()), entry.getValue());
     }
   }
   
   /**
-   * Add some metrics to the final map, rewriting the keys to be AWS CloudWatch friendly.
+   * Add the metrics whose count changed to the report, rewriting the keys to be AWS CloudWatch friendly.
+   * Counters are added as the increment since the previous report.
+   * 
    * @param metrics The metrics to add.
-   * @param allMetrics The map where to put the values.
+   * @param counts The map where to put the current counts.
+   * @param keyframe Whether all the metrics should be added.
+   */
+  private <T extends Counting> void addChangedMetrics(Map<String, T> metrics, 
+      Map<String, Long> counts, boolean keyframe) {
+    for (Entry<String, T> entry : metrics.entrySet()) {
+      long count = entry.getValue().getCount();
+      counts.put(entry.getKey(), count);
+      Long previousCount = previousCounts.get(entry.getKey());
+      if (keyframe || previousCount == null || previousCount != count) {
+        Object value = entry.getValue();
+        if (value instanceof Counter) {
+          value = Collections.singletonMap("count", previousCount != null ? count - previousCount : count);
+        }
+        addEntry(rewriteName(entry.getKey()), value);
+      }
+    }
+  }
+
+  /**
+   * Add the gauges whose value changed to the report.
+   * 
+   * @param gauges The gauges to add.
+   * @param keyframe Whether all the gauges should be added.
+   */
+  private void addChangedGaugeMetricsWithAllPermissions(@SuppressWarnings("rawtypes") Map<String, Gauge> gauges, 
+      boolean keyframe) {
+    Map<String, Object> gaugeValues = spareGaugeValues;
+    gaugeValues.clear();
+    Sandbox.runWithAllPerms((PrivilegedAction<String>) // NOSONAR 
+      () -> {
+        gauges.forEach((name, gauge) -> {
+          try {
+            Object value = gauge.getValue();
+            Object previous = previousGaugeValues.get(name);
+            boolean changed;
+            if (isSimpleValue(value)) {
+              gaugeValues.put(name, value);
+              changed = !Objects.equals(value, previous);
+            } else {
+              serializeGaugeValue(value);
+              changed = !(previous instanceof byte[]) || !gaugeBuffer.contentEquals((byte[]) previous);
+              // The serialization is copied only when it changed.
+              gaugeValues.put(name, changed ? Arrays.copyOf(gaugeBuffer.getBuffer(), gaugeBuffer.size()) : previous);
+            }
+            if (keyframe || changed) {
+              addEntry(name, value);
+            }
+          } catch (IOException | RuntimeException e) {
+            // Also thrown by the gauges that failed, which should not prevent the report.
+            log.error("Error serializing metric: {}", name, e);
+          }
+        });
+        return "";
+      });
+    spareGaugeValues = previousGaugeValues;
+    previousGaugeValues = gaugeValues;
+  }
+
+  /**
+   * @param value The value of a gauge.
+   * 
+   * @return <code>true</code> if the value can be compared without serializing it.
+   */
+  private static boolean isSimpleValue(Object value) {
+    return value == null || value instanceof Number || value instanceof Boolean || value instanceof String;
+  }
+
+  /**
+   * Serializes the value of a gauge in the gauge buffer.
+   * 
+   * @param value The value.
+   * 
+   * @throws IOException If the value cannot be serialized.
+   */
+  private void serializeGaugeValue(Object value) throws IOException {
+    gaugeBuffer.reset();
+    try {
+      if (gaugeGenerator == null) {
+        gaugeGenerator = createGenerator(gaugeBuffer);
+      }
+      mapper.writeValue(gaugeGenerator, value);
+    } catch (IOException | RuntimeException e) {
+      // The generator may be in the middle of the value.
+      gaugeGenerator = null;
+      throw e;
+    }
+  }
+  
+  /**
+   * Add the values of the gauges to the report.
+   * @param metrics The gauges to add.
    */
-  private void addGaugeMetricsWithAllPermissions(@SuppressWarnings("rawtypes") Map<String, Gauge> metrics, 
-      Map<String, Object> allMetrics) {
+  private void addGaugeMetricsWithAllPermissions(@SuppressWarnings("rawtypes") Map<String, Gauge> metrics) {
     Sandbox.runWithAllPerms((PrivilegedAction<String>) // NOSONAR 
       () -> {
-        metrics.forEach((name, gauge) ->
-          addGaugeValue(name, gauge, allMetrics));
+        metrics.forEach(this::addGaugeValue);
         return "";
       });
   }
   
-  private void addGaugeValue(String name, @SuppressWarnings("rawtypes") Gauge gauge, 
-      Map<String, Object> allMetrics) {
+  private void addGaugeValue(String name, @SuppressWarnings("rawtypes") Gauge gauge) {
     try {
-      allMetrics.put(name, gauge.getValue());
-    } catch (AccessControlException e) {
+      addEntry(name, gauge.getValue());
+    } catch (RuntimeException e) {
       log.error("Error serializing metric: {}", name, e);
     }
   }
@@ -0,0 +1,376 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes the metrics of a registry in the Prometheus text exposition format.
+ *
+ * The rendered output is cached for a short time, so that several scrapers do not each compute
+ * all the gauges and snapshots. Concurrent requests for an expired output wait for a single
+ * rendering. The gzip-compressed output is cached as well.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class PrometheusWriter {
+
+  /**
+   * The content type of the Prometheus text format.
+   */
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * The quantiles reported for timers and histograms.
+   */
+  private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+
+  /**
+   * The number of nanoseconds in a second, used to report durations in seconds.
+   */
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * A rendering of the metrics.
+   */
+  private static class Rendering {
+    /**
+     * The tick when the metrics were rendered.
+     */
+    private final long tick;
+    /**
+     * The rendered metrics.
+     */
+    private final byte[] plain;
+    /**
+     * The gzip-compressed rendered metrics, computed when first requested.
+     */
+    private byte[] gzipped;
+
+    /**
+     * Constructor.
+     *
+     * @param tick The tick when the metrics were rendered.
+     * @param plain The rendered metrics.
+     */
+    Rendering(long tick, byte[] plain) {
+      this.tick = tick;
+      this.plain = plain;
+    }
+  }
+
+  /**
+   * The metric registry.
+   */
+  private final MetricRegistry registry;
+
+  /**
+   * The prefix of the metric names.
+   */
+  private final String prefix;
+
+  /**
+   * The clock used to expire the cached output.
+   */
+  private final Clock clock;
+
+  /**
+   * The duration for which a rendering is reused, in nanoseconds.
+   */
+  private final long cacheTtlNanos;
+
+  /**
+   * The last rendering, guarded by this object.
+   */
+  private Rendering rendering;
+
+  /**
+   * Constructor.
+   *
+   * @param registry The metric registry.
+   * @param namespace The namespace of the metrics, used as a prefix of their names.
+   * @param clock The clock used to expire the cached output.
+   * @param cacheTtlNanos The duration for which a rendering is reused, in nanoseconds.
+   */
+  PrometheusWriter(MetricRegistry registry, String namespace, Clock clock, long cacheTtlNanos) {
+    this.registry = registry;
+    this.prefix = sanitize(namespace) + "_";
+    this.clock = clock;
+    this.cacheTtlNanos = cacheTtlNanos;
+  }
+
+  /**
+   * Writes the metrics to the response, compressed if the client accepts it.
+   *
+   * @param req The request.
+   * @param resp The response.
+   *
+   * @throws IOException If the response cannot be written.
+   */
+  void write(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+    byte[] content = getContent(gzip);
+    resp.setContentType(CONTENT_TYPE);
+    resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+    }
+    resp.setContentLength(content.length);
+    resp.getOutputStream().write(content);
+  }
+
+  /**
+   * Returns the rendered metrics, rendering them again if the cached ones expired.
+   *
+   * @param gzip <code>true</code> to return the compressed metrics.
+   *
+   * @return The rendered metrics.
+   *
+   * @throws IOException If the metrics cannot be compressed.
+   */
+  synchronized byte[] getContent(boolean gzip) throws IOException {
+    long tick = clock.getTick();
+    if (rendering == null || tick - rendering.tick >= cacheTtlNanos) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+        render(writer);
+      }
+      rendering = new Rendering(tick, output.toByteArray());
+    }
+    if (!gzip) {
+      return rendering.plain;
+    }
+    if (rendering.gzipped == null) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream(rendering.plain.length / 4);
+      try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+        gzipOutput.write(rendering.plain);
+      }
+      rendering.gzipped = output.toByteArray();
+    }
+    return rendering.gzipped;
+  }
+
+  /**
+   * Renders all the metrics of the registry.
+   *
+   * @param writer The writer.
+   *
+   * @throws IOException If the metrics cannot be written.
+   */
+  void render(Writer writer) throws IOException {
+    // Distinct metric names may have the same sanitized name, which must be written only once.
+    Set<String> names = new HashSet<>();
+    for (@SuppressWarnings("rawtypes") Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+      writeGauge(writer, names, entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+      String name = prefix + sanitize(entry.getKey());
+      if (reserve(names, entry.getKey(), name)) {
+        writeType(writer, name, "gauge");
+        writeSample(writer, name, null, entry.getValue().getCount());
+      }
+    }
+    for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+      String name = prefix + sanitize(entry.getKey()) + "_total";
+      if (reserve(names, entry.getKey(), name)) {
+        writeType(writer, name, "counter");
+        writeSample(writer, name, null, entry.getValue().getCount());
+      }
+    }
+    for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+      String name = prefix + sanitize(entry.getKey());
+      Histogram histogram = entry.getValue();
+      Double sum = histogram instanceof SummingHistogram ? (double) ((SummingHistogram) histogram).getSum() : null;
+      if (reserve(names, entry.getKey(), name, name + "_count", name + "_sum")) {
+        writeSummary(writer, name, histogram.getSnapshot(), 1, histogram.getCount(), sum);
+      }
+    }
+    for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+      String name = prefix + sanitize(entry.getKey()) + "_seconds";
+      Timer timer = entry.getValue();
+      Double sum = timer instanceof SummingTimer ? (double) ((SummingTimer) timer).getSumNanos() : null;
+      if (reserve(names, entry.getKey(), name, name + "_count", name + "_sum")) {
+        writeSummary(writer, name, timer.getSnapshot(), NANOS_PER_SECOND, timer.getCount(), sum);
+      }
+    }
+  }
+
+  /**
+   * Reserves the names of the samples of a metric, unless one of them was already written.
+   *
+   * @param names The names of the samples already written.
+   * @param metricName The name of the metric in the registry.
+   * @param sampleNames The names of the samples of the metric.
+   *
+   * @return <code>true</code> if the metric can be written.
+   */
+  private static boolean reserve(Set<String> names, String metricName, String... sampleNames) {
+    for (String sampleName : sampleNames) {
+      if (names.contains(sampleName)) {
+        // Prometheus rejects the whole output if a metric is written twice.
+        log.debug("Skipping metric {}, its name {} is already used.", metricName, sampleName);
+        return false;
+      }
+    }
+    Collections.addAll(names, sampleNames);
+    return true;
+  }
+
+  /**
+   * Writes a gauge, if its value is a number or a boolean.
+   *
+   * @param writer The writer.
+   * @param names The names of the samples already written.
+   * @param metricName The name of the gauge in the registry.
+   * @param gauge The gauge.
+   *
+   * @throws IOException If the gauge cannot be written.
+   */
+  private void writeGauge(Writer writer, Set<String> names, String metricName, 
+      @SuppressWarnings("rawtypes") Gauge gauge) throws IOException {
+    Object value;
+    try {
+      value = gauge.getValue();
+    } catch (RuntimeException e) {
+      log.debug("Cannot compute gauge {}", metricName, e);
+      return;
+    }
+    double number;
+    if (value instanceof Number) {
+      number = ((Number) value).doubleValue();
+    } else if (value instanceof Boolean) {
+      number = ((Boolean) value) ? 1 : 0;
+    } else {
+      return;
+    }
+    String name = prefix + sanitize(metricName);
+    if (reserve(names, metricName, name)) {
+      writeType(writer, name, "gauge");
+      writeSample(writer, name, null, number);
+    }
+  }
+
+  /**
+   * Writes a summary. Prometheus expects the sum of a summary to be the cumulative sum of all the
+   * recorded values, which cannot be derived from the snapshot of the recent values. So a metric
+   * that does not track the sum is written as untyped quantiles and a count.
+   *
+   * @param writer The writer.
+   * @param name The name of the summary.
+   * @param snapshot The snapshot of the values.
+   * @param divisor The divisor applied to the values, to convert them to the base unit.
+   * @param count The number of recorded values.
+   * @param sum The sum of all the recorded values, or null if not tracked.
+   *
+   * @throws IOException If the summary cannot be written.
+   */
+  private static void writeSummary(Writer writer, String name, Snapshot snapshot, double divisor, long count,
+      Double sum) throws IOException {
+    writeType(writer, name, sum != null ? "summary" : "untyped");
+    for (double quantile : QUANTILES) {
+      writeSample(writer, name, Double.toString(quantile), snapshot.getValue(quantile) / divisor);
+    }
+    if (sum == null) {
+      writeType(writer, name + "_count", "counter");
+    }
+    writeSample(writer, name + "_count", null, count);
+    if (sum != null) {
+      writeSample(writer, name + "_sum", null, sum / divisor);
+    }
+  }
+
+  /**
+   * Writes the type of a metric.
+   *
+   * @param writer The writer.
+   * @param name The name of the metric.
+   * @param type The type.
+   *
+   * @throws IOException If the type cannot be written.
+   */
+  private static void writeType(Writer writer, String name, String type) throws IOException {
+    writer.write("# TYPE ");
+    writer.write(name);
+    writer.write(' ');
+    writer.write(type);
+    writer.write('\n');
+  }
+
+  /**
+   * Writes a sample.
+   *
+   * @param writer The writer.
+   * @param name The name of the metric.
+   * @param quantile The quantile label, or null.
+   * @param value The value.
+   *
+   * @throws IOException If the sample cannot be written.
+   */
+  private static void writeSample(Writer writer, String name, String quantile, double value) throws IOException {
+    writer.write(name);
+    if (quantile != null) {
+      writer.write("{quantile=\"");
+      writer.write(quantile);
+      writer.write("\"}");
+    }
+    writer.write(' ');
+    writer.write(formatValue(value));
+    writer.write('\n');
+  }
+
+  /**
+   * @param value The value.
+   *
+   * @return The representation of the value in the Prometheus format.
+   */
+  private static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  /**
+   * @param name A metric name.
+   *
+   * @return The name with the characters not allowed by Prometheus replaced by underscores.
+   */
+  static String sanitize(String name) {
+    StringBuilder sanitized = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+          || (c >= '0' && c <= '9' && i > 0);
+      sanitized.append(allowed ? c : '_');
+    }
+    return sanitized.toString();
+  }
+}
@@ -0,0 +1,413 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.graphite.GraphiteSender;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Graphite sender that batches the points of a report and sends them over TCP from a background
+ * thread, using either the plaintext or the pickle protocol.
+ *
+ * The reporter thread never waits for the network: the points of a report are encoded in a few
+ * payloads and added to a bounded queue. When the queue is full, the oldest points are dropped.
+ * The background thread reconnects with exponential backoff when the server is unavailable, and
+ * retries the batch that failed.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class QueuedGraphiteSender implements GraphiteSender {
+
+  /**
+   * The maximum number of points in a pickle payload.
+   */
+  static final int PICKLE_BATCH_SIZE = 500;
+
+  /**
+   * The initial delay before reconnecting after a failure.
+   */
+  private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /**
+   * The maximum delay before reconnecting after a failure.
+   */
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * The timeout for connecting to the server.
+   */
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The points of a report, encoded for sending.
+   */
+  private static class Batch {
+    /**
+     * The payloads, written in order.
+     */
+    private final List<byte[]> payloads;
+    /**
+     * The number of points.
+     */
+    private final int points;
+
+    /**
+     * Constructor.
+     *
+     * @param payloads The payloads, written in order.
+     * @param points The number of points.
+     */
+    Batch(List<byte[]> payloads, int points) {
+      this.payloads = payloads;
+      this.points = points;
+    }
+  }
+
+  /**
+   * The address of the Graphite server.
+   */
+  private final InetSocketAddress address;
+
+  /**
+   * Whether to use the pickle protocol instead of the plaintext one.
+   */
+  private final boolean pickle;
+
+  /**
+   * The maximum number of points waiting to be sent.
+   */
+  private final int maxQueuedPoints;
+
+  /**
+   * The batches waiting to be sent, guarded by itself.
+   */
+  private final Deque<Batch> queue = new ArrayDeque<>();
+
+  /**
+   * The number of points in the queue, guarded by the queue.
+   */
+  private int queuedPoints;
+
+  /**
+   * The names of the points of the current report.
+   */
+  private final List<String> names = new ArrayList<>();
+
+  /**
+   * The values of the points of the current report.
+   */
+  private final List<String> values = new ArrayList<>();
+
+  /**
+   * The timestamps of the points of the current report.
+   */
+  private final List<Long> timestamps = new ArrayList<>();
+
+  /**
+   * The number of points dropped because the queue was full.
+   */
+  private final Counter dropped;
+
+  /**
+   * The number of points sent.
+   */
+  private final Counter sent;
+
+  /**
+   * The number of failed connections or writes.
+   */
+  private final Counter failures;
+
+  /**
+   * The thread that sends the batches.
+   */
+  private final Thread senderThread;
+
+  /**
+   * The connection to the server, only used by the sender thread.
+   */
+  private Socket socket;
+
+  /**
+   * Constructor. Starts the thread that sends the batches.
+   *
+   * @param address The address of the Graphite server.
+   * @param pickle Whether to use the pickle protocol instead of the plaintext one.
+   * @param maxQueuedPoints The maximum number of points waiting to be sent.
+   * @param registry The registry where to register the metrics of the sender.
+   * @param metricsPrefix The prefix of the names of the metrics of the sender.
+   */
+  QueuedGraphiteSender(InetSocketAddress address, boolean pickle, int maxQueuedPoints,
+      MetricRegistry registry, String metricsPrefix) {
+    this.address = address;
+    this.pickle = pickle;
+    this.maxQueuedPoints = maxQueuedPoints;
+    this.dropped = registry.counter(metricsPrefix + ".dropped");
+    this.sent = registry.counter(metricsPrefix + ".sent");
+    this.failures = registry.counter(metricsPrefix + ".failures");
+    registry.gauge(metricsPrefix + ".queued", () -> this::getQueuedPoints);
+    this.senderThread = new Thread(this::sendBatches, "monitoring-graphite-sender");
+    senderThread.setDaemon(true);
+    senderThread.start();
+  }
+
+  @Override
+  public void connect() {
+    // The connection is managed by the sender thread, just start a new batch.
+    names.clear();
+    values.clear();
+    timestamps.clear();
+  }
+
+  @Override
+  public void send(String name, String value, long timestamp) {
+    names.add(name);
+    values.add(value);
+    timestamps.add(timestamp);
+  }
+
+  @Override
+  public void flush() {
+    if (names.isEmpty()) {
+      return;
+    }
+    Batch batch = pickle ? encodePickle() : encodePlaintext();
+    names.clear();
+    values.clear();
+    timestamps.clear();
+    synchronized (queue) {
+      queuedPoints += batch.points;
+      queue.addLast(batch);
+      dropOldest();
+      queue.notifyAll();
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return true;
+  }
+
+  @Override
+  public int getFailures() {
+    return (int) failures.getCount();
+  }
+
+  @Override
+  public void close() {
+    // The reporter closes the sender after each report, the connection is kept by the sender thread.
+  }
+
+  /**
+   * Stops the sender thread and closes the connection. The points still in the queue are lost.
+   */
+  void shutdown() {
+    senderThread.interrupt();
+    try {
+      senderThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return The number of points waiting to be sent.
+   */
+  int getQueuedPoints() {
+    synchronized (queue) {
+      return queuedPoints;
+    }
+  }
+
+  /**
+   * Drops the oldest batches while the queue holds too many points. Must be called while
+   * holding the queue lock.
+   */
+  private void dropOldest() {
+    while (queuedPoints > maxQueuedPoints && !queue.isEmpty()) {
+      Batch oldest = queue.pollFirst();
+      queuedPoints -= oldest.points;
+      dropped.inc(oldest.points);
+    }
+  }
+
+  /**
+   * Sends the queued batches until the thread is interrupted.
+   */
+  private void sendBatches() {
+    long backoffMillis = MIN_BACKOFF_MILLIS;
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Batch batch;
+        synchronized (queue) {
+          // The batch leaves the queue and its points are no longer counted at once, otherwise a
+          // concurrent flush could drop the newest batches to make room for the one being sent.
+          while (queue.isEmpty()) {
+            queue.wait();
+          }
+          batch = queue.pollFirst();
+          queuedPoints -= batch.points;
+        }
+        try {
+          write(batch);
+          sent.inc(batch.points);
+          backoffMillis = MIN_BACKOFF_MILLIS;
+        } catch (IOException e) {
+          closeSocket();
+          synchronized (queue) {
+            // Retry the batch first, unless newer points need its place.
+            queuedPoints += batch.points;
+            queue.addFirst(batch);
+            dropOldest();
+          }
+          failures.inc();
+          log.warn("Unable to send metrics to Graphite at {}: {}", address, e.getMessage());
+          Thread.sleep(backoffMillis);
+          backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        }
+      }
+    } catch (InterruptedException e) {
+      // The sender was shut down.
+    } finally {
+      closeSocket();
+    }
+  }
+
+  /**
+   * Writes a batch, connecting to the server if needed.
+   *
+   * @param batch The batch.
+   *
+   * @throws IOException If the batch cannot be written.
+   */
+  private void write(Batch batch) throws IOException {
+    if (socket != null && isClosedByServer()) {
+      // Writing to a connection closed by the server succeeds locally, but the points are lost.
+      closeSocket();
+    }
+    if (socket == null) {
+      Socket newSocket = new Socket();
+      try {
+        newSocket.connect(address, CONNECT_TIMEOUT_MILLIS);
+      } catch (IOException e) {
+        newSocket.close();
+        throw e;
+      }
+      socket = newSocket;
+    }
+    OutputStream output = socket.getOutputStream();
+    for (byte[] payload : batch.payloads) {
+      output.write(payload);
+    }
+    output.flush();
+  }
+
+  /**
+   * Checks whether the server closed the connection. The server never sends data, so a read
+   * either times out on a live connection or reaches the end of the stream.
+   *
+   * @return <code>true</code> if the connection was closed by the server.
+   */
+  private boolean isClosedByServer() {
+    try {
+      socket.setSoTimeout(1);
+      return socket.getInputStream().read() == -1;
+    } catch (SocketTimeoutException e) {
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Closes the connection, if open.
+   */
+  private void closeSocket() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+      socket = null;
+    }
+  }
+
+  /**
+   * @return The points of the current report, in the plaintext protocol.
+   */
+  private Batch encodePlaintext() {
+    StringBuilder lines = new StringBuilder(names.size() * 64);
+    for (int i = 0; i < names.size(); i++) {
+      lines.append(sanitize(names.get(i))).append(' ')
+          .append(sanitize(values.get(i))).append(' ')
+          .append(timestamps.get(i)).append('\n');
+    }
+    List<byte[]> payloads = new ArrayList<>(1);
+    payloads.add(lines.toString().getBytes(StandardCharsets.UTF_8));
+    return new Batch(payloads, names.size());
+  }
+
+  /**
+   * @return The points of the current report, in the pickle protocol.
+   */
+  private Batch encodePickle() {
+    List<byte[]> payloads = new ArrayList<>();
+    for (int start = 0; start < names.size(); start += PICKLE_BATCH_SIZE) {
+      int end = Math.min(names.size(), start + PICKLE_BATCH_SIZE);
+      // A list of (name, (timestamp, value)) tuples, pickled with protocol 0.
+      StringBuilder pickled = new StringBuilder((end - start) * 80);
+      pickled.append("(l");
+      for (int i = start; i < end; i++) {
+        pickled.append("(S'").append(sanitize(names.get(i)).replace('\'', '_')).append("'\n")
+            .append("(L").append(timestamps.get(i)).append("L\n")
+            .append("S'").append(sanitize(values.get(i)).replace('\'', '_')).append("'\n")
+            .append("tta");
+      }
+      pickled.append('.');
+      byte[] body = pickled.toString().getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream payload = new ByteArrayOutputStream(body.length + 4);
+      // The payload is prefixed by its length, as a 4 bytes big-endian integer.
+      payload.write(body.length >>> 24);
+      payload.write(body.length >>> 16);
+      payload.write(body.length >>> 8);
+      payload.write(body.length);
+      payload.write(body, 0, body.length);
+      payloads.add(payload.toByteArray());
+    }
+    return new Batch(payloads, names.size());
+  }
+
+  /**
+   * @param text A name or a value.
+   *
+   * @return The text with the whitespace replaced, since it separates the fields of the protocol.
+   */
+  private static String sanitize(String text) {
+    StringBuilder sanitized = null;
+    for (int i = 0; i < text.length(); i++) {
+      if (Character.isWhitespace(text.charAt(i))) {
+        if (sanitized == null) {
+          sanitized = new StringBuilder(text);
+        }
+        sanitized.setCharAt(i, '-');
+      }
+    }
+    return sanitized != null ? sanitized.toString() : text;
+  }
+}
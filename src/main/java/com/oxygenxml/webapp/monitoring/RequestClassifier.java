@@ -0,0 +1,74 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Classifies requests by matching their URI against a list of path prefixes.
+ *
+ * The prefixes are resolved against the context path once, when the classifier is
+ * created, so that classifying a request does not allocate.
+ *
+ * @author cristi_talau
+ */
+class RequestClassifier {
+
+  /**
+   * The absolute path prefixes, in the order in which they are matched.
+   */
+  private final String[] prefixes;
+
+  /**
+   * The metrics corresponding to each prefix.
+   */
+  private final RequestMetrics[] metrics;
+
+  /**
+   * The metrics used for requests that do not match any prefix.
+   */
+  private final RequestMetrics fallback;
+
+  /**
+   * Constructor.
+   *
+   * @param contextPath The context path of the web application.
+   * @param prefixMetrics The metrics for each path prefix, relative to the context path.
+   * Prefixes are matched in iteration order.
+   * @param fallback The metrics used for requests that do not match any prefix.
+   */
+  RequestClassifier(String contextPath, Map<String, RequestMetrics> prefixMetrics, RequestMetrics fallback) {
+    this.prefixes = new String[prefixMetrics.size()];
+    this.metrics = new RequestMetrics[prefixMetrics.size()];
+    int index = 0;
+    for (Map.Entry<String, RequestMetrics> entry : prefixMetrics.entrySet()) {
+      prefixes[index] = contextPath + entry.getKey();
+      metrics[index] = entry.getValue();
+      index++;
+    }
+    this.fallback = fallback;
+  }
+
+  /**
+   * Classifies a request.
+   *
+   * @param request The request.
+   *
+   * @return The metrics of the request, or null if the request should not be monitored.
+   */
+  RequestMetrics classify(HttpServletRequest request) {
+    // For methods handled by our servlets, we have a pathInfo.
+    if (request.getPathInfo() == null) {
+      return null;
+    }
+    String uri = request.getRequestURI();
+    if (uri != null) {
+      for (int i = 0; i < prefixes.length; i++) {
+        if (uri.startsWith(prefixes[i])) {
+          return metrics[i];
+        }
+      }
+    }
+    return fallback;
+  }
+}
@@ -0,0 +1,423 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+/**
+ * The metrics recorded for all the requests that share a label.
+ *
+ * @author cristi_talau
+ */
+class RequestMetrics {
+
+  /**
+   * The time window covered by the duration percentiles, matching the interval of the reporters.
+   */
+  private static final long DURATION_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * The time window covered by the response size percentiles.
+   */
+  private static final long RESPONSE_SIZE_WINDOW_NANOS = DURATION_WINDOW_NANOS;
+
+  /**
+   * The interval after which the peak concurrency is reset, matching the interval of the reporters.
+   */
+  private static final long PEAK_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * The label of the requests.
+   */
+  private final String label;
+
+  /**
+   * The timer for the request durations.
+   */
+  private final Timer duration;
+
+  /**
+   * The meter for the failed requests.
+   */
+  private final Meter errors;
+
+  /**
+   * The histogram of the response sizes in bytes, or null if not recorded for this label.
+   */
+  private Histogram responseSize;
+
+  /**
+   * The meter for the number of bytes sent in responses, or null if not recorded for this label.
+   */
+  private Meter throughput;
+
+  /**
+   * The histogram of the CPU time in nanoseconds used by the request threads, or null if not 
+   * recorded for this label.
+   */
+  private Histogram cpuTime;
+
+  /**
+   * The histogram of the bytes allocated by the request threads, or null if not recorded for this label.
+   */
+  private Histogram allocatedBytes;
+
+  /**
+   * The meter for the requests rejected to protect the edit requests, or null if the requests 
+   * of this label are never rejected.
+   */
+  private Meter shed;
+
+  /**
+   * The number of requests in progress, or null if not recorded for this label.
+   */
+  private AtomicLong inFlight;
+
+  /**
+   * The maximum number of requests in progress during the current peak interval.
+   */
+  private final AtomicLong peak = new AtomicLong();
+
+  /**
+   * The maximum number of requests in progress during the previous peak interval.
+   */
+  private volatile long previousPeak;
+
+  /**
+   * The index of the current peak interval.
+   */
+  private AtomicLong peakInterval;
+
+  /**
+   * The clock used to compute the peak intervals.
+   */
+  private Clock clock;
+
+  /**
+   * The names under which the metrics are registered.
+   */
+  private final List<String> names;
+
+  /**
+   * The configured duration above which a request is considered slow.
+   */
+  private long baseSlowThresholdNanos = Long.MAX_VALUE;
+
+  /**
+   * The current duration above which a request is considered slow.
+   */
+  private volatile long slowThresholdNanos = Long.MAX_VALUE;
+
+  /**
+   * Constructor.
+   *
+   * @param label The label of the requests.
+   * @param duration The timer for the request durations.
+   * @param errors The meter for the failed requests.
+   * @param names The names under which the metrics are registered.
+   */
+  private RequestMetrics(String label, Timer duration, Meter errors, List<String> names) {
+    this.label = label;
+    this.duration = duration;
+    this.errors = errors;
+    this.names = new ArrayList<>(names);
+  }
+
+  /**
+   * Registers the metrics for the given label. If the metrics were already registered, they are reused.
+   *
+   * @param registry The metric registry.
+   * @param label The label.
+   * @param clock The clock used by metrics.
+   *
+   * @return The metrics for the given label.
+   */
+  static RequestMetrics register(MetricRegistry registry, String label, Clock clock) {
+    String durationName = "duration." + label;
+    String errorsName = "errors.rate." + label;
+    String percentageName = "errors.percentage." + label;
+    Timer duration = registry.timer(durationName,
+        () -> new SummingTimer(new WindowedLogLinearReservoir(clock, DURATION_WINDOW_NANOS), clock));
+    Meter errors = registry.meter(errorsName, () -> new Meter(clock));
+    // Register also a gauge indicating the error percentage.
+    registry.gauge(percentageName, () -> new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(errors.getFifteenMinuteRate(), duration.getFifteenMinuteRate());
+      }
+    });
+    return new RequestMetrics(label, duration, errors, 
+        Arrays.asList(durationName, errorsName, percentageName));
+  }
+
+  /**
+   * Registers the metrics for the sizes of the responses. Only called for the coarse labels, 
+   * before the metrics are used by requests.
+   *
+   * @param registry The metric registry.
+   * @param clock The clock used by metrics.
+   */
+  void registerResponseMetrics(MetricRegistry registry, Clock clock) {
+    String responseSizeName = "response.size." + label;
+    String throughputName = "response.bytes." + label;
+    responseSize = registry.histogram(responseSizeName, 
+        () -> new SummingHistogram(new WindowedLogLinearReservoir(clock, RESPONSE_SIZE_WINDOW_NANOS)));
+    throughput = registry.meter(throughputName, () -> new Meter(clock));
+    names.add(responseSizeName);
+    names.add(throughputName);
+  }
+
+  /**
+   * Records the size of a response, if the response metrics are registered.
+   *
+   * @param bytes The number of bytes sent in the response body.
+   */
+  void recordResponseSize(long bytes) {
+    if (responseSize != null) {
+      responseSize.update(bytes);
+      throughput.mark(bytes);
+    }
+  }
+
+  /**
+   * Registers the metrics for the CPU time and the memory allocated by the request threads. 
+   * Only called for the coarse labels, before the metrics are used by requests.
+   *
+   * @param registry The metric registry.
+   * @param clock The clock used by metrics.
+   */
+  void registerThreadResourceMetrics(MetricRegistry registry, Clock clock) {
+    String cpuTimeName = "cpu." + label;
+    String allocatedBytesName = "allocated.bytes." + label;
+    cpuTime = registry.histogram(cpuTimeName, 
+        () -> new SummingHistogram(new WindowedLogLinearReservoir(clock, DURATION_WINDOW_NANOS)));
+    allocatedBytes = registry.histogram(allocatedBytesName, 
+        () -> new SummingHistogram(new WindowedLogLinearReservoir(clock, DURATION_WINDOW_NANOS)));
+    names.add(cpuTimeName);
+    names.add(allocatedBytesName);
+  }
+
+  /**
+   * Records the resources used by the thread of a request, if the thread resource metrics are registered.
+   *
+   * @param cpuTimeNanos The CPU time in nanoseconds.
+   * @param bytes The number of allocated bytes.
+   */
+  void recordThreadResources(long cpuTimeNanos, long bytes) {
+    if (cpuTime != null) {
+      cpuTime.update(cpuTimeNanos);
+      allocatedBytes.update(bytes);
+    }
+  }
+
+  /**
+   * Registers the meter for the rejected requests, marking the requests of this label as 
+   * rejectable when the server is overloaded.
+   *
+   * @param registry The metric registry.
+   * @param clock The clock used by metrics.
+   */
+  void registerShedMetrics(MetricRegistry registry, Clock clock) {
+    String shedName = "shed.rate." + label;
+    shed = registry.meter(shedName, () -> new Meter(clock));
+    names.add(shedName);
+  }
+
+  /**
+   * @return <code>true</code> if the requests of this label can be rejected when the server is overloaded.
+   */
+  boolean isSheddable() {
+    return shed != null;
+  }
+
+  /**
+   * Registers the metrics for the number of concurrent requests. Only called for the coarse labels, 
+   * before the metrics are used by requests.
+   *
+   * @param registry The metric registry.
+   * @param clock The clock used by metrics.
+   */
+  void registerConcurrencyMetrics(MetricRegistry registry, Clock clock) {
+    this.clock = clock;
+    this.peakInterval = new AtomicLong(Math.floorDiv(clock.getTick(), PEAK_INTERVAL_NANOS));
+    AtomicLong counter = new AtomicLong();
+    String inFlightName = "concurrency.in-flight." + label;
+    String peakName = "concurrency.peak." + label;
+    String expectedName = "concurrency.expected." + label;
+    registry.gauge(inFlightName, () -> counter::get);
+    registry.gauge(peakName, () -> this::getPeakConcurrency);
+    registry.gauge(expectedName, () -> this::getExpectedConcurrency);
+    names.add(inFlightName);
+    names.add(peakName);
+    names.add(expectedName);
+    inFlight = counter;
+  }
+
+  /**
+   * Records that a request started, if the concurrency metrics are registered.
+   */
+  void requestStarted() {
+    if (inFlight != null) {
+      long current = inFlight.incrementAndGet();
+      rotatePeakIfDue();
+      long currentPeak = peak.get();
+      while (current > currentPeak && !peak.compareAndSet(currentPeak, current)) {
+        currentPeak = peak.get();
+      }
+    }
+  }
+
+  /**
+   * Records that a request completed, if the concurrency metrics are registered.
+   */
+  void requestCompleted() {
+    if (inFlight != null) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Starts a new peak interval if the current one elapsed.
+   */
+  private void rotatePeakIfDue() {
+    long interval = Math.floorDiv(clock.getTick(), PEAK_INTERVAL_NANOS);
+    long currentInterval = peakInterval.get();
+    if (interval > currentInterval && peakInterval.compareAndSet(currentInterval, interval)) {
+      long current = inFlight.get();
+      long lastPeak = peak.getAndSet(current);
+      // After an idle interval, the previous peak is the number of requests that were in progress.
+      previousPeak = interval == currentInterval + 1 ? lastPeak : current;
+    }
+  }
+
+  /**
+   * @return The number of requests in progress, or 0 if not recorded for this label.
+   */
+  long getInFlight() {
+    return inFlight != null ? inFlight.get() : 0;
+  }
+
+  /**
+   * @return The maximum number of concurrent requests during the current and the previous peak 
+   * intervals, so that no peak is missed by a reporter that is not aligned with the intervals.
+   */
+  long getPeakConcurrency() {
+    rotatePeakIfDue();
+    return Math.max(previousPeak, peak.get());
+  }
+
+  /**
+   * Computes the average number of concurrent requests according to Little's law, i.e. the 
+   * arrival rate multiplied by the mean duration.
+   *
+   * @return The expected concurrency.
+   */
+  double getExpectedConcurrency() {
+    double meanSeconds = duration.getSnapshot().getMean() / TimeUnit.SECONDS.toNanos(1);
+    return duration.getOneMinuteRate() * meanSeconds;
+  }
+
+  /**
+   * Removes the metrics from the registry.
+   *
+   * @param registry The metric registry.
+   */
+  void unregister(MetricRegistry registry) {
+    for (String name : names) {
+      registry.remove(name);
+    }
+  }
+
+  /**
+   * Sets the configured duration above which a request is considered slow.
+   *
+   * @param thresholdNanos The threshold in nanoseconds.
+   */
+  void setBaseSlowThresholdNanos(long thresholdNanos) {
+    this.baseSlowThresholdNanos = thresholdNanos;
+    this.slowThresholdNanos = thresholdNanos;
+  }
+
+  /**
+   * Adapts the slow request threshold to the recent durations of the requests. The configured
+   * threshold is used as a minimum.
+   *
+   * @param p99Factor The factor applied to the p99 duration.
+   */
+  void updateSlowThreshold(double p99Factor) {
+    long adaptiveThreshold = (long) (duration.getSnapshot().get99thPercentile() * p99Factor);
+    slowThresholdNanos = Math.max(baseSlowThresholdNanos, adaptiveThreshold);
+  }
+
+  /**
+   * @return The current duration in nanoseconds above which a request is considered slow.
+   */
+  long getSlowThresholdNanos() {
+    return slowThresholdNanos;
+  }
+
+  /**
+   * @return The histogram of the CPU time used by the request threads, or null if not recorded for this label.
+   */
+  Histogram getCpuTime() {
+    return cpuTime;
+  }
+
+  /**
+   * @return The histogram of the bytes allocated by the request threads, or null if not recorded for this label.
+   */
+  Histogram getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * @return The meter for the rejected requests, or null if the requests of this label are never rejected.
+   */
+  Meter getShed() {
+    return shed;
+  }
+
+  /**
+   * @return The label of the requests.
+   */
+  String getLabel() {
+    return label;
+  }
+
+  /**
+   * @return The timer for the request durations.
+   */
+  Timer getDuration() {
+    return duration;
+  }
+
+  /**
+   * @return The meter for the failed requests.
+   */
+  Meter getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return The histogram of the response sizes in bytes, or null if not recorded for this label.
+   */
+  Histogram getResponseSize() {
+    return responseSize;
+  }
+
+  /**
+   * @return The meter for the number of bytes sent in responses, or null if not recorded for this label.
+   */
+  Meter getThroughput() {
+    return throughput;
+  }
+}
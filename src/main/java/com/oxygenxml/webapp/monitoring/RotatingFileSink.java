@@ -0,0 +1,379 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Appends lines to a file, rotated when it grows too large or too old.
+ *
+ * The lines are queued and written by a background thread, so a slow disk never blocks the
+ * callers. When the queue is full, the new lines are dropped. The rotated files are renamed with
+ * the time of the rotation, optionally compressed with gzip, and only the most recent ones are kept.
+ *
+ * @author cristi_talau
+ */
+@Slf4j
+class RotatingFileSink {
+
+  /**
+   * The extension of the files.
+   */
+  private static final String EXTENSION = ".json";
+
+  /**
+   * The extension added to the compressed files.
+   */
+  private static final String GZIP_EXTENSION = ".gz";
+
+  /**
+   * The format of the time of the rotation in the names of the rotated files.
+   */
+  private static final String TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+  /**
+   * The number of lines waiting to be written above which new lines are dropped.
+   */
+  private static final int QUEUE_CAPACITY = 64;
+
+  /**
+   * The end of a line.
+   */
+  private static final byte[] NEW_LINE = {'\n'};
+
+  /**
+   * The directory of the files.
+   */
+  private final Path directory;
+
+  /**
+   * The name of the files, without extension.
+   */
+  private final String baseName;
+
+  /**
+   * The size in bytes above which the file is rotated.
+   */
+  private final long maxBytes;
+
+  /**
+   * The age in milliseconds above which the file is rotated.
+   */
+  private final long maxAgeMillis;
+
+  /**
+   * The number of rotated files kept.
+   */
+  private final int maxFiles;
+
+  /**
+   * Whether the rotated files are compressed with gzip.
+   */
+  private final boolean compress;
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The lines waiting to be written.
+   */
+  private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  /**
+   * The lines dropped because the queue was full or because they could not be written.
+   */
+  private final Counter dropped;
+
+  /**
+   * The thread that writes the lines.
+   */
+  private final Thread writerThread;
+
+  /**
+   * Whether the sink was closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The channel of the current file, or null if not open. Only used by the writer thread.
+   */
+  private FileChannel channel;
+
+  /**
+   * The time when the current file was created, in milliseconds since the epoch.
+   */
+  private long fileCreationMillis;
+
+  /**
+   * The time of the last rotation, as written in the name of the rotated file.
+   */
+  private String lastRotationTimestamp;
+
+  /**
+   * The index of the last rotated file among the ones rotated at the same time.
+   */
+  private int lastRotationIndex;
+
+  /**
+   * Constructor. Starts the writer thread.
+   *
+   * @param directory The directory of the files, created if needed.
+   * @param baseName The name of the files, without extension.
+   * @param maxBytes The size in bytes above which the file is rotated.
+   * @param maxAgeMillis The age in milliseconds above which the file is rotated.
+   * @param maxFiles The number of rotated files kept.
+   * @param compress Whether the rotated files are compressed with gzip.
+   * @param registry The registry where the sink registers its own metrics.
+   * @param clock The clock.
+   */
+  RotatingFileSink(Path directory, String baseName, long maxBytes, long maxAgeMillis, int maxFiles,
+      boolean compress, MetricRegistry registry, Clock clock) {
+    this.directory = directory;
+    this.baseName = baseName;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxFiles = maxFiles;
+    this.compress = compress;
+    this.clock = clock;
+    this.dropped = registry.counter("reporter.file.dropped");
+    registry.gauge("reporter.file.queued", () -> queue::size);
+    this.writerThread = new Thread(this::writeLines, "monitoring-metrics-file");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Queues a line to be written.
+   *
+   * @param line The line, without the line separator.
+   */
+  void append(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    append(bytes, bytes.length);
+  }
+
+  /**
+   * Queues a line to be written. The line is copied, so the buffer can be reused.
+   *
+   * @param buffer The buffer holding the line encoded in UTF-8, without the line separator.
+   * @param length The length of the line.
+   */
+  void append(byte[] buffer, int length) {
+    if (closed || !queue.offer(Arrays.copyOf(buffer, length))) {
+      dropped.inc();
+    }
+  }
+
+  /**
+   * Writes the queued lines, then closes the file.
+   */
+  void close() {
+    closed = true;
+    try {
+      writerThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return The path of the current file.
+   */
+  Path getCurrentFile() {
+    return directory.resolve(baseName + EXTENSION);
+  }
+
+  /**
+   * Writes the queued lines until the sink is closed.
+   */
+  private void writeLines() {
+    try {
+      while (!closed || !queue.isEmpty()) {
+        byte[] line = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (line != null) {
+          write(line);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closeChannel();
+    }
+  }
+
+  /**
+   * Writes a line, rotating the file first if needed.
+   *
+   * @param line The line.
+   */
+  private void write(byte[] line) {
+    try {
+      if (channel == null) {
+        openChannel();
+      }
+      long size = channel.size();
+      if (size > 0 && (size + line.length + 1 > maxBytes || clock.getTime() - fileCreationMillis >= maxAgeMillis)) {
+        rotate();
+        openChannel();
+      }
+      ByteBuffer[] buffers = {ByteBuffer.wrap(line), ByteBuffer.wrap(NEW_LINE)};
+      while (buffers[1].hasRemaining()) {
+        channel.write(buffers);
+      }
+    } catch (IOException e) {
+      dropped.inc();
+      log.warn("Cannot write the metrics in {}: {}", directory, e.getMessage());
+      closeChannel();
+    }
+  }
+
+  /**
+   * Opens the current file for appending.
+   *
+   * @throws IOException If the file cannot be opened.
+   */
+  private void openChannel() throws IOException {
+    Files.createDirectories(directory);
+    Path file = getCurrentFile();
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (channel.size() == 0) {
+      fileCreationMillis = clock.getTime();
+    } else {
+      // Continue the file of the previous run.
+      fileCreationMillis = Files.readAttributes(file, BasicFileAttributes.class).creationTime().toMillis();
+    }
+  }
+
+  /**
+   * Closes the current file, if open.
+   */
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Cannot close the metrics file: {}", e.getMessage());
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Renames the current file with the time of the rotation, compresses it if configured, and deletes
+   * the oldest rotated files.
+   *
+   * @throws IOException If the file cannot be renamed.
+   */
+  private void rotate() throws IOException {
+    closeChannel();
+    String timestamp = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date(clock.getTime()));
+    // The files rotated at the same time are numbered in order, even if the first ones were deleted.
+    int index = timestamp.equals(lastRotationTimestamp) ? lastRotationIndex + 1 : 0;
+    Path rotated = getRotatedFile(timestamp, index);
+    while (Files.exists(rotated) || Files.exists(rotated.resolveSibling(rotated.getFileName() + GZIP_EXTENSION))) {
+      index++;
+      rotated = getRotatedFile(timestamp, index);
+    }
+    lastRotationTimestamp = timestamp;
+    lastRotationIndex = index;
+    Files.move(getCurrentFile(), rotated);
+    if (compress) {
+      Path compressed = rotated.resolveSibling(rotated.getFileName() + GZIP_EXTENSION);
+      try (InputStream in = Files.newInputStream(rotated);
+          OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+        in.transferTo(out);
+      } catch (IOException e) {
+        // Keep the uncompressed file.
+        log.warn("Cannot compress the metrics file {}: {}", rotated, e.getMessage());
+        Files.deleteIfExists(compressed);
+        compressed = null;
+      }
+      if (compressed != null) {
+        Files.delete(rotated);
+      }
+    }
+    deleteOldFiles();
+  }
+
+  /**
+   * @param timestamp The time of the rotation.
+   * @param index The index that distinguishes the files rotated at the same time.
+   * 
+   * @return The path of the rotated file, before compression.
+   */
+  private Path getRotatedFile(String timestamp, int index) {
+    return directory.resolve(baseName + "-" + timestamp + (index > 0 ? "-" + index : "") + EXTENSION);
+  }
+
+  /**
+   * Deletes the oldest rotated files, keeping the configured number of files.
+   *
+   * @throws IOException If the directory cannot be read.
+   */
+  private void deleteOldFiles() throws IOException {
+    List<Path> rotated = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, baseName + "-*" + EXTENSION + "*")) {
+      files.forEach(rotated::add);
+    }
+    rotated.sort(Comparator.comparing(this::getTimestamp).thenComparingInt(this::getIndex));
+    for (int i = 0; i < rotated.size() - maxFiles; i++) {
+      Files.deleteIfExists(rotated.get(i));
+    }
+  }
+
+  /**
+   * @param rotated A rotated file.
+   * 
+   * @return The time of the rotation, as written in the name of the file.
+   */
+  private String getTimestamp(Path rotated) {
+    String name = rotated.getFileName().toString();
+    int start = baseName.length() + 1;
+    return name.substring(start, Math.min(name.length(), start + TIMESTAMP_FORMAT.length()));
+  }
+
+  /**
+   * @param rotated A rotated file.
+   * 
+   * @return The index that distinguishes the files rotated at the same time, 0 for the first one.
+   */
+  private int getIndex(Path rotated) {
+    String name = rotated.getFileName().toString();
+    int start = baseName.length() + 1 + TIMESTAMP_FORMAT.length() + 1;
+    int end = name.indexOf(EXTENSION, start - 1);
+    if (end <= start) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(name.substring(start, end));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Profiler that samples the stacks of the threads at a fixed rate and aggregates them in
+ * the folded stacks format used by flame graphs.
+ *
+ * The frames are deduplicated: each distinct frame is stored once and the stacks are arrays of
+ * frame indexes. The number of distinct stacks is capped, the samples of the other stacks are
+ * only counted.
+ *
+ * To profile only the threads that handle requests with a given label, the monitoring filter
+ * reports the threads of the requests while a profile is recorded.
+ *
+ * @author cristi_talau
+ */
+public class SamplingProfiler {
+
+  /**
+   * The name of the servlet context attribute that holds the profiler.
+   */
+  public static final String ATTR_NAME = SamplingProfiler.class.getName();
+
+  /**
+   * The maximum number of distinct stacks kept in a profile.
+   */
+  static final int MAX_STACKS = 20_000;
+
+  /**
+   * The name of the frame that stands for the samples of the stacks that were not kept.
+   */
+  static final String TRUNCATED_FRAME = "[truncated]";
+
+  /**
+   * The labels of the requests handled by each thread, by thread id. Only populated while a
+   * filtered profile is recorded.
+   */
+  private final Map<Long, String> threadLabels = new ConcurrentHashMap<>();
+
+  /**
+   * Whether the threads of the requests should be reported.
+   */
+  private volatile boolean trackingThreads;
+
+  /**
+   * Whether a profile is being recorded.
+   */
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  /**
+   * The bean used to get the stacks of the threads.
+   */
+  private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /**
+   * @return <code>true</code> if the threads of the requests should be reported.
+   */
+  boolean isTrackingThreads() {
+    return trackingThreads;
+  }
+
+  /**
+   * Reports that the current thread started handling a request.
+   *
+   * @param label The label of the request.
+   */
+  void threadStarted(String label) {
+    threadLabels.put(Thread.currentThread().getId(), label);
+  }
+
+  /**
+   * Reports that the current thread finished handling a request.
+   */
+  void threadFinished() {
+    threadLabels.remove(Thread.currentThread().getId());
+  }
+
+  /**
+   * Records a profile. The stacks are sampled by a background thread, while the current thread
+   * waits for the profile to complete.
+   *
+   * @param durationMillis The duration of the profile in milliseconds.
+   * @param intervalMillis The interval between two samples in milliseconds.
+   * @param label The label of the requests whose threads are profiled, or null to profile
+   * all the threads that are not waiting.
+   *
+   * @return The profile, or null if another profile is being recorded.
+   *
+   * @throws InterruptedException If interrupted while waiting for the profile.
+   */
+  public Profile profile(long durationMillis, long intervalMillis, String label) throws InterruptedException {
+    if (!running.compareAndSet(false, true)) {
+      return null;
+    }
+    try {
+      trackingThreads = label != null;
+      Profile profile = new Profile();
+      long requesterId = Thread.currentThread().getId();
+      Thread sampler = new Thread(() -> {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        for (long next = start; next - end < 0; next += intervalNanos) {
+          long delay = next - System.nanoTime();
+          if (delay > 0) {
+            try {
+              TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          sample(profile, label, requesterId);
+        }
+      }, "monitoring-profiler");
+      sampler.setDaemon(true);
+      sampler.start();
+      try {
+        sampler.join();
+      } finally {
+        sampler.interrupt();
+      }
+      return profile;
+    } finally {
+      trackingThreads = false;
+      threadLabels.clear();
+      running.set(false);
+    }
+  }
+
+  /**
+   * Takes a sample of the stacks of the profiled threads.
+   *
+   * @param profile The profile where to record the sample.
+   * @param label The label of the requests whose threads are profiled, or null.
+   * @param requesterId The id of the thread that waits for the profile, which is not sampled.
+   */
+  private void sample(Profile profile, String label, long requesterId) {
+    ThreadInfo[] threads;
+    if (label != null) {
+      long[] ids = threadLabels.entrySet().stream()
+          .filter(entry -> label.equals(entry.getValue()))
+          .mapToLong(Map.Entry::getKey)
+          .toArray();
+      threads = threadMXBean.getThreadInfo(ids, Integer.MAX_VALUE);
+    } else {
+      threads = threadMXBean.dumpAllThreads(false, false);
+    }
+    long samplerId = Thread.currentThread().getId();
+    synchronized (profile) {
+      profile.samples++;
+      for (ThreadInfo thread : threads) {
+        if (thread == null || thread.getThreadId() == samplerId || thread.getThreadId() == requesterId) {
+          continue;
+        }
+        Thread.State state = thread.getThreadState();
+        if (label == null && (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING)) {
+          // Idle threads would hide the ones doing work.
+          continue;
+        }
+        profile.add(thread.getStackTrace());
+      }
+    }
+  }
+
+  /**
+   * The aggregated stacks of a profile.
+   */
+  public static class Profile {
+    /**
+     * The index of each distinct frame.
+     */
+    private final Map<StackTraceElement, Integer> frameIndexes = new HashMap<>();
+
+    /**
+     * The names of the distinct frames.
+     */
+    private final List<String> frames = new ArrayList<>();
+
+    /**
+     * The number of samples of each distinct stack.
+     */
+    private final Map<Stack, long[]> stacks = new LinkedHashMap<>();
+
+    /**
+     * The number of thread samples whose stacks were not kept because of the cap.
+     */
+    private long truncated;
+
+    /**
+     * The number of samples taken.
+     */
+    private long samples;
+
+    /**
+     * Adds a stack to the profile.
+     *
+     * @param stackTrace The stack, with the innermost frame first.
+     */
+    void add(StackTraceElement[] stackTrace) {
+      if (stackTrace.length == 0) {
+        return;
+      }
+      int[] frameIds = new int[stackTrace.length];
+      for (int i = 0; i < stackTrace.length; i++) {
+        // The folded format starts with the outermost frame.
+        StackTraceElement frame = stackTrace[stackTrace.length - 1 - i];
+        Integer index = frameIndexes.get(frame);
+        if (index == null) {
+          index = frames.size();
+          frameIndexes.put(frame, index);
+          frames.add(frame.getClassName() + "." + frame.getMethodName());
+        }
+        frameIds[i] = index;
+      }
+      Stack stack = new Stack(frameIds);
+      long[] count = stacks.get(stack);
+      if (count == null) {
+        if (stacks.size() >= MAX_STACKS) {
+          truncated++;
+          return;
+        }
+        count = new long[1];
+        stacks.put(stack, count);
+      }
+      count[0]++;
+    }
+
+    /**
+     * @return The number of samples taken.
+     */
+    public synchronized long getSamples() {
+      return samples;
+    }
+
+    /**
+     * Returns the folded stacks.
+     *
+     * @return The number of samples of each stack, whose frames are separated by semicolons,
+     * outermost first.
+     */
+    public synchronized Map<String, Long> getFoldedStacks() {
+      Map<String, Long> folded = new LinkedHashMap<>();
+      StringBuilder line = new StringBuilder();
+      for (Map.Entry<Stack, long[]> entry : stacks.entrySet()) {
+        line.setLength(0);
+        for (int frameId : entry.getKey().frameIds) {
+          if (line.length() > 0) {
+            line.append(';');
+          }
+          line.append(frames.get(frameId));
+        }
+        folded.merge(line.toString(), entry.getValue()[0], Long::sum);
+      }
+      if (truncated > 0) {
+        folded.put(TRUNCATED_FRAME, truncated);
+      }
+      return folded;
+    }
+
+    /**
+     * Writes the folded stacks, one per line, followed by their number of samples.
+     *
+     * @param writer The writer.
+     *
+     * @throws IOException If the stacks cannot be written.
+     */
+    public void writeFolded(Writer writer) throws IOException {
+      for (Map.Entry<String, Long> entry : getFoldedStacks().entrySet()) {
+        writer.write(entry.getKey());
+        writer.write(' ');
+        writer.write(String.valueOf(entry.getValue()));
+        writer.write('\n');
+      }
+    }
+
+    /**
+     * Writes the profile as a self-contained SVG flame graph.
+     *
+     * @param writer The writer.
+     * @param title The title of the flame graph.
+     *
+     * @throws IOException If the flame graph cannot be written.
+     */
+    public void writeSvg(Writer writer, String title) throws IOException {
+      FlameGraph.write(getFoldedStacks(), title, writer);
+    }
+  }
+
+  /**
+   * A stack, as the indexes of its frames.
+   */
+  private static final class Stack {
+    /**
+     * The indexes of the frames, outermost first.
+     */
+    private final int[] frameIds;
+
+    /**
+     * The hash code of the frames.
+     */
+    private final int hash;
+
+    /**
+     * Constructor.
+     *
+     * @param frameIds The indexes of the frames, outermost first.
+     */
+    Stack(int[] frameIds) {
+      this.frameIds = frameIds;
+      this.hash = Arrays.hashCode(frameIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Stack && Arrays.equals(frameIds, ((Stack) obj).frameIds);
+    }
+  }
+}
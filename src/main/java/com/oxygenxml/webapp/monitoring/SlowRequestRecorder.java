@@ -0,0 +1,266 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Flight recorder that keeps, for each label, the slowest requests seen recently.
+ *
+ * Each label has a fixed-size buffer updated with compare-and-set operations, so recording
+ * never blocks the request threads. Requests older than the retention period are the first
+ * to be replaced.
+ *
+ * @author cristi_talau
+ */
+public class SlowRequestRecorder {
+
+  /**
+   * The name of the servlet context attribute that holds the recorder.
+   */
+  public static final String ATTR_NAME = SlowRequestRecorder.class.getName();
+
+  /**
+   * The number of attempts to insert a request before giving up because of concurrent updates.
+   */
+  private static final int MAX_ATTEMPTS = 4;
+
+  /**
+   * A recorded slow request.
+   */
+  public static class SlowRequest {
+    /**
+     * The URL of the request, including the query string.
+     */
+    private final String url;
+    /**
+     * The label of the request.
+     */
+    private final String label;
+    /**
+     * The duration in nanoseconds.
+     */
+    private final long durationNanos;
+    /**
+     * The HTTP status.
+     */
+    private final int status;
+    /**
+     * The name of the thread that handled the request.
+     */
+    private final String threadName;
+    /**
+     * The time when the request completed, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * Constructor.
+     *
+     * @param url The URL of the request, including the query string.
+     * @param label The label of the request.
+     * @param durationNanos The duration in nanoseconds.
+     * @param status The HTTP status.
+     * @param threadName The name of the thread that handled the request.
+     * @param timestamp The time when the request completed, in milliseconds since the epoch.
+     */
+    public SlowRequest(String url, String label, long durationNanos, int status, String threadName,
+        long timestamp) {
+      this.url = url;
+      this.label = label;
+      this.durationNanos = durationNanos;
+      this.status = status;
+      this.threadName = threadName;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * @return The URL of the request, including the query string.
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return The label of the request.
+     */
+    public String getLabel() {
+      return label;
+    }
+
+    /**
+     * @return The duration in milliseconds.
+     */
+    public double getDurationMillis() {
+      return durationNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return The HTTP status.
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return The name of the thread that handled the request.
+     */
+    public String getThreadName() {
+      return threadName;
+    }
+
+    /**
+     * @return The time when the request completed, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+
+  /**
+   * The buffers of slow requests for each label.
+   */
+  private final Map<String, AtomicReferenceArray<SlowRequest>> buffers = new ConcurrentHashMap<>();
+
+  /**
+   * The number of requests kept for each label, 0 if no request is recorded.
+   */
+  private final int capacity;
+
+  /**
+   * The period after which a request is no longer considered recent, in milliseconds.
+   */
+  private final long retentionMillis;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of requests kept for each label. No request is recorded if not positive.
+   * @param retentionMillis The period after which a request is no longer considered recent, in milliseconds.
+   */
+  public SlowRequestRecorder(int capacity, long retentionMillis) {
+    this.capacity = Math.max(0, capacity);
+    this.retentionMillis = retentionMillis;
+  }
+
+  /**
+   * Adds a label for which slow requests are recorded.
+   *
+   * @param label The label.
+   */
+  void addLabel(String label) {
+    if (capacity == 0) {
+      // The recording is disabled, so the requests of the label are never accepted.
+      return;
+    }
+    buffers.computeIfAbsent(label, l -> new AtomicReferenceArray<>(capacity));
+  }
+
+  /**
+   * Checks whether a request with the given duration would be recorded. Used to avoid
+   * computing the details of the requests that are not recorded.
+   *
+   * @param label The label of the request.
+   * @param durationNanos The duration of the request.
+   *
+   * @return <code>true</code> if the request would be recorded.
+   */
+  boolean accepts(String label, long durationNanos) {
+    AtomicReferenceArray<SlowRequest> buffer = buffers.get(label);
+    if (buffer == null) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    return isReplaceable(buffer.get(findVictim(buffer, now)), durationNanos, now);
+  }
+
+  /**
+   * Records a slow request, if it is slower than the ones already recorded for its label.
+   *
+   * @param request The request.
+   */
+  void record(SlowRequest request) {
+    AtomicReferenceArray<SlowRequest> buffer = buffers.get(request.label);
+    if (buffer == null) {
+      return;
+    }
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      int victim = findVictim(buffer, request.timestamp);
+      SlowRequest victimRequest = buffer.get(victim);
+      if (!isReplaceable(victimRequest, request.durationNanos, request.timestamp)) {
+        return;
+      }
+      if (buffer.compareAndSet(victim, victimRequest, request)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return The recent slow requests for each label, slowest first.
+   */
+  public Map<String, List<SlowRequest>> getSlowRequests() {
+    long now = System.currentTimeMillis();
+    Map<String, List<SlowRequest>> result = new TreeMap<>();
+    buffers.forEach((label, buffer) -> {
+      List<SlowRequest> requests = new ArrayList<>();
+      for (int i = 0; i < buffer.length(); i++) {
+        SlowRequest request = buffer.get(i);
+        if (request != null && !isExpired(request, now)) {
+          requests.add(request);
+        }
+      }
+      requests.sort(Comparator.comparingLong((SlowRequest request) -> request.durationNanos).reversed());
+      result.put(label, requests);
+    });
+    return result;
+  }
+
+  /**
+   * Finds the slot that should be replaced by a new request: an empty one, an expired one or
+   * the one with the fastest request.
+   *
+   * @param buffer The buffer.
+   * @param now The current time in milliseconds.
+   *
+   * @return The index of the slot.
+   */
+  private int findVictim(AtomicReferenceArray<SlowRequest> buffer, long now) {
+    int victim = 0;
+    SlowRequest victimRequest = buffer.get(0);
+    for (int i = 0; i < buffer.length() && victimRequest != null && !isExpired(victimRequest, now); i++) {
+      SlowRequest request = buffer.get(i);
+      if (request == null || isExpired(request, now) || request.durationNanos < victimRequest.durationNanos) {
+        victim = i;
+        victimRequest = request;
+      }
+    }
+    return victim;
+  }
+
+  /**
+   * @param victim The request that would be replaced, may be null.
+   * @param durationNanos The duration of the new request.
+   * @param now The current time in milliseconds.
+   *
+   * @return <code>true</code> if the request can be replaced by one with the given duration.
+   */
+  private boolean isReplaceable(SlowRequest victim, long durationNanos, long now) {
+    return victim == null || isExpired(victim, now) || victim.durationNanos < durationNanos;
+  }
+
+  /**
+   * @param request The request.
+   * @param now The current time in milliseconds.
+   *
+   * @return <code>true</code> if the request is no longer recent.
+   */
+  private boolean isExpired(SlowRequest request, long now) {
+    return now - request.timestamp > retentionMillis;
+  }
+}
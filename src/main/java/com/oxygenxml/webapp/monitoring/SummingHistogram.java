@@ -0,0 +1,44 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+
+/**
+ * Histogram that also keeps the sum of all the recorded values.
+ *
+ * The reservoir covers only the recent values, so the sum cannot be derived from its snapshot.
+ * The sum of non-negative values never decreases, so it can be exposed as the sum of a Prometheus summary.
+ *
+ * @author cristi_talau
+ */
+class SummingHistogram extends Histogram {
+
+  /**
+   * The sum of the recorded values.
+   */
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Constructor.
+   *
+   * @param reservoir The reservoir of the recent values.
+   */
+  SummingHistogram(Reservoir reservoir) {
+    super(reservoir);
+  }
+
+  @Override
+  public void update(long value) {
+    sum.add(value);
+    super.update(value);
+  }
+
+  /**
+   * @return The sum of the recorded values.
+   */
+  long getSum() {
+    return sum.sum();
+  }
+}
@@ -0,0 +1,80 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+/**
+ * Timer that also keeps the sum of all the recorded durations.
+ *
+ * The reservoir covers only the recent durations, so the sum cannot be derived from its snapshot.
+ * The sum never decreases, so it can be exposed as the sum of a Prometheus summary.
+ *
+ * @author cristi_talau
+ */
+class SummingTimer extends Timer {
+
+  /**
+   * The sum of the recorded durations, in nanoseconds.
+   */
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Constructor.
+   *
+   * @param reservoir The reservoir of the recent durations.
+   * @param clock The clock.
+   */
+  SummingTimer(Reservoir reservoir, Clock clock) {
+    super(reservoir, clock);
+  }
+
+  @Override
+  public void update(long duration, TimeUnit unit) {
+    if (duration >= 0) {
+      sumNanos.add(unit.toNanos(duration));
+    }
+    super.update(duration, unit);
+  }
+
+  @Override
+  public void update(Duration duration) {
+    update(duration.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  // The timing methods of the superclass record the duration without calling update.
+
+  @Override
+  public <T> T time(Callable<T> event) throws Exception {
+    try (Context context = time()) {
+      return event.call();
+    }
+  }
+
+  @Override
+  public <T> T timeSupplier(Supplier<T> event) {
+    try (Context context = time()) {
+      return event.get();
+    }
+  }
+
+  @Override
+  public void time(Runnable event) {
+    try (Context context = time()) {
+      event.run();
+    }
+  }
+
+  /**
+   * @return The sum of the recorded durations, in nanoseconds.
+   */
+  long getSumNanos() {
+    return sumNanos.sum();
+  }
+}
@@ -29,12 +29,12 @@ public class WebAuthorApiMetrics implements MetricSet{
       "validator_cache_miss", "validator_cache_req", "validator_cache_avg_load_time_ms", "validator_cache_eviction"
       );
   /**
-   * The last metrics read from Web Author.
+   * The last metrics read from Web Author, guarded by this object.
    */
   private Map<String, String> lastMetrics = null;
   
   /**
-   * The timestamp when the last metrics were read.
+   * The timestamp when the last metrics were read, guarded by this object.
    */
   private long lastMetricsTimestamp = 0;
 
@@ -51,13 +51,15 @@ public class WebAuthorApiMetrics implements MetricSet{
   }
   
   /**
+   * The gauges may be evaluated in parallel, so the other gauges wait for the metrics being read.
+   * 
    * @return The metrics from Web Author, possibly cached.
    */
-  private Map<String, String> getWebAuthorMetrics() {
+  private synchronized Map<String, String> getWebAuthorMetrics() {
     long currentTimeMillis = System.currentTimeMillis();
-    if (lastMetricsTimestamp < currentTimeMillis - 5 * 1000) {
-      lastMetricsTimestamp = currentTimeMillis;
+    if (lastMetrics == null || lastMetricsTimestamp < currentTimeMillis - 5 * 1000) {
       lastMetrics = ((WebappPluginWorkspace)PluginWorkspaceProvider.getPluginWorkspace()).getMonitoringStats();
+      lastMetricsTimestamp = currentTimeMillis;
     }
     return lastMetrics;
   }
@@ -0,0 +1,394 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Lock-free reservoir that counts the values in log-linear buckets, similar to HdrHistogram.
+ *
+ * Each power of two is split in {@value #SUB_BUCKET_COUNT} linear sub-buckets, so the values are
+ * reported with a relative error below 2%. The memory footprint is fixed: it does not depend on
+ * the number of recorded values.
+ *
+ * The reservoir covers a sliding time window, split in {@value #SUB_WINDOWS} sub-windows which are
+ * reused as time passes. The snapshot contains only the values recorded in the last window, so
+ * the percentiles reflect the last reporting interval instead of decaying slowly.
+ *
+ * To reduce contention, each window keeps several stripes of counters, and each thread updates
+ * the stripe selected by its id. The next sub-window is reset in advance, so the writers only
+ * wait for a reset after an idle period longer than a sub-window.
+ *
+ * @author cristi_talau
+ */
+public class WindowedLogLinearReservoir implements Reservoir {
+
+  /**
+   * The number of bits used to index the linear sub-buckets of a power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 5;
+
+  /**
+   * The number of linear sub-buckets of a power of two.
+   */
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * The highest power of two that can be recorded. Larger values are recorded in the last bucket.
+   * For nanoseconds, this is about 36 minutes.
+   */
+  private static final int MAX_MAGNITUDE = 40;
+
+  /**
+   * The number of buckets.
+   */
+  static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+  /**
+   * The number of sub-windows covered by a snapshot.
+   */
+  private static final int SUB_WINDOWS = 3;
+
+  /**
+   * The maximum number of counter stripes.
+   */
+  private static final int MAX_STRIPES = 4;
+
+  /**
+   * The epoch of a sub-window while it is being reset.
+   */
+  private static final long RESETTING = Long.MIN_VALUE;
+
+  /**
+   * The counters of a sub-window.
+   */
+  private static final class Window {
+    /**
+     * The epoch of the sub-window, i.e. the tick divided by the sub-window length.
+     */
+    final AtomicLong epoch = new AtomicLong(RESETTING + 1);
+    /**
+     * The bucket counters, one array of {@link #BUCKET_COUNT} counters for each stripe.
+     */
+    final AtomicLongArray counts;
+
+    /**
+     * Constructor.
+     *
+     * @param stripes The number of stripes.
+     */
+    Window(int stripes) {
+      counts = new AtomicLongArray(stripes * BUCKET_COUNT);
+    }
+  }
+
+  /**
+   * The clock.
+   */
+  private final Clock clock;
+
+  /**
+   * The length of a sub-window in nanoseconds.
+   */
+  private final long subWindowNanos;
+
+  /**
+   * The sub-windows. One more than the ones covered by a snapshot, so that a sub-window
+   * can be reset without affecting the snapshots.
+   */
+  private final Window[] windows;
+
+  /**
+   * The mask used to select the stripe of a thread.
+   */
+  private final int stripeMask;
+
+  /**
+   * Constructor.
+   *
+   * @param clock The clock.
+   * @param windowNanos The length of the time window covered by the snapshots.
+   */
+  public WindowedLogLinearReservoir(Clock clock, long windowNanos) {
+    this.clock = clock;
+    this.subWindowNanos = Math.max(1, windowNanos / SUB_WINDOWS);
+    int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+    this.stripeMask = stripes - 1;
+    this.windows = new Window[SUB_WINDOWS + 1];
+    for (int i = 0; i < windows.length; i++) {
+      windows[i] = new Window(stripes);
+    }
+  }
+
+  @Override
+  public int size() {
+    long count = 0;
+    long epoch = currentEpoch();
+    for (Window window : windows) {
+      if (isInSnapshot(window, epoch)) {
+        for (int i = 0; i < window.counts.length(); i++) {
+          count += window.counts.get(i);
+        }
+      }
+    }
+    return (int) Math.min(Integer.MAX_VALUE, count);
+  }
+
+  @Override
+  public void update(long value) {
+    long epoch = currentEpoch();
+    Window window = windowFor(epoch);
+    if (window.epoch.get() != epoch && !reset(window, epoch, true)) {
+      // The sub-window was already reused for a newer epoch.
+      return;
+    }
+    int stripe = (int) Thread.currentThread().getId() & stripeMask;
+    window.counts.incrementAndGet(stripe * BUCKET_COUNT + bucketIndex(value));
+
+    // Reset the next sub-window in advance, so that the writers do not have to wait for it.
+    Window next = windowFor(epoch + 1);
+    long nextEpoch = next.epoch.get();
+    if (nextEpoch != RESETTING && nextEpoch < epoch + 1) {
+      reset(next, epoch + 1, false);
+    }
+  }
+
+  /**
+   * Resets a sub-window for a new epoch.
+   *
+   * @param window The sub-window.
+   * @param epoch The new epoch.
+   * @param wait <code>true</code> to wait if another thread is resetting the sub-window.
+   *
+   * @return <code>true</code> if the sub-window is ready to record values for the given epoch.
+   */
+  private static boolean reset(Window window, long epoch, boolean wait) {
+    while (true) {
+      long windowEpoch = window.epoch.get();
+      if (windowEpoch == epoch) {
+        return true;
+      } else if (windowEpoch == RESETTING) {
+        if (!wait) {
+          return false;
+        }
+        // Another thread is resetting the sub-window, which takes a few microseconds.
+        Thread.yield();
+      } else if (windowEpoch > epoch) {
+        return false;
+      } else if (window.epoch.compareAndSet(windowEpoch, RESETTING)) {
+        for (int i = 0; i < window.counts.length(); i++) {
+          window.counts.set(i, 0);
+        }
+        window.epoch.set(epoch);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long epoch = currentEpoch();
+    for (Window window : windows) {
+      if (isInSnapshot(window, epoch)) {
+        for (int i = 0; i < window.counts.length(); i++) {
+          counts[i % BUCKET_COUNT] += window.counts.get(i);
+        }
+      }
+    }
+    return new BucketSnapshot(counts);
+  }
+
+  /**
+   * @param epoch The epoch.
+   *
+   * @return The sub-window used for the epoch.
+   */
+  private Window windowFor(long epoch) {
+    return windows[(int) Math.floorMod(epoch, (long) windows.length)];
+  }
+
+  /**
+   * @return The current epoch.
+   */
+  private long currentEpoch() {
+    return Math.floorDiv(clock.getTick(), subWindowNanos);
+  }
+
+  /**
+   * @param window The sub-window.
+   * @param epoch The current epoch.
+   *
+   * @return <code>true</code> if the sub-window is covered by a snapshot taken in the given epoch.
+   */
+  private static boolean isInSnapshot(Window window, long epoch) {
+    long windowEpoch = window.epoch.get();
+    return windowEpoch <= epoch && windowEpoch > epoch - SUB_WINDOWS;
+  }
+
+  /**
+   * @param value The value.
+   *
+   * @return The index of the bucket that counts the value.
+   */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return value < 0 ? 0 : (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    if (magnitude > MAX_MAGNITUDE) {
+      return BUCKET_COUNT - 1;
+    }
+    int shift = magnitude - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+  }
+
+  /**
+   * @param index The index of a bucket.
+   *
+   * @return The value that represents the bucket, i.e. the middle of its range.
+   */
+  static long bucketValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long lowerBound = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+    return lowerBound + ((1L << shift) - 1) / 2;
+  }
+
+  /**
+   * Snapshot of the bucket counts.
+   */
+  private static class BucketSnapshot extends Snapshot {
+    /**
+     * The count of each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * The total number of values.
+     */
+    private final long total;
+
+    /**
+     * Constructor.
+     *
+     * @param counts The count of each bucket.
+     */
+    BucketSnapshot(long[] counts) {
+      this.counts = counts;
+      long sum = 0;
+      for (long count : counts) {
+        sum += count;
+      }
+      this.total = sum;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (total == 0) {
+        return 0.0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return bucketValue(i);
+        }
+      }
+      return getMax();
+    }
+
+    @Override
+    public long[] getValues() {
+      long[] values = new long[size()];
+      int position = 0;
+      for (int i = 0; i < counts.length && position < values.length; i++) {
+        long value = bucketValue(i);
+        for (long j = 0; j < counts[i] && position < values.length; j++) {
+          values[position++] = value;
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+
+    @Override
+    public long getMax() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] > 0) {
+          return bucketValue(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getMean() {
+      if (total == 0) {
+        return 0.0;
+      }
+      double sum = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          sum += (double) counts[i] * bucketValue(i);
+        }
+      }
+      return sum / total;
+    }
+
+    @Override
+    public long getMin() {
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          return bucketValue(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (total <= 1) {
+        return 0.0;
+      }
+      double mean = getMean();
+      double variance = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          double diff = bucketValue(i) - mean;
+          variance += counts[i] * diff * diff;
+        }
+      }
+      return Math.sqrt(variance / (total - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (int i = 0; i < counts.length; i++) {
+          long value = bucketValue(i);
+          for (long j = 0; j < counts[i]; j++) {
+            out.printf("%d%n", value);
+          }
+        }
+      }
+    }
+  }
+}
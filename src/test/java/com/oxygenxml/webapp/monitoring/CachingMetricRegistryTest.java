@@ -0,0 +1,107 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for the caching metric registry.
+ *
+ * @author cristi_talau
+ */
+public class CachingMetricRegistryTest {
+
+  /**
+   * <p><b>Description:</b> Test that concurrent readers wait for a single evaluation of the gauges.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSingleFlight() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    AtomicInteger evaluations = new AtomicInteger();
+    CountDownLatch evaluationStarted = new CountDownLatch(1);
+    CountDownLatch readersStarted = new CountDownLatch(1);
+    registry.gauge("threads", () -> () -> {
+      evaluationStarted.countDown();
+      try {
+        readersStarted.await();
+        // Give the other readers time to wait for this evaluation.
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return evaluations.incrementAndGet();
+    });
+    CachingMetricRegistry cachingRegistry = new CachingMetricRegistry(registry, Clock.defaultClock(), 0);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Object>> values = new ArrayList<>();
+      values.add(executor.submit(() -> cachingRegistry.getGauges().get("threads").getValue()));
+      evaluationStarted.await();
+      for (int i = 0; i < 3; i++) {
+        values.add(executor.submit(() -> cachingRegistry.getGauges().get("threads").getValue()));
+      }
+      readersStarted.countDown();
+      for (Future<Object> value : values) {
+        assertEquals(1, value.get());
+      }
+      assertEquals(1, evaluations.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the snapshot is reused until it expires, and that
+   * filters and failing gauges are handled.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testExpiration() {
+    MetricRegistry registry = new MetricRegistry();
+    AtomicInteger evaluations = new AtomicInteger();
+    registry.gauge("count", () -> evaluations::incrementAndGet);
+    registry.gauge("failing", () -> () -> {
+      throw new IllegalStateException("failed");
+    });
+    registry.counter("counter").inc();
+    Clock clock = Mockito.mock(Clock.class);
+    CachingMetricRegistry cachingRegistry = new CachingMetricRegistry(registry, clock, TimeUnit.SECONDS.toNanos(5));
+
+    assertEquals(1, cachingRegistry.getGauges().get("count").getValue());
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(4));
+    assertEquals(1, cachingRegistry.getGauges((name, metric) -> name.equals("count")).get("count").getValue());
+    assertEquals(1, cachingRegistry.getGauges((name, metric) -> name.equals("count")).size());
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(5));
+    assertEquals(2, cachingRegistry.getGauges().get("count").getValue());
+    
+    Gauge<?> failing = cachingRegistry.getGauges().get("failing");
+    try {
+      failing.getValue();
+      assertTrue("The gauge should fail", false);
+    } catch (IllegalStateException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertEquals(1, cachingRegistry.getCounters().get("counter").getCount());
+  }
+}
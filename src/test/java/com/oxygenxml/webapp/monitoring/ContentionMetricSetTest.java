@@ -0,0 +1,162 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+
+/**
+ * Tests for the contention metric set.
+ *
+ * @author cristi_talau
+ */
+public class ContentionMetricSetTest {
+
+  /**
+   * <p><b>Description:</b> Test that the blocked time and the contended lock are reported.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testContendedLock() throws Exception {
+    Clock clock = Mockito.mock(Clock.class);
+    boolean wasEnabled = ManagementFactory.getThreadMXBean().isThreadContentionMonitoringEnabled();
+    ContentionMetricSet contention = new ContentionMetricSet(ManagementFactory.getThreadMXBean(), clock);
+    Map<String, Metric> metrics = contention.getMetrics();
+
+    Object documentLock = new Object();
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread owner = new Thread(() -> {
+      synchronized (documentLock) {
+        locked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "lock-owner");
+    Thread waiter = new Thread(() -> {
+      synchronized (documentLock) {
+        // Just wait for the lock.
+      }
+    }, "lock-waiter");
+    owner.start();
+    locked.await();
+    waiter.start();
+    try {
+      while (waiter.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(200);
+      // The time blocked before the first sample is not attributed to the lock.
+      assertEquals(0.0, gaugeValue(metrics, "blocked.millis-per-second"));
+      @SuppressWarnings("unchecked")
+      List<ContentionMetricSet.ContendedLock> firstLocks = 
+          (List<ContentionMetricSet.ContendedLock>) gaugeValue(metrics, "locks");
+      assertEquals(0, firstLocks.get(0).getBlockedMillis());
+
+      Thread.sleep(200);
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(10));
+      
+      double blocked = (Double) gaugeValue(metrics, "blocked.millis-per-second");
+      assertTrue("Blocked " + blocked, blocked >= 15);
+      @SuppressWarnings("unchecked")
+      List<ContentionMetricSet.ContendedLock> locks = 
+          (List<ContentionMetricSet.ContendedLock>) gaugeValue(metrics, "locks");
+      ContentionMetricSet.ContendedLock lock = locks.get(0);
+      assertTrue(lock.getLock(), lock.getLock().startsWith("java.lang.Object@"));
+      assertEquals(1, lock.getWaiters());
+      assertTrue(lock.getBlockedMillis() >= 150);
+      assertEquals("lock-owner", lock.getOwnerThread());
+      assertTrue(lock.getOwnerStack().toString(), lock.getOwnerStack().toString().contains("ContentionMetricSetTest"));
+    } finally {
+      release.countDown();
+      owner.join();
+      waiter.join();
+      contention.close();
+    }
+    assertEquals(wasEnabled, ManagementFactory.getThreadMXBean().isThreadContentionMonitoringEnabled());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that deadlocked threads are reported.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDeadlock() throws Exception {
+    Clock clock = Mockito.mock(Clock.class);
+    Map<String, Metric> metrics = new ContentionMetricSet(ManagementFactory.getThreadMXBean(), clock).getMetrics();
+    assertEquals(0, gaugeValue(metrics, "deadlocked"));
+
+    ReentrantLock first = new ReentrantLock();
+    ReentrantLock second = new ReentrantLock();
+    CountDownLatch bothLocked = new CountDownLatch(2);
+    Thread firstThread = new Thread(() -> lockBoth(first, second, bothLocked));
+    Thread secondThread = new Thread(() -> lockBoth(second, first, bothLocked));
+    firstThread.start();
+    secondThread.start();
+    try {
+      bothLocked.await();
+      while (first.getQueueLength() + second.getQueueLength() < 2) {
+        Thread.sleep(10);
+      }
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(10));
+      assertEquals(2, gaugeValue(metrics, "deadlocked"));
+    } finally {
+      firstThread.interrupt();
+      secondThread.interrupt();
+      firstThread.join();
+      secondThread.join();
+    }
+  }
+
+  /**
+   * Locks two locks in order, until interrupted.
+   * 
+   * @param first The first lock.
+   * @param second The second lock.
+   * @param bothLocked Counted down when the first lock is held, awaited before locking the second one.
+   */
+  private static void lockBoth(ReentrantLock first, ReentrantLock second, CountDownLatch bothLocked) {
+    first.lock();
+    try {
+      bothLocked.countDown();
+      bothLocked.await();
+      second.lockInterruptibly();
+      second.unlock();
+    } catch (InterruptedException e) {
+      // Expected, to end the deadlock.
+    } finally {
+      first.unlock();
+    }
+  }
+
+  /**
+   * @param metrics The metrics.
+   * @param name The name of a gauge.
+   * 
+   * @return The value of the gauge.
+   */
+  private static Object gaugeValue(Map<String, Metric> metrics, String name) {
+    return ((Gauge<?>) metrics.get(name)).getValue();
+  }
+}
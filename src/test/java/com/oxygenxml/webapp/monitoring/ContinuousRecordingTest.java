@@ -0,0 +1,93 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests for the continuous flight recording.
+ *
+ * @author cristi_talau
+ */
+public class ContinuousRecordingTest {
+
+  /**
+   * The folder where the recordings are dumped.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * <p><b>Description:</b> Test that the last minutes of the recording can be dumped.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDump() throws Exception {
+    ContinuousRecording recording = new ContinuousRecording(Duration.ofMinutes(5), 10 * 1024 * 1024,
+        folder.getRoot().toPath(), 2, TimeUnit.MINUTES.toNanos(1), Clock.defaultClock());
+    assertTrue(recording.start());
+    try {
+      Path file = folder.getRoot().toPath().resolve("last.jfr");
+      recording.dump(Duration.ofMinutes(1), file);
+      assertTrue(Files.size(file) > 0);
+      assertTrue(RecordingFile.readAllEvents(file).size() > 0);
+    } finally {
+      recording.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the automatic dumps respect the cooldown and that only the
+   * most recent ones are kept.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testAutomaticDumps() throws Exception {
+    Clock clock = Mockito.mock(Clock.class);
+    File dumpDirectory = new File(folder.getRoot(), "dumps");
+    ContinuousRecording recording = new ContinuousRecording(Duration.ofMinutes(5), 10 * 1024 * 1024,
+        dumpDirectory.toPath(), 1, TimeUnit.MINUTES.toNanos(1), clock);
+    assertTrue(recording.start());
+    try {
+      Future<Path> firstDump = recording.triggerDump("first");
+      assertNotNull(firstDump);
+      Path first = firstDump.get(30, TimeUnit.SECONDS);
+      assertTrue(Files.exists(first));
+
+      // The second dump is skipped during the cooldown.
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(30));
+      assertNull(recording.triggerDump("second"));
+
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(61));
+      Path second = recording.triggerDump("second").get(30, TimeUnit.SECONDS);
+      assertTrue(Files.exists(second));
+      // Only the most recent dump is kept.
+      assertEquals(1, dumpDirectory.list().length);
+    } finally {
+      recording.close();
+    }
+  }
+}
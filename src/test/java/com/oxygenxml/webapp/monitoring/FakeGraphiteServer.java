@@ -0,0 +1,271 @@
+package com.oxygenxml.webapp.monitoring;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process Graphite server that accepts the plaintext or the pickle protocol over TCP and
+ * records the received points as <code>name value timestamp</code> lines.
+ *
+ * @author cristi_talau
+ */
+class FakeGraphiteServer implements Closeable {
+
+  /**
+   * Whether the server expects the pickle protocol.
+   */
+  private final boolean pickle;
+
+  /**
+   * The received points.
+   */
+  private final BlockingQueue<String> points = new LinkedBlockingQueue<>();
+
+  /**
+   * The number of accepted connections.
+   */
+  private final AtomicInteger connections = new AtomicInteger();
+
+  /**
+   * The number of received pickle payloads.
+   */
+  private final AtomicInteger payloads = new AtomicInteger();
+
+  /**
+   * The server socket, or null if stopped.
+   */
+  private volatile ServerSocket serverSocket;
+
+  /**
+   * The thread that accepts the connections, or null if stopped.
+   */
+  private Thread acceptor;
+
+  /**
+   * The accepted connections, closed when the server stops.
+   */
+  private final List<Socket> clients = new ArrayList<>();
+
+  /**
+   * The threads that read the accepted connections, guarded by the list of connections.
+   */
+  private final List<Thread> readers = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param pickle Whether the server expects the pickle protocol.
+   */
+  FakeGraphiteServer(boolean pickle) {
+    this.pickle = pickle;
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @param port The port, or 0 for any free port.
+   *
+   * @throws IOException If the port cannot be bound.
+   */
+  void start(int port) throws IOException {
+    ServerSocket socket = new ServerSocket();
+    socket.setReuseAddress(true);
+    socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    serverSocket = socket;
+    acceptor = new Thread(() -> {
+      while (!socket.isClosed()) {
+        try {
+          Socket client = socket.accept();
+          connections.incrementAndGet();
+          synchronized (clients) {
+            clients.add(client);
+            Thread reader = new Thread(() -> read(client), "fake-graphite-reader");
+            reader.setDaemon(true);
+            readers.add(reader);
+            reader.start();
+          }
+        } catch (IOException e) {
+          // The server was stopped.
+        }
+      }
+    }, "fake-graphite-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return The address of the server.
+   */
+  InetSocketAddress getAddress() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+  }
+
+  /**
+   * @return The number of accepted connections.
+   */
+  int getConnections() {
+    return connections.get();
+  }
+
+  /**
+   * @return The number of received pickle payloads.
+   */
+  int getPayloads() {
+    return payloads.get();
+  }
+
+  /**
+   * Waits for a point.
+   *
+   * @param timeoutMillis The timeout in milliseconds.
+   *
+   * @return The point as a <code>name value timestamp</code> line, or null on timeout.
+   *
+   * @throws InterruptedException If interrupted.
+   */
+  String takePoint(long timeoutMillis) throws InterruptedException {
+    return points.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the server and closes the accepted connections.
+   */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    if (acceptor != null) {
+      // The listening socket keeps accepting connections until the blocked acceptor is released.
+      try {
+        acceptor.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      acceptor = null;
+    }
+    synchronized (clients) {
+      for (Socket client : clients) {
+        if (!client.isClosed()) {
+          // Send the end of stream right away, the close is deferred while a reader is blocked.
+          client.shutdownOutput();
+          client.close();
+        }
+      }
+      clients.clear();
+      // The sockets are closed only after the readers are released, until then they can still receive points.
+      for (Thread reader : readers) {
+        try {
+          reader.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      readers.clear();
+    }
+  }
+
+  /**
+   * Reads the points sent on a connection.
+   *
+   * @param client The connection.
+   */
+  private void read(Socket client) {
+    try (InputStream input = client.getInputStream()) {
+      if (pickle) {
+        DataInputStream data = new DataInputStream(input);
+        while (true) {
+          byte[] body = new byte[data.readInt()];
+          data.readFully(body);
+          payloads.incrementAndGet();
+          unpickle(new String(body, StandardCharsets.UTF_8));
+        }
+      } else {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          points.add(line);
+        }
+      }
+    } catch (EOFException e) {
+      // The client closed the connection.
+    } catch (IOException e) {
+      // The connection was closed.
+    }
+  }
+
+  /**
+   * Decodes a list of <code>(name, (timestamp, value))</code> tuples pickled with protocol 0.
+   *
+   * @param pickled The pickled list.
+   */
+  @SuppressWarnings("unchecked")
+  private void unpickle(String pickled) {
+    Deque<Object> stack = new ArrayDeque<>();
+    Object mark = new Object();
+    int i = 0;
+    while (i < pickled.length()) {
+      char opcode = pickled.charAt(i++);
+      switch (opcode) {
+        case '(':
+          stack.push(mark);
+          break;
+        case 'l':
+          stack.pop();
+          stack.push(new ArrayList<>());
+          break;
+        case 'S': {
+          int end = pickled.indexOf('\n', i);
+          stack.push(pickled.substring(i + 1, end - 1));
+          i = end + 1;
+          break;
+        }
+        case 'L': {
+          int end = pickled.indexOf('\n', i);
+          stack.push(Long.parseLong(pickled.substring(i, end - 1)));
+          i = end + 1;
+          break;
+        }
+        case 't': {
+          List<Object> tuple = new ArrayList<>();
+          Object item;
+          while ((item = stack.pop()) != mark) {
+            tuple.add(0, item);
+          }
+          stack.push(tuple);
+          break;
+        }
+        case 'a': {
+          Object item = stack.pop();
+          ((List<Object>) stack.peek()).add(item);
+          break;
+        }
+        case '.':
+          for (Object point : (List<Object>) stack.pop()) {
+            List<Object> tuple = (List<Object>) point;
+            List<Object> value = (List<Object>) tuple.get(1);
+            points.add(tuple.get(0) + " " + value.get(1) + " " + value.get(0));
+          }
+          return;
+        default:
+          throw new IllegalArgumentException("Unexpected opcode: " + opcode);
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for the evaluation of the gauges.
+ *
+ * @author cristi_talau
+ */
+public class GaugeEvaluatorTest {
+
+  /**
+   * <p><b>Description:</b> Test that a slow gauge is reported with its last value and marked
+   * as stale, without delaying the other gauges.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testTimeout() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    AtomicInteger evaluations = new AtomicInteger();
+    CountDownLatch[] release = {new CountDownLatch(0)};
+    registry.gauge("slow", () -> () -> {
+      try {
+        release[0].await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return evaluations.incrementAndGet();
+    });
+    registry.gauge("fast", () -> () -> "ok");
+    GaugeEvaluator evaluator = new GaugeEvaluator(registry, Clock.defaultClock(), 2,
+        TimeUnit.MILLISECONDS.toNanos(200));
+    try {
+      assertEquals(1, evaluator.evaluate(registry.getGauges()).get("slow").getValue());
+
+      release[0] = new CountDownLatch(1);
+      long start = System.nanoTime();
+      SortedMap<String, Gauge> values = evaluator.evaluate(registry.getGauges());
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+      assertEquals(1, values.get("slow").getValue());
+      assertEquals("ok", values.get("fast").getValue());
+      Map<String, Long> stale = (Map<String, Long>) values.get("reporter.gauges.stale").getValue();
+      assertTrue(stale.containsKey("slow"));
+      assertEquals(1, registry.meter("reporter.gauges.timeouts").getCount());
+
+      // The stuck gauge is not evaluated again.
+      values = evaluator.evaluate(registry.getGauges());
+      assertEquals(1, values.get("slow").getValue());
+      stale = (Map<String, Long>) values.get("reporter.gauges.stale").getValue();
+      assertTrue(stale.containsKey("slow"));
+      assertEquals(1, registry.meter("reporter.gauges.timeouts").getCount());
+
+      release[0].countDown();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (evaluations.get() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      values = evaluator.evaluate(registry.getGauges());
+      assertEquals(3, values.get("slow").getValue());
+      assertFalse(((Map<String, Long>) values.get("reporter.gauges.stale").getValue()).containsKey("slow"));
+      assertTrue(registry.timer("reporter.gauges.duration").getCount() > 0);
+    } finally {
+      evaluator.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that a failing gauge does not affect the other gauges.</p>
+   *
+   * @author cristi_talau
+   */
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void testFailure() {
+    MetricRegistry registry = new MetricRegistry();
+    registry.gauge("failing", () -> () -> {
+      throw new IllegalStateException("failed");
+    });
+    registry.gauge("count", () -> () -> 1);
+    GaugeEvaluator evaluator = new GaugeEvaluator(registry, Clock.defaultClock(), 2,
+        TimeUnit.SECONDS.toNanos(5));
+    try {
+      SortedMap<String, Gauge> values = evaluator.evaluate(registry.getGauges());
+      assertEquals(1, values.get("count").getValue());
+      try {
+        values.get("failing").getValue();
+        assertTrue("The gauge should fail", false);
+      } catch (IllegalStateException e) {
+        assertEquals("failed", e.getMessage());
+      }
+    } finally {
+      evaluator.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the gauges that wait for a busy thread do not add up their
+   * timeouts and are reported with their last values.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void testSingleDeadline() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    CountDownLatch[] release = {new CountDownLatch(0)};
+    for (int i = 0; i < 10; i++) {
+      int value = i;
+      registry.gauge("slow" + i, () -> () -> {
+        try {
+          release[0].await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return value;
+      });
+    }
+    GaugeEvaluator evaluator = new GaugeEvaluator(registry, Clock.defaultClock(), 1,
+        TimeUnit.MILLISECONDS.toNanos(300));
+    try {
+      evaluator.evaluate(registry.getGauges());
+
+      release[0] = new CountDownLatch(1);
+      long start = System.nanoTime();
+      SortedMap<String, Gauge> values = evaluator.evaluate(registry.getGauges());
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+      for (int i = 0; i < 10; i++) {
+        assertEquals(i, values.get("slow" + i).getValue());
+      }
+    } finally {
+      release[0].countDown();
+      evaluator.close();
+    }
+  }
+}
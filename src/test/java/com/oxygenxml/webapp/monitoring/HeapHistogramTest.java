@@ -0,0 +1,113 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the heap histograms.
+ *
+ * @author cristi_talau
+ */
+public class HeapHistogramTest {
+
+  /**
+   * Objects kept alive between two histograms.
+   */
+  private static final List<LeakedSession> leakedSessions = new ArrayList<>();
+
+  /**
+   * A class whose instances are only created by the test.
+   */
+  private static class LeakedSession {
+    /**
+     * Some state of the session.
+     */
+    @SuppressWarnings("unused")
+    private final long[] state = new long[16];
+  }
+
+  /**
+   * <p><b>Description:</b> Test the parsing of the output of the class histogram command.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testParse() throws Exception {
+    String output = " num     #instances         #bytes  class name (module)\n"
+        + "-------------------------------------------------------\n"
+        + "   1:         69350        5757256  [B (java.base@17.0.9)\n"
+        + "   2:         50620        1214880  java.lang.String (java.base@17.0.9)\n"
+        + "   3:            12            384  ro.sync.Session\n"
+        + "Total        119982        6972520\n";
+    List<HeapHistogram.ClassEntry> classes = HeapHistogram.parse(output);
+    assertEquals(3, classes.size());
+    assertEquals("[B", classes.get(0).getClassName());
+    assertEquals(69350, classes.get(0).getInstances());
+    assertEquals(5757256, classes.get(0).getBytes());
+    assertEquals("ro.sync.Session", classes.get(2).getClassName());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the histogram is compared to the previous one.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDiff() throws Exception {
+    HeapHistogram histogram = new HeapHistogram();
+    List<HeapHistogram.ClassEntry> first = new ArrayList<>();
+    first.add(new HeapHistogram.ClassEntry("[B", 100, 10_000));
+    first.add(new HeapHistogram.ClassEntry("Session", 10, 1_000));
+    HeapHistogram.Snapshot firstSnapshot = histogram.record(1000, first, true, 10);
+    assertEquals(0, firstSnapshot.getPreviousTimestamp());
+    assertEquals(11_000, firstSnapshot.getTotalBytes());
+
+    List<HeapHistogram.ClassEntry> second = new ArrayList<>();
+    second.add(new HeapHistogram.ClassEntry("[B", 90, 9_000));
+    second.add(new HeapHistogram.ClassEntry("Session", 50, 5_000));
+    second.add(new HeapHistogram.ClassEntry("Listener", 20, 200));
+    HeapHistogram.Snapshot diff = histogram.record(2000, second, true, 2);
+    assertEquals(1000, diff.getPreviousTimestamp());
+    assertEquals(2, diff.getClasses().size());
+    assertEquals("Session", diff.getClasses().get(0).getClassName());
+    assertEquals(40, diff.getClasses().get(0).getInstancesDelta());
+    assertEquals(4_000, diff.getClasses().get(0).getBytesDelta());
+    assertEquals("Listener", diff.getClasses().get(1).getClassName());
+    assertEquals(200, diff.getClasses().get(1).getBytesDelta());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the histogram of the JVM shows the growth of a class.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testJvmHistogram() throws Exception {
+    HeapHistogram histogram = new HeapHistogram();
+    histogram.compute(true, false, 10);
+    for (int i = 0; i < 1000; i++) {
+      leakedSessions.add(new LeakedSession());
+    }
+    try {
+      HeapHistogram.Snapshot diff = histogram.compute(true, true, Integer.MAX_VALUE);
+      assertTrue(diff.getTotalBytes() > 0);
+      HeapHistogram.ClassEntry sessions = diff.getClasses().stream()
+          .filter(entry -> entry.getClassName().equals(LeakedSession.class.getName()))
+          .findFirst().get();
+      assertEquals(1000, sessions.getInstancesDelta());
+    } finally {
+      leakedSessions.clear();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.oxygenxml.webapp.monitoring.HeavyHitters.HeavyHitter;
+
+/**
+ * Tests for the heavy hitters sketches.
+ *
+ * @author cristi_talau
+ */
+public class HeavyHittersTest {
+
+  /**
+   * <p><b>Description:</b> Test that the costliest documents are found among many cheap ones,
+   * with totals within the reported overestimation.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testTopDocuments() {
+    HeavyHitters heavyHitters = new HeavyHitters(128);
+    Map<String, Long> exactTotals = new HashMap<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 100_000; i++) {
+      String document;
+      long durationNanos;
+      if (i % 10 == 0) {
+        // A few large documents, each request takes about 1 second.
+        document = "large" + random.nextInt(5);
+        durationNanos = TimeUnit.MILLISECONDS.toNanos(900 + random.nextInt(200));
+      } else {
+        document = "small" + random.nextInt(10_000);
+        durationNanos = TimeUnit.MILLISECONDS.toNanos(10 + random.nextInt(20));
+      }
+      exactTotals.merge(document, durationNanos, Long::sum);
+      heavyHitters.recordDocument(document, durationNanos, false);
+    }
+
+    List<HeavyHitter> top = heavyHitters.getTop(5).get("documents");
+    assertEquals(5, top.size());
+    assertEquals("[large0, large1, large2, large3, large4]", 
+        top.stream().map(HeavyHitter::getKey).sorted().collect(Collectors.toList()).toString());
+    for (HeavyHitter hitter : top) {
+      double exactMillis = exactTotals.get(hitter.getKey()) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+      assertTrue(hitter.getTotalMillis() >= exactMillis);
+      assertTrue(hitter.getTotalMillis() - hitter.getOverestimationMillis() <= exactMillis);
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the totals are halved by the decay, and that the users
+   * are tracked separately from the documents.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testDecay() {
+    HeavyHitters heavyHitters = new HeavyHitters(16);
+    heavyHitters.recordUser("alice", TimeUnit.SECONDS.toNanos(4), true);
+    heavyHitters.recordUser("alice", TimeUnit.SECONDS.toNanos(4), true);
+    heavyHitters.recordUser("bob", TimeUnit.SECONDS.toNanos(1), false);
+    assertTrue(heavyHitters.getTop(50).get("documents").isEmpty());
+
+    heavyHitters.decay();
+    List<HeavyHitter> users = heavyHitters.getTop(50).get("users");
+    assertEquals(1, users.size());
+    assertEquals("alice", users.get(0).getKey());
+    assertEquals(4000, users.get(0).getTotalMillis(), 0.001);
+    assertEquals(1, users.get(0).getRequests());
+    assertEquals(1, users.get(0).getErrors());
+  }
+}
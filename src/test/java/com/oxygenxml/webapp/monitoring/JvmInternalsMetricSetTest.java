@@ -0,0 +1,129 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+
+/**
+ * Tests for the JVM internals metric set.
+ *
+ * @author cristi_talau
+ */
+public class JvmInternalsMetricSetTest {
+
+  /**
+   * <p><b>Description:</b> Test that the pauses, the allocated and the promoted bytes are recorded.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testRecordCollection() throws Exception {
+    JvmInternalsMetricSet metricSet = new JvmInternalsMetricSet(Collections.emptyList(), Clock.defaultClock());
+    metricSet.recordCollection("Young Collector", "Allocation Failure", 1000, 20,
+        pools(800, 100), pools(0, 150));
+    metricSet.recordCollection("Young Collector", "Allocation Failure", 2000, 50,
+        pools(600, 150), pools(10, 150));
+    metricSet.recordCollection("Old Collector", "System.gc()", 3000, 5,
+        pools(30, 150), pools(0, 40));
+
+    Map<String, Metric> metrics = metricSet.getMetrics();
+    Histogram youngPauses = (Histogram) metrics.get("gc.pause.Young-Collector");
+    assertEquals(2, youngPauses.getCount());
+    assertEquals(50, youngPauses.getSnapshot().getMax());
+    // 800 bytes before the first collection, then 600 and 20 allocated after the previous collections.
+    assertEquals(1420, ((Meter) metrics.get("gc.allocation.rate")).getCount());
+    assertEquals(50, ((Meter) metrics.get("gc.promotion.rate")).getCount());
+
+    @SuppressWarnings("unchecked")
+    List<JvmInternalsMetricSet.GcPause> longest =
+        ((Gauge<List<JvmInternalsMetricSet.GcPause>>) metrics.get("gc.pauses.longest")).getValue();
+    assertEquals(3, longest.size());
+    assertEquals(50, longest.get(0).getDurationMillis());
+    assertEquals(2000, longest.get(0).getTimestamp());
+    assertEquals("System.gc()", longest.get(2).getCause());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that only the longest of the recent pauses are reported.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testLongestRecentPauses() throws Exception {
+    JvmInternalsMetricSet metricSet = new JvmInternalsMetricSet(Collections.emptyList(), Clock.defaultClock());
+    metricSet.recordCollection("Collector", "cause", 0, 1000, pools(0, 0), pools(0, 0));
+    for (int i = 0; i < JvmInternalsMetricSet.RECENT_PAUSES; i++) {
+      metricSet.recordCollection("Collector", "cause", i + 1, i % 20, pools(0, 0), pools(0, 0));
+    }
+    List<JvmInternalsMetricSet.GcPause> longest = metricSet.getLongestPauses();
+    assertEquals(JvmInternalsMetricSet.LONGEST_PAUSES, longest.size());
+    // The 1000ms pause is no longer recent.
+    assertEquals(19, longest.get(0).getDurationMillis());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the collections of the JVM are recorded.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testJvmCollections() throws Exception {
+    JvmInternalsMetricSet metricSet = new JvmInternalsMetricSet(
+        ManagementFactory.getGarbageCollectorMXBeans(), Clock.defaultClock());
+    try {
+      System.gc();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!hasExplicitPause(metricSet) && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(hasExplicitPause(metricSet));
+      Map<String, Metric> metrics = metricSet.getMetrics();
+      assertTrue(metrics.keySet().toString(), metrics.containsKey("buffers.direct.used"));
+    } finally {
+      metricSet.close();
+    }
+  }
+
+  /**
+   * @param metricSet The metric set.
+   *
+   * @return <code>true</code> if a pause caused by <code>System.gc()</code> was recorded.
+   */
+  private static boolean hasExplicitPause(JvmInternalsMetricSet metricSet) {
+    return metricSet.getLongestPauses().stream().anyMatch(pause -> "System.gc()".equals(pause.getCause()));
+  }
+
+  /**
+   * @param edenUsed The used bytes of the young generation.
+   * @param oldUsed The used bytes of the old generation.
+   *
+   * @return The usage of the memory pools.
+   */
+  private static Map<String, MemoryUsage> pools(long edenUsed, long oldUsed) {
+    Map<String, MemoryUsage> pools = new HashMap<>();
+    pools.put("Eden Space", new MemoryUsage(0, edenUsed, 1000, 1000));
+    pools.put("Tenured Gen", new MemoryUsage(0, oldUsed, 1000, 1000));
+    return pools;
+  }
+}
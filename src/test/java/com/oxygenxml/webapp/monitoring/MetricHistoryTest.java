@@ -0,0 +1,174 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the local metric history.
+ *
+ * @author cristi_talau
+ */
+public class MetricHistoryTest {
+
+  /**
+   * The directory of the history.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * <p><b>Description:</b> Test that the values are aggregated in slots and read from the
+   * finest tier that covers the period.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testQuery() throws Exception {
+    MetricHistory history = new MetricHistory(folder.getRoot().toPath());
+    try {
+      long start = TimeUnit.DAYS.toMillis(20000);
+      history.record("duration.edit.p99", start, 10);
+      history.record("duration.edit.p99", start + 1000, 30);
+      history.record("duration.edit.p99", start + 10_000, 5);
+      history.record("duration.edit.p99", start + 10_000, Double.NaN);
+      assertNull(history.query("unknown", start, start + 20_000, start + 20_000));
+
+      MetricHistory.Range range = history.query("duration.edit.p99", start, start + 20_000, start + 20_000);
+      assertEquals(10_000, range.getResolutionMillis());
+      List<double[]> points = range.getPoints();
+      assertEquals(2, points.size());
+      assertArrayEquals(new double[] {start, 20, 30}, points.get(0), 0);
+      assertArrayEquals(new double[] {start + 10_000, 5, 5}, points.get(1), 0);
+
+      // The period is limited to the slots of the tier, even when it ends at the maximum time.
+      assertEquals(0, history.query("duration.edit.p99", start, Long.MAX_VALUE, start + 20_000).getPoints().size());
+
+      long later = start + TimeUnit.DAYS.toMillis(2);
+      MetricHistory.Range coarse = history.query("duration.edit.p99", start, later, later);
+      assertEquals(TimeUnit.MINUTES.toMillis(5), coarse.getResolutionMillis());
+      assertEquals(1, coarse.getPoints().size());
+      assertArrayEquals(new double[] {start, 15, 30}, coarse.getPoints().get(0), 0);
+    } finally {
+      history.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the history survives a restart.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testReopen() throws Exception {
+    long start = TimeUnit.DAYS.toMillis(20000);
+    MetricHistory history = new MetricHistory(folder.getRoot().toPath());
+    history.record("memory.heap.used", start, 100);
+    history.record("concurrency.edit/in-flight", start, 2);
+    history.close();
+
+    MetricHistory reopened = new MetricHistory(folder.getRoot().toPath());
+    try {
+      assertEquals(Arrays.asList("concurrency.edit/in-flight", "memory.heap.used"), reopened.getMetrics());
+      List<double[]> points = reopened.query("concurrency.edit/in-flight", start, start, start).getPoints();
+      assertEquals(1, points.size());
+      assertEquals(2, points.get(0)[1], 0);
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the slots of a previous round of the ring are overwritten
+   * and not returned.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testRingOverwrite() throws Exception {
+    MetricHistory history = new MetricHistory(folder.getRoot().toPath());
+    try {
+      long start = TimeUnit.DAYS.toMillis(20000);
+      long nextRound = start + TimeUnit.DAYS.toMillis(1);
+      history.record("threads.count", start, 50);
+      history.record("threads.count", start + 10_000, 60);
+      history.record("threads.count", nextRound, 70);
+
+      List<double[]> points = history.query("threads.count", nextRound - 10_000, nextRound, nextRound).getPoints();
+      assertEquals(1, points.size());
+      assertArrayEquals(new double[] {nextRound, 70, 70}, points.get(0), 0);
+    } finally {
+      history.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that no series is created above the maximum number of series.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testMaxSeries() throws Exception {
+    MetricHistory history = new MetricHistory(folder.getRoot().toPath(), 2);
+    try {
+      long start = TimeUnit.DAYS.toMillis(20000);
+      history.record("duration.a.p50", start, 1);
+      history.record("duration.b.p50", start, 2);
+      history.record("duration.c.p50", start, 3);
+      history.record("duration.a.p50", start + 10_000, 4);
+
+      assertEquals(Arrays.asList("duration.a.p50", "duration.b.p50"), history.getMetrics());
+      assertEquals(2, folder.getRoot().list().length);
+    } finally {
+      history.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the inactive series are deleted after the idle period,
+   * including the ones reopened from the disk.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDeleteIdleSeries() throws Exception {
+    long start = TimeUnit.DAYS.toMillis(20000);
+    long idle = TimeUnit.DAYS.toMillis(1);
+    MetricHistory history = new MetricHistory(folder.getRoot().toPath());
+    history.record("duration.removed.p50", start, 1);
+    history.record("duration.kept.p50", start, 2);
+    history.close();
+
+    MetricHistory reopened = new MetricHistory(folder.getRoot().toPath());
+    try {
+      reopened.deleteIdleSeries(Collections.emptySet(), start + idle, idle);
+      assertEquals(2, reopened.getMetrics().size());
+
+      reopened.deleteIdleSeries(Collections.singleton("duration.kept.p50"), start + idle + 1, idle);
+      assertEquals(Arrays.asList("duration.kept.p50"), reopened.getMetrics());
+      assertEquals(1, folder.getRoot().list().length);
+      assertNull(reopened.query("duration.removed.p50", start, start, start));
+    } finally {
+      reopened.close();
+    }
+  }
+}
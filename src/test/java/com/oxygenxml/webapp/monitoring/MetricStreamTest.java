@@ -0,0 +1,178 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for the metrics stream.
+ *
+ * @author cristi_talau
+ */
+public class MetricStreamTest {
+
+  /**
+   * Output stream that keeps the written events.
+   */
+  private static class RecordingOutputStream extends ServletOutputStream {
+    /**
+     * The written bytes.
+     */
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    /**
+     * Whether the stream accepts more writes.
+     */
+    private boolean ready = true;
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      // The test writes synchronously.
+    }
+
+    @Override
+    public void write(int b) {
+      written.write(b);
+    }
+
+    /**
+     * @return The written events, cleared after the call.
+     */
+    String takeWritten() {
+      String events = new String(written.toByteArray(), StandardCharsets.UTF_8);
+      written.reset();
+      return events;
+    }
+  }
+
+  /**
+   * The registry of the streamed metrics.
+   */
+  private MetricRegistry registry;
+
+  /**
+   * The stream under test.
+   */
+  private MetricStream stream;
+
+  /**
+   * The number of edit requests in progress.
+   */
+  private long editInFlight;
+
+  /**
+   * Create the stream, which is only published explicitly by the tests.
+   */
+  @Before
+  public void setUp() {
+    Clock clock = Mockito.mock(Clock.class);
+    Mockito.when(clock.getTime()).thenReturn(1000L);
+    registry = new MetricRegistry();
+    registry.gauge("concurrency.in-flight.edit", () -> () -> editInFlight);
+    registry.gauge("memory.heap.used", () -> () -> 1024);
+    stream = new MetricStream(registry, clock, TimeUnit.HOURS.toMillis(1), 2);
+  }
+
+  /**
+   * Close the stream.
+   */
+  @After
+  public void tearDown() {
+    stream.close();
+  }
+
+  /**
+   * Connects a client.
+   *
+   * @param out The output stream of the client.
+   *
+   * @return The asynchronous context of the client.
+   *
+   * @throws Exception If it fails.
+   */
+  private AsyncContext connect(RecordingOutputStream out) throws Exception {
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    Mockito.when(req.startAsync()).thenReturn(asyncContext);
+    Mockito.when(resp.getOutputStream()).thenReturn(out);
+    assertTrue(stream.subscribe(req, resp));
+    return asyncContext;
+  }
+
+  /**
+   * <p><b>Description:</b> Test that a client receives all the values first, then only the
+   * changed ones, and that the clients share the events.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDeltas() throws Exception {
+    RecordingOutputStream first = new RecordingOutputStream();
+    connect(first);
+    editInFlight = 3;
+    stream.publish();
+    assertEquals("retry: 5000\ndata: {\"time\":1000,\"keyframe\":true,\"edit.in-flight\":3,\"heap.used\":1024}\n\n",
+        first.takeWritten());
+
+    RecordingOutputStream second = new RecordingOutputStream();
+    connect(second);
+    editInFlight = 4;
+    stream.publish();
+    assertEquals("data: {\"time\":1000,\"edit.in-flight\":4}\n\n", first.takeWritten());
+    assertEquals("retry: 5000\ndata: {\"time\":1000,\"keyframe\":true,\"edit.in-flight\":4,\"heap.used\":1024}\n\n",
+        second.takeWritten());
+
+    stream.publish();
+    assertEquals("data: {\"time\":1000}\n\n", first.takeWritten());
+    assertEquals("data: {\"time\":1000}\n\n", second.takeWritten());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that a client that does not keep up is disconnected and that the
+   * number of clients is limited.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSlowClient() throws Exception {
+    RecordingOutputStream slow = new RecordingOutputStream();
+    AsyncContext slowContext = connect(slow);
+    connect(new RecordingOutputStream());
+    assertFalse(stream.subscribe(Mockito.mock(HttpServletRequest.class), Mockito.mock(HttpServletResponse.class)));
+    stream.publish();
+
+    slow.ready = false;
+    stream.publish();
+    Mockito.verify(slowContext).complete();
+    assertEquals(1, stream.getClientCount());
+    assertEquals(1, registry.counter("stream.clients.slow").getCount());
+    connect(new RecordingOutputStream());
+  }
+}
@@ -2,29 +2,45 @@ package com.oxygenxml.webapp.monitoring;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
-import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 
@@ -48,6 +64,16 @@ public class MonitoringFilterTest {
    */
   private MetricRegistry registry;
 
+  /**
+   * The clock used to time the metrics.
+   */
+  private Clock clock;
+
+  /**
+   * The configuration of the filter.
+   */
+  private FilterConfig filterConfig;
+
   /**
    * @throws Exception If it fails.
    */
@@ -56,13 +82,16 @@ public class MonitoringFilterTest {
     WebappPluginWorkspace pluginWorkspace = Mockito.mock(WebappPluginWorkspace.class);
     PluginWorkspaceProvider.setPluginWorkspace(pluginWorkspace);
     
-    filter = Mockito.spy(new MonitoringFilter());
+    filter = new MonitoringFilter();
+    clock = Mockito.mock(Clock.class);
+    filter.setClock(clock);
     
     registry = new MetricRegistry();
     ServletContext context = Mockito.mock(ServletContext.class);
+    Mockito.when(context.getContextPath()).thenReturn("/webapp");
     Mockito.when(context.getAttribute(MonitoringServlet.METRICS_REGISTRY_ATTR_NAME)).thenReturn(registry);
     Mockito.when(context.getAttribute(ActiveWebSocketsGauge.class.getName())).thenReturn(new ActiveWebSocketsGauge());
-    FilterConfig filterConfig = Mockito.mock(FilterConfig.class);
+    filterConfig = Mockito.mock(FilterConfig.class);
     Mockito.when(filterConfig.getServletContext()).thenReturn(context );
 
     // Init the filter
@@ -87,10 +116,7 @@ public class MonitoringFilterTest {
    */
   @Test
   public void testRequestMonitoring() throws Exception {
-    String labelString = "label";
-    Mockito.doReturn(labelString).when(filter).computeLabel(Mockito.<ServletRequest>any());
-
-    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    HttpServletRequest request = mockEditRequest();
     Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("/path/to/rest/endpoint"));
     ServletResponse response = Mockito.mock(HttpServletResponse.class);
     FilterChain chain = Mockito.mock(FilterChain.class);
@@ -99,11 +125,7 @@ public class MonitoringFilterTest {
     filter.doFilter(request, response, chain);
     
     // Assert it is counted.
-    Map<String, Timer> metrics = registry.getTimers();
-    assertEquals(1, metrics.size());
-    String label = metrics.keySet().iterator().next();
-    assertTrue(label.contains(labelString));
-    Timer timer = metrics.get(label);
+    Timer timer = registry.getTimers().get("duration." + MonitoringFilter.EDIT_LABEL);
     assertEquals(1, timer.getCount());
     
     // Assert it is counted again.
@@ -123,10 +145,7 @@ public class MonitoringFilterTest {
    */
   @Test
   public void testErrorMonitoring() throws Exception {
-    String labelString = "label";
-    Mockito.doReturn(labelString).when(filter).computeLabel(Mockito.<ServletRequest>any());
-
-    ServletRequest request = Mockito.mock(HttpServletRequest.class);
+    ServletRequest request = mockEditRequest();
     ServletResponse response = Mockito.mock(HttpServletResponse.class);
     // The servlet returns the wrong status code.
     FilterChain failingChain = new FilterChain() {
@@ -136,10 +155,6 @@ public class MonitoringFilterTest {
       }
     };
     
-    // The clock used to time the metrics.
-    Clock clock = Mockito.mock(Clock.class);
-    filter.setClock(clock);
-    
     // Perform several failing and non-failing requests.
     for (long i = 0; i < 30; i++) {
       filter.doFilter(request, response, failingChain);
@@ -148,15 +163,11 @@ public class MonitoringFilterTest {
     }
     
     // Assert it is counted.
-    Map<String, Meter> metrics = registry.getMeters();
-    assertEquals(1, metrics.size());
-    String label = metrics.keySet().iterator().next();
-    assertTrue(label.contains(labelString));
-    Meter timer = metrics.get(label);
+    Meter timer = registry.getMeters().get("errors.rate." + MonitoringFilter.EDIT_LABEL);
     assertEquals(30, timer.getCount());
 
     // Assert that the error rate is around .5.
-    Gauge<?> gauge = registry.getGauges().values().iterator().next();
+    Gauge<?> gauge = registry.getGauges().get("errors.percentage." + MonitoringFilter.EDIT_LABEL);
     assertEquals(.5, .1, (Double)gauge.getValue());
   }
   
@@ -170,18 +181,18 @@ public class MonitoringFilterTest {
    */
   @Test
   public void testMonitoringStatic() throws Exception {
-    Mockito.doReturn(null).when(filter).computeLabel(Mockito.<ServletRequest>any());
-
-    ServletRequest request = Mockito.mock(HttpServletRequest.class);
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn("/webapp/static/oxygen.html");
     ServletResponse response = Mockito.mock(HttpServletResponse.class);
     FilterChain chain = Mockito.mock(FilterChain.class);
     
     // Perform a request
     filter.doFilter(request, response, chain);
     
-    // Assert it is counted.
-    Map<String, Metric> metrics = registry.getMetrics();
-    assertEquals(0, metrics.size());
+    // Assert it is not counted.
+    for (Timer timer : registry.getTimers().values()) {
+      assertEquals(0, timer.getCount());
+    }
   }
 
   
@@ -197,11 +208,11 @@ public class MonitoringFilterTest {
   public void testEditLabel() throws Exception {
     HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
     Mockito.when(request.getContextPath()).thenReturn("/webapp");
-    Mockito.when(request.getRequestURL()).thenReturn(
-        new StringBuffer().append("http://localhost/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/edit/doc1/insert"));
+    Mockito.when(request.getRequestURI()).thenReturn(
+        "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/edit/doc1/insert");
     Mockito.when(request.getPathInfo()).thenReturn("edit/doc1/insert");
     
-    String label = filter.computeLabel(request);
+    String label = filter.getRequestMetrics(request).getLabel();
     assertEquals(MonitoringFilter.EDIT_LABEL, label);
   }
   
@@ -217,11 +228,11 @@ public class MonitoringFilterTest {
   public void testLoadLabel() throws Exception {
     HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
     Mockito.when(request.getContextPath()).thenReturn("/webapp");
-    Mockito.when(request.getRequestURL()).thenReturn(
-        new StringBuffer().append("http://localhost/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/doc/load/url1"));
+    Mockito.when(request.getRequestURI()).thenReturn(
+        "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/doc/load/url1");
     Mockito.when(request.getPathInfo()).thenReturn("/doc/load/url1");
     
-    String label = filter.computeLabel(request);
+    String label = filter.getRequestMetrics(request).getLabel();
     assertEquals("doc-load", label);
   }
   
@@ -237,11 +248,752 @@ public class MonitoringFilterTest {
   public void testStaticLabel() throws Exception {
     HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
     Mockito.when(request.getContextPath()).thenReturn("/webapp");
-    Mockito.when(request.getRequestURL()).thenReturn(
-        new StringBuffer().append("http://localhost/webapp/static/oxygen.html"));
+    Mockito.when(request.getRequestURI()).thenReturn("/webapp/static/oxygen.html");
     Mockito.when(request.getPathInfo()).thenReturn(null);
     
-    String label = filter.computeLabel(request);
-    assertNull(label);
+    assertNull(filter.getRequestMetrics(request));
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that classifying a request and looking up its metrics 
+   * does not allocate.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testClassificationDoesNotAllocate() throws Exception {
+    com.sun.management.ThreadMXBean threadMXBean = 
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Use a plain wrapper since mocks record each invocation.
+    HttpServletRequest request = new HttpServletRequestWrapper(Mockito.mock(HttpServletRequest.class)) {
+      @Override
+      public String getRequestURI() {
+        return "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/doc/load/url1";
+      }
+      @Override
+      public String getPathInfo() {
+        return "/doc/load/url1";
+      }
+    };
+    RequestMetrics expected = filter.getRequestMetrics(request);
+    assertEquals(MonitoringFilter.DOC_LOAD_LABEL, expected.getLabel());
+    
+    int iterations = 100_000;
+    // Warm up, so that the measurement is not affected by class loading or JIT compilation.
+    for (int i = 0; i < iterations; i++) {
+      filter.getRequestMetrics(request);
+    }
+    
+    long threadId = Thread.currentThread().getId();
+    long allocated = Long.MAX_VALUE;
+    // The JIT compiler may allocate on the measured thread while it replaces the code of the loop, 
+    // but a classification that allocates would allocate in every round.
+    for (int round = 0; round < 5 && allocated > 0; round++) {
+      long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < iterations; i++) {
+        assertSame(expected, filter.getRequestMetrics(request));
+      }
+      allocated = Math.min(allocated, threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+    }
+    
+    assertEquals("Allocated bytes", 0, allocated);
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the gauges report the requests of a filter initialized again
+   * with the same registry.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testReinitialization() throws Exception {
+    filter.destroy();
+    assertNull(registry.getGauges().get("concurrency.in-flight." + MonitoringFilter.EDIT_LABEL));
+    filter = new MonitoringFilter();
+    filter.setClock(clock);
+    filter.init(filterConfig);
+    
+    Object[] inFlight = new Object[1];
+    filter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), (req, resp) -> 
+        inFlight[0] = registry.getGauges().get("concurrency.in-flight." + MonitoringFilter.EDIT_LABEL).getValue());
+    assertEquals(1L, inFlight[0]);
+    assertEquals(1, registry.getTimers().get("duration." + MonitoringFilter.EDIT_LABEL).getCount());
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that per-operation labels are capped, that the
+   * idle ones are evicted and that the most used overflowing operations are promoted.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testOperationLabels() throws Exception {
+    System.setProperty(MonitoringFilter.OPERATION_LABELS_OPTION, "true");
+    System.setProperty(MonitoringFilter.OPERATION_LABELS_MAX_OPTION, "2");
+    MonitoringFilter operationsFilter = new MonitoringFilter();
+    try {
+      operationsFilter.setClock(clock);
+      operationsFilter.init(filterConfig);
+      ServletResponse response = Mockito.mock(HttpServletResponse.class);
+      FilterChain chain = Mockito.mock(FilterChain.class);
+
+      operationsFilter.doFilter(mockEditRequest("insert"), response, chain);
+      operationsFilter.doFilter(mockEditRequest("delete"), response, chain);
+      operationsFilter.doFilter(mockEditRequest("paste"), response, chain);
+      operationsFilter.doFilter(mockEditRequest("insert"), response, chain);
+
+      Map<String, Timer> timers = registry.getTimers();
+      assertEquals(2, timers.get("duration.edit.insert").getCount());
+      assertEquals(1, timers.get("duration.edit.delete").getCount());
+      assertEquals(1, timers.get("duration.edit." + OperationLabels.OVERFLOW_OPERATION).getCount());
+      assertNull(timers.get("duration.edit.paste"));
+      // The coarse label still counts all the edits.
+      assertEquals(4, timers.get("duration.edit").getCount());
+
+      // After the idle interval, "delete" is evicted and "paste" takes its slot.
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.MINUTES.toNanos(11));
+      operationsFilter.doFilter(mockEditRequest("paste"), response, chain);
+      operationsFilter.doFilter(mockEditRequest("insert"), response, chain);
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.MINUTES.toNanos(22));
+      operationsFilter.doFilter(mockEditRequest("paste"), response, chain);
+
+      timers = registry.getTimers();
+      assertNull(timers.get("duration.edit.delete"));
+      assertEquals(1, timers.get("duration.edit.paste").getCount());
+      assertEquals(3, timers.get("duration.edit.insert").getCount());
+    } finally {
+      System.clearProperty(MonitoringFilter.OPERATION_LABELS_OPTION);
+      System.clearProperty(MonitoringFilter.OPERATION_LABELS_MAX_OPTION);
+      operationsFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the slowest requests are recorded with their details.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSlowRequestRecording() throws Exception {
+    ArgumentCaptor<SlowRequestRecorder> recorderCaptor = ArgumentCaptor.forClass(SlowRequestRecorder.class);
+    Mockito.verify(filterConfig.getServletContext()).setAttribute(
+        Mockito.eq(SlowRequestRecorder.ATTR_NAME), recorderCaptor.capture());
+    SlowRequestRecorder recorder = recorderCaptor.getValue();
+    
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    for (long durationMillis : new long[] {50, 300, 200}) {
+      HttpServletRequest request = mockEditRequest();
+      Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/webapp/edit"));
+      Mockito.when(request.getQueryString()).thenReturn("duration=" + durationMillis);
+      Mockito.when(clock.getTick()).thenReturn(0L);
+      filter.doFilter(request, response, (req, resp) -> {
+        ((HttpServletResponse) resp).setStatus(HttpServletResponse.SC_CONFLICT);
+        Mockito.when(clock.getTick()).thenReturn(TimeUnit.MILLISECONDS.toNanos(durationMillis));
+      });
+    }
+    
+    List<SlowRequestRecorder.SlowRequest> slowRequests = 
+        recorder.getSlowRequests().get(MonitoringFilter.EDIT_LABEL);
+    assertEquals(2, slowRequests.size());
+    SlowRequestRecorder.SlowRequest slowest = slowRequests.get(0);
+    assertEquals("http://localhost/webapp/edit?duration=300", slowest.getUrl());
+    assertEquals(300, slowest.getDurationMillis(), 0.1);
+    assertEquals(HttpServletResponse.SC_CONFLICT, slowest.getStatus());
+    assertEquals(Thread.currentThread().getName(), slowest.getThreadName());
+    assertEquals("http://localhost/webapp/edit?duration=200", slowRequests.get(1).getUrl());
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that no slow request is recorded when the number of 
+   * recorded requests is 0.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSlowRequestRecordingDisabled() throws Exception {
+    System.setProperty(MonitoringFilter.SLOW_REQUESTS_MAX_OPTION, "0");
+    MonitoringFilter disabledFilter = new MonitoringFilter();
+    try {
+      disabledFilter.setClock(clock);
+      disabledFilter.init(filterConfig);
+      Mockito.when(clock.getTick()).thenReturn(0L);
+      disabledFilter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), 
+          (req, resp) -> Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(10)));
+      assertEquals(1, registry.timer("duration." + MonitoringFilter.EDIT_LABEL).getCount());
+    } finally {
+      System.clearProperty(MonitoringFilter.SLOW_REQUESTS_MAX_OPTION);
+      disabledFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the slow request thresholds are configurable 
+   * for each label and that they can adapt to the p99 duration.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSlowRequestThresholds() throws Exception {
+    System.setProperty(MonitoringFilter.SLOW_REQUEST_THRESHOLDS_OPTION, "edit=50");
+    System.setProperty(MonitoringFilter.SLOW_REQUEST_P99_FACTOR_OPTION, "2");
+    MonitoringFilter thresholdsFilter = new MonitoringFilter();
+    try {
+      thresholdsFilter.setClock(clock);
+      thresholdsFilter.init(filterConfig);
+      RequestMetrics editMetrics = thresholdsFilter.getRequestMetrics(mockEditRequest());
+      assertEquals(TimeUnit.MILLISECONDS.toNanos(50), editMetrics.getSlowThresholdNanos());
+      HttpServletRequest docLoadRequest = Mockito.mock(HttpServletRequest.class);
+      Mockito.when(docLoadRequest.getRequestURI()).thenReturn(
+          "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/doc/load/url1");
+      Mockito.when(docLoadRequest.getPathInfo()).thenReturn("/doc/load/url1");
+      assertEquals(TimeUnit.SECONDS.toNanos(5), 
+          thresholdsFilter.getRequestMetrics(docLoadRequest).getSlowThresholdNanos());
+
+      // Edits that usually take 200ms raise the threshold to twice that duration.
+      for (int i = 0; i < 100; i++) {
+        editMetrics.getDuration().update(200, TimeUnit.MILLISECONDS);
+      }
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+      thresholdsFilter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), 
+          Mockito.mock(FilterChain.class));
+      assertEquals(400, editMetrics.getSlowThresholdNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1), 8);
+    } finally {
+      System.clearProperty(MonitoringFilter.SLOW_REQUEST_THRESHOLDS_OPTION);
+      System.clearProperty(MonitoringFilter.SLOW_REQUEST_P99_FACTOR_OPTION);
+      thresholdsFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the CPU time and the memory allocated by the request 
+   * threads are recorded when enabled.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testThreadResources() throws Exception {
+    assertNull(registry.getHistograms().get("cpu." + MonitoringFilter.EDIT_LABEL));
+    System.setProperty(MonitoringFilter.THREAD_RESOURCES_OPTION, "true");
+    MonitoringFilter resourcesFilter = new MonitoringFilter();
+    try {
+      resourcesFilter.setClock(clock);
+      resourcesFilter.init(filterConfig);
+      byte[][] allocated = new byte[1][];
+      resourcesFilter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), (req, resp) -> {
+        allocated[0] = new byte[10_000_000];
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+        while (threadMXBean.getCurrentThreadCpuTime() - cpuStart < TimeUnit.MILLISECONDS.toNanos(20)) {
+          allocated[0][(int) (System.nanoTime() % allocated[0].length)]++;
+        }
+      });
+      
+      Histogram cpuTime = registry.getHistograms().get("cpu." + MonitoringFilter.EDIT_LABEL);
+      assertEquals(1, cpuTime.getCount());
+      assertTrue(cpuTime.getSnapshot().getMax() >= TimeUnit.MILLISECONDS.toNanos(19));
+      Histogram allocatedBytes = registry.getHistograms().get("allocated.bytes." + MonitoringFilter.EDIT_LABEL);
+      assertEquals(1, allocatedBytes.getCount());
+      assertTrue(allocatedBytes.getSnapshot().getMax() >= 9_800_000);
+    } finally {
+      System.clearProperty(MonitoringFilter.THREAD_RESOURCES_OPTION);
+      resourcesFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the request durations are recorded for the documents 
+   * and the users when heavy hitters tracking is enabled.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testHeavyHitters() throws Exception {
+    System.setProperty(MonitoringFilter.HEAVY_HITTERS_OPTION, "true");
+    MonitoringFilter heavyHittersFilter = new MonitoringFilter();
+    try {
+      heavyHittersFilter.setClock(clock);
+      heavyHittersFilter.init(filterConfig);
+      ArgumentCaptor<HeavyHitters> heavyHittersCaptor = ArgumentCaptor.forClass(HeavyHitters.class);
+      Mockito.verify(filterConfig.getServletContext()).setAttribute(
+          Mockito.eq(HeavyHitters.ATTR_NAME), heavyHittersCaptor.capture());
+      
+      HttpServletRequest editRequest = mockEditRequest();
+      Mockito.when(editRequest.getRemoteUser()).thenReturn("alice");
+      HttpServletRequest docLoadRequest = Mockito.mock(HttpServletRequest.class);
+      Mockito.when(docLoadRequest.getRequestURI()).thenReturn(
+          "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/doc/load");
+      Mockito.when(docLoadRequest.getPathInfo()).thenReturn("/doc/load");
+      Mockito.when(docLoadRequest.getParameter("url")).thenReturn("file:/map.ditamap");
+      Mockito.when(docLoadRequest.getRemoteUser()).thenReturn("bob");
+      long[] tick = {0};
+      Mockito.when(clock.getTick()).then(invocation -> tick[0]);
+      FilterChain chain = (req, resp) -> tick[0] += TimeUnit.SECONDS.toNanos(
+          ((HttpServletRequest) req).getPathInfo().equals("/doc/load") ? 5 : 1);
+      heavyHittersFilter.doFilter(editRequest, Mockito.mock(HttpServletResponse.class), chain);
+      heavyHittersFilter.doFilter(editRequest, Mockito.mock(HttpServletResponse.class), chain);
+      heavyHittersFilter.doFilter(docLoadRequest, Mockito.mock(HttpServletResponse.class), chain);
+      
+      Map<String, List<HeavyHitters.HeavyHitter>> top = heavyHittersCaptor.getValue().getTop(50);
+      List<HeavyHitters.HeavyHitter> documents = top.get("documents");
+      assertEquals(2, documents.size());
+      assertEquals("file:/map.ditamap", documents.get(0).getKey());
+      assertEquals(5000, documents.get(0).getTotalMillis(), 0.001);
+      assertEquals("doc1", documents.get(1).getKey());
+      assertEquals(2, documents.get(1).getRequests());
+      assertEquals("bob", top.get("users").get(0).getKey());
+      assertEquals("alice", top.get("users").get(1).getKey());
+    } finally {
+      System.clearProperty(MonitoringFilter.HEAVY_HITTERS_OPTION);
+      heavyHittersFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the low-priority requests are rejected while the edit 
+   * requests are slow or too many.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testLoadShedding() throws Exception {
+    System.setProperty(MonitoringFilter.LOAD_SHEDDING_OPTION, "true");
+    System.setProperty(MonitoringFilter.LOAD_SHEDDING_EDIT_IN_FLIGHT_OPTION, "1");
+    MonitoringFilter sheddingFilter = new MonitoringFilter();
+    try {
+      sheddingFilter.setClock(clock);
+      sheddingFilter.init(filterConfig);
+      HttpServletRequest otherRequest = Mockito.mock(HttpServletRequest.class);
+      Mockito.when(otherRequest.getRequestURI()).thenReturn("/webapp/plugins-dispatcher/other");
+      Mockito.when(otherRequest.getPathInfo()).thenReturn("/other");
+      FilterChain chain = Mockito.mock(FilterChain.class);
+      sheddingFilter.doFilter(otherRequest, Mockito.mock(HttpServletResponse.class), chain);
+      Mockito.verify(chain).doFilter(wraps(otherRequest), Mockito.any());
+      
+      // Slow edit requests make the filter reject the other requests.
+      RequestMetrics editMetrics = sheddingFilter.getRequestMetrics(mockEditRequest());
+      for (int i = 0; i < 100; i++) {
+        editMetrics.getDuration().update(1, TimeUnit.SECONDS);
+      }
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+      HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+      FilterChain rejectedChain = Mockito.mock(FilterChain.class);
+      sheddingFilter.doFilter(otherRequest, response, rejectedChain);
+      Mockito.verifyNoInteractions(rejectedChain);
+      Mockito.verify(response).setHeader("Retry-After", "5");
+      Mockito.verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      assertEquals(1, registry.getMeters().get("shed.rate.others").getCount());
+      
+      // The edit requests are not rejected.
+      sheddingFilter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), chain);
+      Mockito.verify(chain, Mockito.times(2)).doFilter(Mockito.any(), Mockito.any());
+      
+      // Once the edits are fast again, only too many concurrent edits cause rejections.
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.MINUTES.toNanos(3));
+      sheddingFilter.doFilter(otherRequest, Mockito.mock(HttpServletResponse.class), chain);
+      Mockito.verify(chain, Mockito.times(2)).doFilter(wraps(otherRequest), Mockito.any());
+      editMetrics.requestStarted();
+      editMetrics.requestStarted();
+      sheddingFilter.doFilter(otherRequest, Mockito.mock(HttpServletResponse.class), chain);
+      assertEquals(2, registry.getMeters().get("shed.rate.others").getCount());
+    } finally {
+      System.clearProperty(MonitoringFilter.LOAD_SHEDDING_OPTION);
+      System.clearProperty(MonitoringFilter.LOAD_SHEDDING_EDIT_IN_FLIGHT_OPTION);
+      sheddingFilter.destroy();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the flight recording is dumped when the edit requests are slow.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testRecordingDumpOnSlowEdits() throws Exception {
+    File dumpDirectory = Files.createTempDirectory("jfr-dumps").toFile();
+    System.setProperty(MonitoringFilter.JFR_OPTION, "true");
+    System.setProperty(MonitoringFilter.JFR_DUMP_DIRECTORY_OPTION, dumpDirectory.getPath());
+    System.setProperty(MonitoringFilter.JFR_EDIT_P99_MILLIS_OPTION, "500");
+    MonitoringFilter recordingFilter = new MonitoringFilter();
+    try {
+      recordingFilter.setClock(clock);
+      recordingFilter.init(filterConfig);
+      ArgumentCaptor<ContinuousRecording> recordingCaptor = ArgumentCaptor.forClass(ContinuousRecording.class);
+      Mockito.verify(filterConfig.getServletContext()).setAttribute(
+          Mockito.eq(ContinuousRecording.ATTR_NAME), recordingCaptor.capture());
+      
+      RequestMetrics editMetrics = recordingFilter.getRequestMetrics(mockEditRequest());
+      for (int i = 0; i < 100; i++) {
+        editMetrics.getDuration().update(1, TimeUnit.SECONDS);
+      }
+      Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+      recordingFilter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), 
+          Mockito.mock(FilterChain.class));
+      
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (dumpDirectory.list().length == 0 && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      String[] dumps = dumpDirectory.list();
+      assertEquals(1, dumps.length);
+      assertTrue(dumps[0], dumps[0].endsWith("-edit-p99.jfr"));
+      // Only one dump during the cooldown.
+      assertNull(recordingCaptor.getValue().triggerDump("edit-p99"));
+    } finally {
+      System.clearProperty(MonitoringFilter.JFR_OPTION);
+      System.clearProperty(MonitoringFilter.JFR_DUMP_DIRECTORY_OPTION);
+      System.clearProperty(MonitoringFilter.JFR_EDIT_P99_MILLIS_OPTION);
+      recordingFilter.destroy();
+      for (File dump : dumpDirectory.listFiles()) {
+        dump.delete();
+      }
+      dumpDirectory.delete();
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that async requests are recorded when their async 
+   * processing completes.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testAsyncRequestMonitoring() throws Exception {
+    HttpServletRequest request = mockEditRequest();
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    FilterChain asyncChain = mockAsyncChain(request, asyncContext);
+    
+    filter.doFilter(request, Mockito.mock(HttpServletResponse.class), asyncChain);
+    
+    // Nothing is recorded while the request is processed asynchronously.
+    Timer timer = registry.getTimers().get("duration." + MonitoringFilter.EDIT_LABEL);
+    assertEquals(0, timer.getCount());
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+    
+    // The async processing completes later.
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(3));
+    AsyncListener listener = listenerCaptor.getValue();
+    listener.onComplete(new AsyncEvent(asyncContext));
+    
+    assertEquals(1, timer.getCount());
+    assertEquals(TimeUnit.SECONDS.toNanos(3), timer.getSnapshot().getMax(), TimeUnit.SECONDS.toNanos(3) / 50.0);
+    assertEquals(HttpServletResponse.SC_ACCEPTED, 
+        slowRequestStatus(MonitoringFilter.EDIT_LABEL, 0));
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the status of an async request is taken from the response,
+   * also when it is set without the wrapper of the filter, e.g. through the async context or by
+   * the container.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testAsyncRequestStatus() throws Exception {
+    HttpServletRequest request = mockEditRequest();
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    mockStartAsync(request, asyncContext);
+    filter.doFilter(request, response, (req, resp) -> {
+      AsyncContext context = req.startAsync();
+      Mockito.when(request.isAsyncStarted()).thenReturn(true);
+      Mockito.when(request.getAsyncContext()).thenReturn(context);
+    });
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+    
+    // The handler sets the status on the response of the async context.
+    ((HttpServletResponse) asyncContext.getResponse()).setStatus(HttpServletResponse.SC_CONFLICT);
+    Mockito.when(response.getStatus()).thenReturn(HttpServletResponse.SC_CONFLICT);
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(3));
+    listenerCaptor.getValue().onComplete(new AsyncEvent(asyncContext));
+    
+    assertEquals(1, registry.getMeters().get("errors.rate." + MonitoringFilter.EDIT_LABEL).getCount());
+    assertEquals(HttpServletResponse.SC_CONFLICT, slowRequestStatus(MonitoringFilter.EDIT_LABEL, 0));
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that async requests that time out are counted as errors, once.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testAsyncRequestTimeout() throws Exception {
+    HttpServletRequest request = mockEditRequest();
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    
+    filter.doFilter(request, Mockito.mock(HttpServletResponse.class), mockAsyncChain(request, asyncContext));
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+    AsyncListener listener = listenerCaptor.getValue();
+    listener.onTimeout(new AsyncEvent(asyncContext));
+    listener.onComplete(new AsyncEvent(asyncContext));
+    
+    assertEquals(1, registry.getTimers().get("duration." + MonitoringFilter.EDIT_LABEL).getCount());
+    assertEquals(1, registry.getMeters().get("errors.rate." + MonitoringFilter.EDIT_LABEL).getCount());
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the size of the responses is recorded, both for the output
+   * stream and for the writer, and also when the response is written asynchronously.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testResponseSize() throws Exception {
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    ServletOutputStream responseStream = Mockito.mock(ServletOutputStream.class);
+    Mockito.when(response.getOutputStream()).thenReturn(responseStream);
+    StringWriter responseContent = new StringWriter();
+    Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseContent));
+    
+    filter.doFilter(mockEditRequest(), response, (req, resp) -> {
+      resp.getOutputStream().write(new byte[1000], 0, 1000);
+      resp.getOutputStream().write(1);
+    });
+    Mockito.verify(responseStream).write(Mockito.any(byte[].class), Mockito.eq(0), Mockito.eq(1000));
+    filter.doFilter(mockEditRequest(), response, (req, resp) -> resp.getWriter().print("hello"));
+    assertEquals("hello", responseContent.toString());
+
+    // The body is written after the async processing started.
+    HttpServletRequest asyncRequest = mockEditRequest();
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    ServletResponse[] asyncResponse = new ServletResponse[1];
+    filter.doFilter(asyncRequest, response, (req, resp) -> {
+      asyncResponse[0] = resp;
+      mockAsyncChain(asyncRequest, asyncContext).doFilter(req, resp);
+    });
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+    asyncResponse[0].getOutputStream().write(new byte[200_000], 0, 200_000);
+    listenerCaptor.getValue().onComplete(new AsyncEvent(asyncContext));
+    
+    Histogram responseSize = registry.getHistograms().get("response.size." + MonitoringFilter.EDIT_LABEL);
+    assertEquals(3, responseSize.getCount());
+    assertEquals(5, responseSize.getSnapshot().getMin());
+    assertEquals(200_000, responseSize.getSnapshot().getMax(), 200_000 / 50.0);
+    assertEquals(1001 + 5 + 200_000, 
+        registry.getMeters().get("response.bytes." + MonitoringFilter.EDIT_LABEL).getCount());
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the characters written through the writer are counted in the
+   * encoding of the response, including the surrogate pairs split between two writes and the
+   * writes longer than the chunks in which they are encoded.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testResponseSizeEncodings() throws Exception {
+    StringBuilder longText = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      longText.append("a\u00e9").appendCodePoint(0x1F600);
+    }
+    for (String encoding : new String[] {"UTF-8", "UTF-16BE", "Shift_JIS"}) {
+      HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+      Mockito.when(response.getCharacterEncoding()).thenReturn(encoding);
+      StringWriter responseContent = new StringWriter();
+      Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseContent));
+      long before = registry.getMeters().get("response.bytes." + MonitoringFilter.EDIT_LABEL).getCount();
+      
+      filter.doFilter(mockEditRequest(), response, (req, resp) -> {
+        PrintWriter writer = resp.getWriter();
+        writer.print("h\u00e9llo ");
+        writer.write(new char[] {'x', '\u20ac', 'y'}, 1, 1);
+        writer.write(0xD83D);
+        writer.write(0xDE00);
+        writer.print(longText);
+        writer.flush();
+      });
+      
+      String expected = "h\u00e9llo \u20ac\uD83D\uDE00" + longText;
+      assertEquals(expected, responseContent.toString());
+      assertEquals(encoding, expected.getBytes(encoding).length, 
+          registry.getMeters().get("response.bytes." + MonitoringFilter.EDIT_LABEL).getCount() - before);
+    }
+  }
+  
+  /**
+   * <p><b>Description:</b> Test that the bytes written through the response of the async context
+   * are counted, and that the characters written through the writer are counted in the encoding
+   * of the response.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testAsyncResponseSize() throws Exception {
+    HttpServletRequest request = mockEditRequest();
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(response.getCharacterEncoding()).thenReturn("UTF-8");
+    StringWriter responseContent = new StringWriter();
+    Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseContent));
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    mockStartAsync(request, asyncContext);
+    filter.doFilter(request, response, (req, resp) -> {
+      AsyncContext context = req.startAsync();
+      Mockito.when(request.isAsyncStarted()).thenReturn(true);
+      Mockito.when(request.getAsyncContext()).thenReturn(context);
+    });
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+    
+    // The handler writes the body later, through the async context.
+    PrintWriter writer = asyncContext.getResponse().getWriter();
+    writer.print("h\u00e9llo \u20ac");
+    writer.print(new StringBuilder().appendCodePoint(0x1F600));
+    writer.flush();
+    listenerCaptor.getValue().onComplete(new AsyncEvent(asyncContext));
+    
+    assertEquals("h\u00e9llo \u20ac\uD83D\uDE00", responseContent.toString());
+    assertEquals("h\u00e9llo \u20ac\uD83D\uDE00".getBytes(StandardCharsets.UTF_8).length, 
+        registry.getMeters().get("response.bytes." + MonitoringFilter.EDIT_LABEL).getCount());
+  }
+  
+  /**
+   * <p><b>Description:</b> Test the in-flight and peak concurrency gauges, including for async 
+   * requests and for the reset of the peak.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testConcurrencyGauges() throws Exception {
+    Gauge<?> inFlight = registry.getGauges().get("concurrency.in-flight." + MonitoringFilter.EDIT_LABEL);
+    Gauge<?> peak = registry.getGauges().get("concurrency.peak." + MonitoringFilter.EDIT_LABEL);
+    long[] inFlightDuringRequest = new long[1];
+    filter.doFilter(mockEditRequest(), Mockito.mock(HttpServletResponse.class), 
+        (req, resp) -> inFlightDuringRequest[0] = (Long) inFlight.getValue());
+    assertEquals(1, inFlightDuringRequest[0]);
+    assertEquals(0L, inFlight.getValue());
+    
+    AsyncListener[] listeners = new AsyncListener[2];
+    for (int i = 0; i < listeners.length; i++) {
+      HttpServletRequest request = mockEditRequest();
+      AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+      filter.doFilter(request, Mockito.mock(HttpServletResponse.class), mockAsyncChain(request, asyncContext));
+      ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+      Mockito.verify(asyncContext).addListener(listenerCaptor.capture());
+      listeners[i] = listenerCaptor.getValue();
+    }
+    assertEquals(2L, inFlight.getValue());
+    for (AsyncListener listener : listeners) {
+      listener.onComplete(null);
+    }
+    assertEquals(0L, inFlight.getValue());
+    assertEquals(2L, peak.getValue());
+    
+    // The peak is reported also during the next interval, then it is reset.
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(90));
+    assertEquals(2L, peak.getValue());
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(150));
+    assertEquals(0L, peak.getValue());
+  }
+  
+  /**
+   * Returns the status of a request recorded as slow.
+   * 
+   * @param label The label of the request.
+   * @param index The index of the request among the slow requests of the label.
+   * 
+   * @return The status.
+   */
+  private int slowRequestStatus(String label, int index) {
+    ArgumentCaptor<SlowRequestRecorder> recorderCaptor = ArgumentCaptor.forClass(SlowRequestRecorder.class);
+    Mockito.verify(filterConfig.getServletContext()).setAttribute(
+        Mockito.eq(SlowRequestRecorder.ATTR_NAME), recorderCaptor.capture());
+    return recorderCaptor.getValue().getSlowRequests().get(label).get(index).getStatus();
+  }
+  
+  /**
+   * Makes the async processing started on the request use the given context, whose response is 
+   * the one passed when the async processing started.
+   * 
+   * @param request The request mock.
+   * @param asyncContext The async context of the request.
+   */
+  private static void mockStartAsync(HttpServletRequest request, AsyncContext asyncContext) {
+    Mockito.when(request.startAsync(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+      Mockito.when(asyncContext.getResponse()).thenReturn(invocation.getArgument(1));
+      return asyncContext;
+    });
+  }
+  
+  /**
+   * @param request The request mock.
+   * 
+   * @return A matcher of the requests passed to the filter chain in place of the given one.
+   */
+  private static ServletRequest wraps(ServletRequest request) {
+    return Mockito.argThat(wrapper -> 
+        wrapper instanceof ServletRequestWrapper && ((ServletRequestWrapper) wrapper).getRequest() == request);
+  }
+  
+  /**
+   * Creates a filter chain that starts the async processing of the request.
+   * 
+   * @param request The request mock.
+   * @param asyncContext The async context of the request.
+   * 
+   * @return The filter chain.
+   */
+  private static FilterChain mockAsyncChain(HttpServletRequest request, AsyncContext asyncContext) {
+    return (req, resp) -> {
+      ((HttpServletResponse) resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+      Mockito.when(request.isAsyncStarted()).thenReturn(true);
+      Mockito.when(request.getAsyncContext()).thenReturn(asyncContext);
+    };
+  }
+  
+  /**
+   * @return A mock of an edit request.
+   */
+  private static HttpServletRequest mockEditRequest() {
+    return mockEditRequest("insert");
+  }
+  
+  /**
+   * @param operation The edit operation.
+   * 
+   * @return A mock of an edit request.
+   */
+  private static HttpServletRequest mockEditRequest(String operation) {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn(
+        "/webapp/rest/" + WebappPluginWorkspace.restApiVersion + "/edit/doc1/" + operation);
+    Mockito.when(request.getPathInfo()).thenReturn("edit/doc1/" + operation);
+    return request;
   }
 }
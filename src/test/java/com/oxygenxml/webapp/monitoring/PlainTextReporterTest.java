@@ -1,12 +1,19 @@
 package com.oxygenxml.webapp.monitoring;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.AfterClass;
@@ -15,7 +22,15 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.json.MetricsModule;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.oxygenxml.privilegedlogs.PrivilegedPropertyConfigurator;
 
 import ro.sync.basic.util.StringUtil;
@@ -82,4 +97,168 @@ public class PlainTextReporterTest {
     String log = new String(out.toByteArray(), StandardCharsets.US_ASCII);
     assertTrue(log, log.contains("timestamp"));
   }
+
+  /**
+   * <p><b>Description:</b> Test that only the changed metrics are reported in delta mode, 
+   * with counters as increments, and that keyframes contain all the metrics.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDeltas() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    int[] gaugeValue = {1};
+    registry.register("sessions", (Gauge<Integer>) () -> gaugeValue[0]);
+    List<String> locks = new ArrayList<>(Arrays.asList("a"));
+    // A new list each time, compared by its serialization.
+    registry.register("locks", (Gauge<List<String>>) () -> new ArrayList<>(locks));
+    registry.counter("errors").inc(5);
+    registry.meter("requests").mark();
+    PlainTextReporter reporter = new PlainTextReporter(registry, "Reporter", TimeUnit.SECONDS, 
+        TimeUnit.SECONDS, true, 3);
+    try {
+      JsonNode first = reportJson(reporter);
+      assertTrue(first.get("keyframe").asBoolean());
+      assertEquals(1, first.get("sessions").asInt());
+      assertEquals(5, first.get("errors").get("count").asLong());
+      assertEquals(1, first.get("requests").get("count").asLong());
+
+      registry.counter("errors").inc(2);
+      JsonNode second = reportJson(reporter);
+      assertFalse(second.get("keyframe").asBoolean());
+      assertEquals(2, second.get("errors").get("count").asLong());
+      assertFalse(second.has("sessions"));
+      assertFalse(second.has("requests"));
+      assertFalse(second.has("locks"));
+
+      gaugeValue[0] = 2;
+      locks.add("b");
+      JsonNode third = reportJson(reporter);
+      assertEquals(2, third.get("sessions").asInt());
+      assertEquals("[\"a\",\"b\"]", third.get("locks").toString());
+      assertFalse(third.has("errors"));
+
+      JsonNode keyframe = reportJson(reporter);
+      assertTrue(keyframe.get("keyframe").asBoolean());
+      assertEquals(2, keyframe.get("sessions").asInt());
+      assertEquals(0, keyframe.get("errors").get("count").asLong());
+      assertEquals(1, keyframe.get("requests").get("count").asLong());
+    } finally {
+      reporter.close();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the streamed output is the same as the output of the 
+   * previous implementation, which serialized a {@link HashMap}.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testSameOutputAsMap() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    // The rates do not change between the reports.
+    Clock clock = Mockito.mock(Clock.class);
+    for (int i = 0; i < 300; i++) {
+      int value = i;
+      registry.register("gauge.value." + i, (Gauge<Integer>) () -> value);
+      registry.counter("requests.count." + i).inc(i);
+      registry.meter("errors.rate." + i, () -> new Meter(clock)).mark(i);
+      registry.timer("duration.label-" + i, () -> new Timer(new ExponentiallyDecayingReservoir(), clock))
+          .update(i, TimeUnit.MILLISECONDS);
+      registry.histogram("response.size." + i).update(i);
+    }
+    registry.register("a-b", (Gauge<String>) () -> "gauge");
+    // Rewritten to the same key as the gauge.
+    registry.counter("a.b").inc();
+    registry.register("nothing", (Gauge<Object>) () -> null);
+
+    PlainTextReporter reporter = new PlainTextReporter(registry, "Reporter", TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+    PlainTextReporter deltaReporter = new PlainTextReporter(registry, "Reporter", TimeUnit.SECONDS, 
+        TimeUnit.MILLISECONDS, true, 10);
+    try {
+      ObjectMapper mapper = new ObjectMapper().registerModule(
+          new MetricsModule(TimeUnit.SECONDS, TimeUnit.MILLISECONDS, false));
+      for (int i = 0; i < 2; i++) {
+        registry.counter("requests.count.7").inc();
+        assertEquals(mapReport(mapper, registry, false), withoutTimestamp(reportString(reporter)));
+      }
+      registry.remove("gauge.value.3");
+      assertEquals(mapReport(mapper, registry, false), withoutTimestamp(reportString(reporter)));
+      assertEquals(mapReport(mapper, registry, true), withoutTimestamp(reportString(deltaReporter)));
+    } finally {
+      reporter.close();
+      deltaReporter.close();
+    }
+  }
+
+  /**
+   * Serializes the metrics as a {@link HashMap}, like the previous implementation of the reporter.
+   * 
+   * @param mapper The object mapper.
+   * @param registry The registry.
+   * @param keyframe <code>true</code> to serialize a keyframe of the delta mode.
+   * 
+   * @return The serialized metrics, without the timestamp.
+   * 
+   * @throws Exception If it fails.
+   */
+  private static String mapReport(ObjectMapper mapper, MetricRegistry registry, boolean keyframe) throws Exception {
+    Map<String, Object> metrics = new HashMap<>();
+    registry.getGauges().forEach((name, gauge) -> 
+        metrics.put(name, keyframe ? mapper.valueToTree(gauge.getValue()) : gauge.getValue()));
+    registry.getCounters().forEach((name, counter) -> metrics.put(name.replace('.', '-'), 
+        keyframe ? Collections.singletonMap("count", counter.getCount()) : counter));
+    registry.getHistograms().forEach((name, histogram) -> metrics.put(name.replace('.', '-'), histogram));
+    registry.getMeters().forEach((name, meter) -> metrics.put(name.replace('.', '-'), meter));
+    registry.getTimers().forEach((name, timer) -> metrics.put(name.replace('.', '-'), timer));
+    if (keyframe) {
+      metrics.put("keyframe", true);
+    }
+    metrics.put("timestamp", 0);
+    return mapper.writer().writeValueAsString(metrics);
+  }
+
+  /**
+   * @param json A report.
+   * 
+   * @return The report with the timestamp replaced by 0.
+   */
+  private static String withoutTimestamp(String json) {
+    return json.replaceAll("\"timestamp\":\\d+", "\"timestamp\":0");
+  }
+
+  /**
+   * Reports the metrics and returns the logged JSON.
+   * 
+   * @param reporter The reporter.
+   * 
+   * @return The logged metrics.
+   */
+  private static String reportString(PlainTextReporter reporter) {
+    out.reset();
+    reporter.report();
+    String log = new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+    return log.substring(log.indexOf('{'));
+  }
+
+  /**
+   * Reports the metrics and parses the logged JSON.
+   * 
+   * @param reporter The reporter.
+   * 
+   * @return The logged metrics.
+   * 
+   * @throws Exception If the logged metrics cannot be parsed.
+   */
+  private static JsonNode reportJson(PlainTextReporter reporter) throws Exception {
+    out.reset();
+    reporter.report();
+    String log = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    return new ObjectMapper().readTree(log.substring(log.indexOf('{')));
+  }
 }
@@ -0,0 +1,166 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for the Prometheus writer.
+ *
+ * @author cristi_talau
+ */
+public class PrometheusWriterTest {
+
+  /**
+   * <p><b>Description:</b> Test the Prometheus representation of each type of metric.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testFormat() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    registry.gauge("errors.percentage.edit", () -> () -> 0.25);
+    registry.gauge("gauge.text", () -> () -> "not a number");
+    registry.counter("sessions").inc(3);
+    registry.meter("errors.rate.doc-load").mark(2);
+    registry.timer("duration.edit", () -> new SummingTimer(new ExponentiallyDecayingReservoir(), Clock.defaultClock()))
+        .update(20, TimeUnit.MILLISECONDS);
+    registry.histogram("response.size.edit", () -> new SummingHistogram(new ExponentiallyDecayingReservoir()))
+        .update(1000);
+    PrometheusWriter writer = new PrometheusWriter(registry, "oxygenxml-web-author", Clock.defaultClock(), 0);
+
+    String output = new String(writer.getContent(false), StandardCharsets.UTF_8);
+    assertEquals(String.join("\n", 
+        "# TYPE oxygenxml_web_author_errors_percentage_edit gauge",
+        "oxygenxml_web_author_errors_percentage_edit 0.25",
+        "# TYPE oxygenxml_web_author_sessions gauge",
+        "oxygenxml_web_author_sessions 3",
+        "# TYPE oxygenxml_web_author_errors_rate_doc_load_total counter",
+        "oxygenxml_web_author_errors_rate_doc_load_total 2",
+        "# TYPE oxygenxml_web_author_response_size_edit summary",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.5\"} 1000",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.75\"} 1000",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.95\"} 1000",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.98\"} 1000",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.99\"} 1000",
+        "oxygenxml_web_author_response_size_edit{quantile=\"0.999\"} 1000",
+        "oxygenxml_web_author_response_size_edit_count 1",
+        "oxygenxml_web_author_response_size_edit_sum 1000",
+        "# TYPE oxygenxml_web_author_duration_edit_seconds summary"), 
+        output.substring(0, output.indexOf("oxygenxml_web_author_duration_edit_seconds{")).trim());
+    assertTrue(output, output.contains("oxygenxml_web_author_duration_edit_seconds{quantile=\"0.99\"} 0.02\n"));
+    assertTrue(output, output.endsWith("oxygenxml_web_author_duration_edit_seconds_count 1\n"
+        + "oxygenxml_web_author_duration_edit_seconds_sum 0.02\n"));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the sum of a summary is the cumulative sum of the values, and 
+   * that the metrics that do not track it are not written as summaries.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSum() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    Clock clock = Mockito.mock(Clock.class);
+    Histogram summing = registry.histogram("summing", 
+        () -> new SummingHistogram(new WindowedLogLinearReservoir(clock, TimeUnit.MINUTES.toNanos(1))));
+    summing.update(100);
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.MINUTES.toNanos(10));
+    summing.update(10);
+    registry.histogram("plain").update(5);
+    PrometheusWriter writer = new PrometheusWriter(registry, "ns", Mockito.mock(Clock.class), 0);
+
+    String output = new String(writer.getContent(false), StandardCharsets.UTF_8);
+    // The old value is no longer in the window, but still in the sum.
+    assertTrue(output, output.contains("# TYPE ns_summing summary\n"));
+    assertTrue(output, output.contains("ns_summing{quantile=\"0.5\"} 10\n"));
+    assertTrue(output, output.endsWith("ns_summing_count 2\nns_summing_sum 110\n"));
+    assertTrue(output, output.startsWith("# TYPE ns_plain untyped\n"));
+    assertTrue(output, output.contains("# TYPE ns_plain_count counter\nns_plain_count 1\n"));
+    assertTrue(output, !output.contains("ns_plain_sum"));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that metrics whose names differ only by characters replaced in
+   * the Prometheus names are written only once.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testNameCollisions() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    registry.gauge("edit.foo-bar", () -> () -> 1);
+    registry.gauge("edit.foo_bar", () -> () -> 2);
+    registry.counter("edit.foo.bar").inc(3);
+    registry.counter("duration.edit.x_count").inc(4);
+    registry.histogram("duration.edit.x").update(5);
+    registry.histogram("duration.edit-x").update(6);
+    PrometheusWriter writer = new PrometheusWriter(registry, "ns", Clock.defaultClock(), 0);
+
+    String output = new String(writer.getContent(false), StandardCharsets.UTF_8);
+    assertEquals(String.join("\n", 
+        "# TYPE ns_edit_foo_bar gauge",
+        "ns_edit_foo_bar 1",
+        "# TYPE ns_duration_edit_x_count gauge",
+        "ns_duration_edit_x_count 4",
+        ""), output);
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the output is cached, and that the compressed output 
+   * matches the plain one.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testCaching() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    AtomicInteger evaluations = new AtomicInteger();
+    registry.gauge("expensive", () -> evaluations::incrementAndGet);
+    Clock clock = Mockito.mock(Clock.class);
+    PrometheusWriter writer = new PrometheusWriter(registry, "ns", clock, TimeUnit.SECONDS.toNanos(5));
+
+    byte[] plain = writer.getContent(false);
+    byte[] gzipped = writer.getContent(true);
+    assertSame(plain, writer.getContent(false));
+    assertSame(gzipped, writer.getContent(true));
+    assertEquals(1, evaluations.get());
+    ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+    try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      byte[] buffer = new byte[1024];
+      for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+        uncompressed.write(buffer, 0, read);
+      }
+    }
+    assertEquals(new String(plain, StandardCharsets.UTF_8), uncompressed.toString("UTF-8"));
+
+    // The output is rendered again after it expires.
+    Mockito.when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(5));
+    assertEquals("# TYPE ns_expensive gauge\nns_expensive 2\n", 
+        new String(writer.getContent(false), StandardCharsets.UTF_8));
+  }
+}
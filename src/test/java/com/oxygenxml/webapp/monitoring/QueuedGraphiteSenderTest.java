@@ -0,0 +1,184 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.graphite.GraphiteReporter;
+
+/**
+ * Tests for the queued Graphite sender.
+ *
+ * @author cristi_talau
+ */
+public class QueuedGraphiteSenderTest {
+
+  /**
+   * <p><b>Description:</b> Test that the reports are sent over a single connection in the plaintext protocol.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testPlaintext() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    try (FakeGraphiteServer server = new FakeGraphiteServer(false)) {
+      server.start(0);
+      QueuedGraphiteSender sender = new QueuedGraphiteSender(server.getAddress(), false, 100, registry, "graphite");
+      try {
+        report(sender, "edit rate", "12", 1000);
+        report(sender, "edit.count", "3", 1060);
+
+        assertEquals("edit-rate 12 1000", server.takePoint(5000));
+        assertEquals("edit.count 3 1060", server.takePoint(5000));
+        assertEquals(1, server.getConnections());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (registry.counter("graphite.sent").getCount() < 2 && System.nanoTime() < deadline) {
+          Thread.sleep(10);
+        }
+        assertEquals(2, registry.counter("graphite.sent").getCount());
+      } finally {
+        sender.shutdown();
+      }
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that a report is sent in a single pickle payload.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testPickleReport() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    for (int i = 0; i < 20; i++) {
+      registry.counter("counter" + i).inc(i);
+    }
+    try (FakeGraphiteServer server = new FakeGraphiteServer(true)) {
+      server.start(0);
+      QueuedGraphiteSender sender = new QueuedGraphiteSender(server.getAddress(), true, 1000,
+          new MetricRegistry(), "graphite");
+      try {
+        GraphiteReporter reporter = GraphiteReporter.forRegistry(registry)
+            .prefixedWith("web-author")
+            .filter(MetricFilter.ALL)
+            .build(sender);
+        reporter.report();
+
+        Set<String> points = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+          String point = server.takePoint(5000);
+          points.add(point.substring(0, point.lastIndexOf(' ')));
+        }
+        for (int i = 0; i < 20; i++) {
+          assertEquals(true, points.contains("web-author.counter" + i + ".count " + i));
+        }
+        assertEquals(1, server.getPayloads());
+      } finally {
+        sender.shutdown();
+      }
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the points are sent after the server restarts.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testReconnect() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    FakeGraphiteServer server = new FakeGraphiteServer(true);
+    server.start(0);
+    InetSocketAddress address = server.getAddress();
+    QueuedGraphiteSender sender = new QueuedGraphiteSender(address, true, 100, registry, "graphite");
+    try {
+      report(sender, "first", "1", 1000);
+      assertEquals("first 1 1000", server.takePoint(5000));
+
+      server.close();
+      report(sender, "second", "2", 1060);
+      // The point is kept while the server is down.
+      assertNull(server.takePoint(500));
+
+      try (FakeGraphiteServer restarted = new FakeGraphiteServer(true)) {
+        restarted.start(address.getPort());
+        assertEquals("second 2 1060", restarted.takePoint(10000));
+      }
+      assertEquals(true, registry.counter("graphite.failures").getCount() > 0);
+      assertEquals(0, registry.counter("graphite.dropped").getCount());
+    } finally {
+      sender.shutdown();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the oldest points are dropped when the queue is full.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testDropOldest() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    FakeGraphiteServer server = new FakeGraphiteServer(false);
+    server.start(0);
+    InetSocketAddress address = server.getAddress();
+    server.close();
+    QueuedGraphiteSender sender = new QueuedGraphiteSender(address, false, 3, registry, "graphite");
+    try {
+      for (int i = 0; i < 3; i++) {
+        sender.connect();
+        sender.send("a", String.valueOf(i), 1000 + i);
+        sender.send("b", String.valueOf(i), 1000 + i);
+        sender.flush();
+        sender.close();
+      }
+      // Wait for the sender to fail and requeue the batch.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (registry.counter("graphite.failures").getCount() == 0 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(4, registry.counter("graphite.dropped").getCount());
+      assertEquals(2, sender.getQueuedPoints());
+      assertEquals(2, registry.getGauges().get("graphite.queued").getValue());
+
+      try (FakeGraphiteServer restarted = new FakeGraphiteServer(false)) {
+        restarted.start(address.getPort());
+        assertEquals("a 2 1002", restarted.takePoint(10000));
+        assertEquals("b 2 1002", restarted.takePoint(5000));
+      }
+    } finally {
+      sender.shutdown();
+    }
+  }
+
+  /**
+   * Sends a report with a single point.
+   *
+   * @param sender The sender.
+   * @param name The name of the point.
+   * @param value The value of the point.
+   * @param timestamp The timestamp of the point.
+   */
+  private static void report(QueuedGraphiteSender sender, String name, String value, long timestamp) {
+    sender.connect();
+    sender.send(name, value, timestamp);
+    sender.flush();
+    sender.close();
+  }
+}
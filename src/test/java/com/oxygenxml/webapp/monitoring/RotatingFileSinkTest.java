@@ -0,0 +1,169 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for the rotating file sink.
+ *
+ * @author cristi_talau
+ */
+public class RotatingFileSinkTest {
+
+  /**
+   * The directory of the files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * @return The names of the rotated files, sorted.
+   *
+   * @throws IOException If it fails.
+   */
+  private List<String> getRotatedFiles() throws IOException {
+    List<String> names = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.getRoot().toPath(), "metrics-*")) {
+      files.forEach(file -> names.add(file.getFileName().toString()));
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  /**
+   * @param file A rotated file.
+   *
+   * @return The content of the file, uncompressed.
+   *
+   * @throws IOException If it fails.
+   */
+  private String readCompressed(String file) throws IOException {
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(folder.getRoot().toPath().resolve(file)))) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Waits until the current file has the given content.
+   *
+   * @param sink The sink.
+   * @param content The expected content.
+   *
+   * @throws Exception If it fails.
+   */
+  private void awaitContent(RotatingFileSink sink, String content) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    Path file = sink.getCurrentFile();
+    while (!(Files.exists(file) && content.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)))
+        && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(content, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the lines are appended to the file, which is rotated and
+   * compressed when it grows too large.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSizeRotation() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    RotatingFileSink sink = new RotatingFileSink(folder.getRoot().toPath(), "metrics", 10, 
+        TimeUnit.DAYS.toMillis(1), 10, true, registry, Clock.defaultClock());
+    sink.append("{\"a\":1}");
+    awaitContent(sink, "{\"a\":1}\n");
+    assertEquals(Collections.emptyList(), getRotatedFiles());
+
+    sink.append("{\"a\":2}");
+    sink.close();
+    assertEquals("{\"a\":2}\n", new String(Files.readAllBytes(sink.getCurrentFile()), StandardCharsets.UTF_8));
+    List<String> rotated = getRotatedFiles();
+    assertEquals(1, rotated.size());
+    assertTrue(rotated.get(0), rotated.get(0).endsWith(".json.gz"));
+    assertEquals("{\"a\":1}\n", readCompressed(rotated.get(0)));
+    assertEquals(0, registry.counter("reporter.file.dropped").getCount());
+
+    sink.append("{\"a\":3}");
+    assertEquals(1, registry.counter("reporter.file.dropped").getCount());
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the file is rotated when it grows too old.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testTimeRotation() throws Exception {
+    Clock clock = Mockito.mock(Clock.class);
+    Mockito.when(clock.getTime()).thenReturn(1000L);
+    RotatingFileSink sink = new RotatingFileSink(folder.getRoot().toPath(), "metrics", 1024 * 1024, 
+        TimeUnit.HOURS.toMillis(1), 10, false, new MetricRegistry(), clock);
+    sink.append("first");
+    sink.append("second");
+    awaitContent(sink, "first\nsecond\n");
+
+    Mockito.when(clock.getTime()).thenReturn(1000L + TimeUnit.HOURS.toMillis(1));
+    sink.append("third");
+    sink.close();
+    assertEquals("third\n", new String(Files.readAllBytes(sink.getCurrentFile()), StandardCharsets.UTF_8));
+    List<String> rotated = getRotatedFiles();
+    assertEquals(1, rotated.size());
+    assertTrue(rotated.get(0), rotated.get(0).endsWith(".json"));
+    assertEquals("first\nsecond\n", new String(Files.readAllBytes(folder.getRoot().toPath().resolve(rotated.get(0))), 
+        StandardCharsets.UTF_8));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that only the most recent rotated files are kept, including
+   * the ones rotated at the same time.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testRetention() throws Exception {
+    Clock clock = Mockito.mock(Clock.class);
+    Mockito.when(clock.getTime()).thenReturn(1000L);
+    RotatingFileSink sink = new RotatingFileSink(folder.getRoot().toPath(), "metrics", 1, 
+        TimeUnit.HOURS.toMillis(1), 2, true, new MetricRegistry(), clock);
+    for (int i = 1; i <= 5; i++) {
+      sink.append(String.valueOf(i));
+    }
+    sink.close();
+    assertEquals("5\n", new String(Files.readAllBytes(sink.getCurrentFile()), StandardCharsets.UTF_8));
+    List<String> contents = new ArrayList<>();
+    for (String file : getRotatedFiles()) {
+      contents.add(readCompressed(file));
+    }
+    Collections.sort(contents);
+    assertEquals(Arrays.asList("3\n", "4\n"), contents);
+  }
+}
@@ -0,0 +1,175 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests for the sampling profiler.
+ *
+ * @author cristi_talau
+ */
+public class SamplingProfilerTest {
+
+  /**
+   * <p><b>Description:</b> Test that the busy threads are sampled, and that the profile can be 
+   * filtered to the threads of the requests with a label.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testProfile() throws Exception {
+    SamplingProfiler profiler = new SamplingProfiler();
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread editThread = new Thread(() -> editLoop(profiler, stop));
+    Thread otherThread = new Thread(() -> otherLoop(stop));
+    editThread.start();
+    otherThread.start();
+    try {
+      String allThreads = folded(profiler.profile(300, 5, null));
+      assertTrue(allThreads, allThreads.contains("SamplingProfilerTest.editLoop"));
+      assertTrue(allThreads, allThreads.contains("SamplingProfilerTest.otherLoop"));
+      
+      String editThreads = folded(profiler.profile(300, 5, "edit"));
+      assertTrue(editThreads, editThreads.contains("SamplingProfilerTest.editLoop"));
+      assertFalse(editThreads, editThreads.contains("SamplingProfilerTest.otherLoop"));
+      assertFalse(profiler.isTrackingThreads());
+    } finally {
+      stop.set(true);
+      editThread.join();
+      otherThread.join();
+    }
+  }
+
+  /**
+   * <p><b>Description:</b> Test that only one profile is recorded at a time.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testSingleProfile() throws Exception {
+    SamplingProfiler profiler = new SamplingProfiler();
+    CompletableFuture<SamplingProfiler.Profile> first = CompletableFuture.supplyAsync(() -> {
+      try {
+        return profiler.profile(500, 10, null);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertNull(profiler.profile(100, 10, null));
+    assertTrue(first.get().getSamples() > 0);
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the number of distinct stacks is capped.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testStacksCap() {
+    SamplingProfiler.Profile profile = new SamplingProfiler.Profile();
+    for (int i = 0; i < SamplingProfiler.MAX_STACKS + 10; i++) {
+      profile.add(new StackTraceElement[] {
+          new StackTraceElement("Caller", "method" + i, null, -1),
+          new StackTraceElement("Main", "main", null, -1)});
+    }
+    profile.add(new StackTraceElement[] {
+        new StackTraceElement("Caller", "method0", null, -1),
+        new StackTraceElement("Main", "main", null, -1)});
+    Map<String, Long> folded = profile.getFoldedStacks();
+    assertEquals(SamplingProfiler.MAX_STACKS + 1, folded.size());
+    assertEquals(Long.valueOf(2), folded.get("Main.main;Caller.method0"));
+    assertEquals(Long.valueOf(10), folded.get(SamplingProfiler.TRUNCATED_FRAME));
+  }
+
+  /**
+   * <p><b>Description:</b> Test the flame graph of some folded stacks.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testFlameGraph() throws Exception {
+    Map<String, Long> folded = new LinkedHashMap<>();
+    folded.put("Main.main;Editor.insert", 3L);
+    folded.put("Main.main;Editor.<init>", 1L);
+    StringWriter svg = new StringWriter();
+    FlameGraph.write(folded, "Test & profile", svg);
+    String content = svg.toString();
+    assertTrue(content, content.startsWith("<?xml"));
+    assertTrue(content, content.contains("Test &amp; profile"));
+    assertTrue(content, content.contains("<title>Main.main (4 samples, 100.00%)</title>"));
+    assertTrue(content, content.contains("<title>Editor.insert (3 samples, 75.00%)</title>"));
+    assertTrue(content, content.contains("<title>Editor.&lt;init&gt; (1 samples, 25.00%)</title>"));
+    assertTrue(content, content.trim().endsWith("</svg>"));
+  }
+
+  /**
+   * @param profile The profile.
+   * 
+   * @return The folded stacks of the profile.
+   * 
+   * @throws Exception If it fails.
+   */
+  private static String folded(SamplingProfiler.Profile profile) throws Exception {
+    StringWriter writer = new StringWriter();
+    profile.writeFolded(writer);
+    return writer.toString();
+  }
+
+  /**
+   * Busy loop of the edit thread. The work is done in this method, so that it is on the stack
+   * of every sample.
+   * 
+   * @param profiler The profiler.
+   * @param stop Whether the loop should stop.
+   */
+  private static void editLoop(SamplingProfiler profiler, AtomicBoolean stop) {
+    boolean started = false;
+    long sum = 0;
+    while (!stop.get()) {
+      if (!started && profiler.isTrackingThreads()) {
+        profiler.threadStarted("edit");
+        started = true;
+      }
+      for (int i = 0; i < 100_000; i++) {
+        sum += i * (long) i;
+      }
+    }
+    if (sum == 42) {
+      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Busy loop of the other thread.
+   * 
+   * @param stop Whether the loop should stop.
+   */
+  private static void otherLoop(AtomicBoolean stop) {
+    long sum = 0;
+    while (!stop.get()) {
+      for (int i = 0; i < 100_000; i++) {
+        sum += i ^ (long) i >>> 1;
+      }
+    }
+    if (sum == 42) {
+      throw new IllegalStateException();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.oxygenxml.webapp.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Tests for the windowed log-linear reservoir.
+ *
+ * @author cristi_talau
+ */
+public class WindowedLogLinearReservoirTest {
+
+  /**
+   * Logger.
+   */
+  private static final Logger log = LoggerFactory.getLogger(WindowedLogLinearReservoirTest.class);
+
+  /**
+   * The number of recording threads.
+   */
+  private static final int THREADS = 4;
+
+  /**
+   * The number of values recorded by each thread.
+   */
+  private static final int VALUES_PER_THREAD = 250_000;
+
+  /**
+   * <p><b>Description:</b> Test that each value is counted in a bucket whose value is close to it.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testBucketAccuracy() {
+    for (long value = 1; value < TimeUnit.MINUTES.toNanos(30); value = value * 3 / 2 + 1) {
+      long bucketValue = WindowedLogLinearReservoir.bucketValue(WindowedLogLinearReservoir.bucketIndex(value));
+      assertTrue(value + " -> " + bucketValue, Math.abs(bucketValue - value) <= value / 50.0);
+    }
+    assertEquals(WindowedLogLinearReservoir.BUCKET_COUNT - 1, WindowedLogLinearReservoir.bucketIndex(Long.MAX_VALUE));
+    assertEquals(0, WindowedLogLinearReservoir.bucketIndex(-1));
+  }
+
+  /**
+   * <p><b>Description:</b> Test that the values older than the window are not part of the snapshot.</p>
+   *
+   * @author cristi_talau
+   */
+  @Test
+  public void testWindowRolling() {
+    Clock clock = Mockito.mock(Clock.class);
+    long window = TimeUnit.MINUTES.toNanos(1);
+    WindowedLogLinearReservoir reservoir = new WindowedLogLinearReservoir(clock, window);
+    for (int i = 0; i < 100; i++) {
+      reservoir.update(TimeUnit.SECONDS.toNanos(5));
+    }
+
+    Mockito.when(clock.getTick()).thenReturn(window / 2);
+    reservoir.update(TimeUnit.MILLISECONDS.toNanos(10));
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertEquals(101, snapshot.size());
+    assertEquals(TimeUnit.SECONDS.toNanos(5), snapshot.get99thPercentile(), TimeUnit.SECONDS.toNanos(5) / 50.0);
+
+    // The slow values leave the window.
+    Mockito.when(clock.getTick()).thenReturn(window + window / 6);
+    snapshot = reservoir.getSnapshot();
+    assertEquals(1, snapshot.size());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), snapshot.get99thPercentile(),
+        TimeUnit.MILLISECONDS.toNanos(10) / 50.0);
+
+    Mockito.when(clock.getTick()).thenReturn(3 * window);
+    assertEquals(0, reservoir.getSnapshot().size());
+    assertEquals(0, reservoir.size());
+  }
+
+  /**
+   * <p><b>Description:</b> Stress test that records values from several threads and compares the
+   * throughput and the percentile error with the ones of the exponentially decaying reservoir.</p>
+   *
+   * @author cristi_talau
+   *
+   * @throws Exception If it fails.
+   */
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    long[][] values = new long[THREADS][VALUES_PER_THREAD];
+    for (int t = 0; t < THREADS; t++) {
+      Random random = new Random(t);
+      for (int i = 0; i < VALUES_PER_THREAD; i++) {
+        // Log-normal durations around 20ms, with a long tail.
+        values[t][i] = (long) (TimeUnit.MILLISECONDS.toNanos(20) * Math.exp(random.nextGaussian()));
+      }
+    }
+    long[] sorted = Arrays.stream(values).flatMapToLong(Arrays::stream).sorted().toArray();
+
+    WindowedLogLinearReservoir windowed = new WindowedLogLinearReservoir(Clock.defaultClock(),
+        TimeUnit.HOURS.toNanos(1));
+    ExponentiallyDecayingReservoir decaying = new ExponentiallyDecayingReservoir();
+    // Warm up both implementations.
+    record(new WindowedLogLinearReservoir(Clock.defaultClock(), TimeUnit.HOURS.toNanos(1)), values);
+    record(new ExponentiallyDecayingReservoir(), values);
+
+    long windowedNanos = record(windowed, values);
+    long decayingNanos = record(decaying, values);
+
+    Snapshot windowedSnapshot = windowed.getSnapshot();
+    Snapshot decayingSnapshot = decaying.getSnapshot();
+    assertEquals(sorted.length, windowedSnapshot.size());
+    for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+      double exact = sorted[(int) Math.ceil(quantile * sorted.length) - 1];
+      double windowedError = Math.abs(windowedSnapshot.getValue(quantile) - exact) / exact;
+      double decayingError = Math.abs(decayingSnapshot.getValue(quantile) - exact) / exact;
+      log.info("Quantile {}: windowed error {}, decaying error {}", quantile, windowedError, decayingError);
+      assertTrue("Error for " + quantile + ": " + windowedError, windowedError < 0.02);
+    }
+    log.info("Recording {} values: windowed {}ms, decaying {}ms", sorted.length,
+        TimeUnit.NANOSECONDS.toMillis(windowedNanos), TimeUnit.NANOSECONDS.toMillis(decayingNanos));
+  }
+
+  /**
+   * Records the values in the reservoir, using a thread for each row.
+   *
+   * @param reservoir The reservoir.
+   * @param values The values.
+   *
+   * @return The duration of the recording in nanoseconds.
+   *
+   * @throws InterruptedException If interrupted.
+   */
+  private static long record(Reservoir reservoir, long[][] values) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[values.length];
+    for (int t = 0; t < values.length; t++) {
+      long[] threadValues = values[t];
+      threads[t] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (long value : threadValues) {
+          reservoir.update(value);
+        }
+      });
+      threads[t].start();
+    }
+    long startTime = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return System.nanoTime() - startTime;
+  }
+}